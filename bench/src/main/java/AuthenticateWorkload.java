@@ -0,0 +1,21 @@
+import bench.Workloads;
+
+public class AuthenticateWorkload implements Workloads.Authenticate {
+
+    @Override
+    public void setup(int users) {
+        for (int i = 0; i < users; i++) {
+            Server.users.register(new User(username(i), "pw" + i, i % 10 == 0 ? "driver" : "customer"));
+        }
+    }
+
+    @Override
+    public String username(int i) {
+        return "User" + i;
+    }
+
+    @Override
+    public Object authenticate(String username, String password) {
+        return User.authenticate(username, password);
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Shared setup for the JMH workloads: logged-in handlers whose messages go nowhere.
+public class BenchFixtures {
+
+    // Stands in for a client socket. Optionally encodes each message the way its
+    // transport would, so message building is measured end to end.
+    public static class DiscardConnection implements Connection {
+        private final boolean encode;
+        private final boolean binary;
+        public int sent;
+        public int bytes;
+
+        public DiscardConnection(boolean encode, boolean binary) {
+            this.encode = encode;
+            this.binary = binary;
+        }
+
+        @Override
+        public void send(Message msg) {
+            sent++;
+            if (encode) bytes += msg.encoded(binary).length;
+        }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public String getRemoteAddress() {
+            return "bench";
+        }
+    }
+
+    public static ClientHandler login(String username, String type) {
+        return login(username, type, new DiscardConnection(false, false));
+    }
+
+    public static ClientHandler login(String username, String type, Connection connection) {
+        Server.users.register(new User(username, "pw", type));
+        ClientHandler handler = new ClientHandler(connection);
+        handler.handleLine("LOGIN:" + username + ":pw");
+        return handler;
+    }
+
+    // Run setup without the server's per-login console lines.
+    public static void quietly(Runnable setup) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            setup.run();
+        } finally {
+            System.setOut(out);
+        }
+    }
+}
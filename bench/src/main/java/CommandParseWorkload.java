@@ -0,0 +1,72 @@
+import bench.Workloads;
+import java.nio.charset.StandardCharsets;
+
+public class CommandParseWorkload implements Workloads.CommandParse {
+    private final TextArgs textArgs = new TextArgs();
+    private final BinaryArgs binaryArgs = new BinaryArgs();
+    private byte[] line;
+    private byte[] frame;
+    private ClientHandler driver;
+
+    @Override
+    public void setup(String command) {
+        String[] fields;
+        switch (command) {
+            case "OFFER":
+                fields = new String[] {"OFFER", "123456", "27.5"};
+                break;
+            case "LOCATION":
+                fields = new String[] {"LOCATION", "30.044420", "31.235712"};
+                break;
+            case "UPDATE":
+                fields = new String[] {"UPDATE", "123456", "START"};
+                break;
+            case "REQUEST":
+                fields = new String[] {"REQUEST", "Tahrir", "Zamalek", "30.0444", "31.2357"};
+                break;
+            default:
+                throw new IllegalArgumentException("No sample for " + command);
+        }
+        line = String.join(":", fields).getBytes(StandardCharsets.UTF_8);
+        Object[] args = new Object[fields.length - 1];
+        System.arraycopy(fields, 1, args, 0, args.length);
+        // handleFrame gets the frame body: opcode and fields, without the length.
+        byte[] encoded = BinaryCodec.encodeCommand(Command.valueOf(fields[0]), args);
+        frame = new byte[encoded.length - 2];
+        System.arraycopy(encoded, 2, frame, 0, frame.length);
+        BenchFixtures.quietly(() -> driver = BenchFixtures.login("bench-driver", "driver"));
+    }
+
+    // What ClientHandler does before the switch: tokenize, look up the command and
+    // read the typed fields.
+    @Override
+    public double parseText() {
+        textArgs.reset(line, 0, line.length, false);
+        return consume(textArgs.command(), textArgs);
+    }
+
+    @Override
+    public double parseBinary() {
+        binaryArgs.reset(frame, 0, frame.length);
+        return consume(binaryArgs.command(), binaryArgs);
+    }
+
+    // The whole text path for a driver: parse, role check, handler, reply.
+    @Override
+    public void handleLine() {
+        driver.handleLine(line, 0, line.length);
+    }
+
+    private static double consume(Command command, CommandArgs args) {
+        switch (command) {
+            case OFFER:
+                return args.intArg(1) + args.doubleArg(2);
+            case LOCATION:
+                return args.doubleArg(1) + args.doubleArg(2);
+            case UPDATE:
+                return args.intArg(1) + args.string(2).length();
+            default:
+                return args.string(1).length() + args.string(2).length() + args.doubleArg(3) + args.doubleArg(4);
+        }
+    }
+}
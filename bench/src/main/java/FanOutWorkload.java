@@ -0,0 +1,38 @@
+import bench.Workloads;
+import java.util.SplittableRandom;
+
+public class FanOutWorkload implements Workloads.FanOut {
+    // Drivers spread over roughly 22 x 28 km around central Cairo.
+    private static final double LAT = 30.0, LON = 31.1, LAT_SPAN = 0.2, LON_SPAN = 0.3;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+    private ClientHandler customer;
+    private boolean nearby;
+
+    @Override
+    public void setup(int drivers, boolean nearby) {
+        this.nearby = nearby;
+        // Widenings would keep re-dispatching old rides in the background; each
+        // measured ride is cancelled right away, so its timer finds nothing to do.
+        Server.config.widenAfterMs = 1;
+        BenchFixtures.quietly(() -> {
+            customer = BenchFixtures.login("bench-customer", "customer");
+            for (int i = 0; i < drivers; i++) {
+                ClientHandler driver = BenchFixtures.login("bench-driver-" + i, "driver");
+                Server.driverLocations.update(driver, LAT + random.nextDouble() * LAT_SPAN,
+                        LON + random.nextDouble() * LON_SPAN);
+            }
+        });
+    }
+
+    // One REQUEST's first wave: all free drivers, or the nearest ones on the grid.
+    @Override
+    public int dispatch() {
+        Ride ride = nearby
+                ? new Ride("A", "B", customer, LAT + random.nextDouble() * LAT_SPAN, LON + random.nextDouble() * LON_SPAN)
+                : new Ride("A", "B", customer);
+        RideDispatcher.dispatch(ride);
+        ride.cancel();
+        return ride.getNotifiedCount();
+    }
+}
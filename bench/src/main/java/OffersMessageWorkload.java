@@ -0,0 +1,27 @@
+import bench.Workloads;
+
+public class OffersMessageWorkload implements Workloads.OffersMessage {
+    private BenchFixtures.DiscardConnection customerConnection;
+    private Ride ride;
+
+    @Override
+    public void setup(int offers, boolean binary) {
+        customerConnection = new BenchFixtures.DiscardConnection(true, binary);
+        BenchFixtures.quietly(() -> {
+            ClientHandler customer = BenchFixtures.login("bench-customer", "customer", customerConnection);
+            ride = new Ride("Tahrir", "Zamalek", customer);
+            for (int i = 0; i < offers; i++) {
+                ClientHandler driver = BenchFixtures.login("bench-driver-" + i, "driver");
+                Server.ratings.record(driver.getUser(), 1 + i % 5, 1 + i % 5, 1 + i % 5);
+                ride.addOffer(driver, 20 + i % 30);
+            }
+        });
+    }
+
+    // Build the OFFERS message and encode it for the customer's protocol.
+    @Override
+    public int notifyCustomer() {
+        ride.notifyCustomerOffers();
+        return customerConnection.bytes;
+    }
+}
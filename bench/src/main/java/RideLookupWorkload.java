@@ -0,0 +1,17 @@
+import bench.Workloads;
+
+public class RideLookupWorkload implements Workloads.RideLookup {
+
+    @Override
+    public void setup(int rides) {
+        for (int id = 1; id <= rides; id++) {
+            Server.rides.restore(Ride.restore(id, "customer" + (id % 10_000), "Tahrir", "Zamalek",
+                    30.0444, 31.2357, RideStatus.END, "driver" + (id % 1_000), false));
+        }
+    }
+
+    @Override
+    public Object lookup(int rideId) {
+        return Ride.getRideById(rideId);
+    }
+}
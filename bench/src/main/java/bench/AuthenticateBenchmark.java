@@ -0,0 +1,48 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// User.authenticate at 1k-100k registered users: a successful login, and an
+// unknown username.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticateBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int users;
+
+    private Workloads.Authenticate workload;
+    private final String[] names = new String[1024];
+    private final String[] passwords = new String[1024];
+    private int next;
+
+    @Setup
+    public void setup() {
+        workload = Workloads.load("AuthenticateWorkload", Workloads.Authenticate.class);
+        workload.setup(users);
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < names.length; i++) {
+            int user = random.nextInt(users);
+            // As typed by a client: a fresh String, in whatever case.
+            names[i] = new String(workload.username(user).toLowerCase());
+            passwords[i] = "pw" + user;
+        }
+    }
+
+    @Benchmark
+    public Object hit() {
+        int i = next++ & (names.length - 1);
+        return workload.authenticate(names[i], passwords[i]);
+    }
+
+    @Benchmark
+    public Object unknownUser() {
+        return workload.authenticate("nobody", "pw");
+    }
+}
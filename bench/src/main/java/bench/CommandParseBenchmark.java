@@ -0,0 +1,41 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ClientHandler command parsing: text line vs binary frame into typed fields,
+// and the full text path (parse, dispatch, reply) for a logged-in driver.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+
+    @Param({"OFFER", "LOCATION", "UPDATE", "REQUEST"})
+    String command;
+
+    private Workloads.CommandParse workload;
+
+    @Setup
+    public void setup() {
+        workload = Workloads.load("CommandParseWorkload", Workloads.CommandParse.class);
+        workload.setup(command);
+    }
+
+    @Benchmark
+    public double parseText() {
+        return workload.parseText();
+    }
+
+    @Benchmark
+    public double parseBinary() {
+        return workload.parseBinary();
+    }
+
+    @Benchmark
+    public void handleLine() {
+        workload.handleLine();
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// NEW_RIDE fan-out for one request at 1k-100k logged-in drivers: to every free
+// driver (no pickup coordinates), or to the nearest ones via the location grid.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class FanOutBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int drivers;
+
+    @Param({"all", "nearby"})
+    String target;
+
+    private Workloads.FanOut workload;
+
+    @Setup
+    public void setup() {
+        workload = Workloads.load("FanOutWorkload", Workloads.FanOut.class);
+        workload.setup(drivers, target.equals("nearby"));
+    }
+
+    @Benchmark
+    public int dispatch() {
+        return workload.dispatch();
+    }
+}
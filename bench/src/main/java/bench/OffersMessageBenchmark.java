@@ -0,0 +1,34 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Ride.notifyCustomerOffers: snapshot the offers, build the OFFERS message and
+// encode it for the customer's protocol.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OffersMessageBenchmark {
+
+    @Param({"1", "10", "50"})
+    int offers;
+
+    @Param({"text", "binary"})
+    String protocol;
+
+    private Workloads.OffersMessage workload;
+
+    @Setup
+    public void setup() {
+        workload = Workloads.load("OffersMessageWorkload", Workloads.OffersMessage.class);
+        workload.setup(offers, protocol.equals("binary"));
+    }
+
+    @Benchmark
+    public int notifyCustomerOffers() {
+        return workload.notifyCustomer();
+    }
+}
@@ -0,0 +1,37 @@
+package bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Ride.getRideById at 10k-1M stored rides, random ids.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class RideLookupBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int rides;
+
+    private Workloads.RideLookup workload;
+    private final int[] ids = new int[4096];
+    private int next;
+
+    @Setup
+    public void setup() {
+        workload = Workloads.load("RideLookupWorkload", Workloads.RideLookup.class);
+        workload.setup(rides);
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + random.nextInt(rides);
+        }
+    }
+
+    @Benchmark
+    public Object getRideById() {
+        return workload.lookup(ids[next++ & (ids.length - 1)]);
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+// The server classes live in the unnamed package, which code in a named package
+// cannot refer to, and JMH will not generate benchmarks in the unnamed package.
+// So each benchmark drives a small workload class in the unnamed package
+// (bench/src/main/java/*Workload.java) through one of these interfaces. The
+// workload is looked up by name once per trial; measured calls are ordinary
+// (monomorphic) interface calls.
+public final class Workloads {
+
+    // Ride.getRideById over a repository of the given size.
+    public interface RideLookup {
+        void setup(int rides);
+        Object lookup(int rideId);
+    }
+
+    // User.authenticate over a registry of the given size.
+    public interface Authenticate {
+        void setup(int users);
+        String username(int i);
+        Object authenticate(String username, String password);
+    }
+
+    // ClientHandler's command parsing, for one sample command in either protocol.
+    public interface CommandParse {
+        void setup(String command);
+        double parseText();
+        double parseBinary();
+        void handleLine();
+    }
+
+    // RideDispatcher fan-out of NEW_RIDE to the given number of logged-in drivers.
+    public interface FanOut {
+        void setup(int drivers, boolean nearby);
+        int dispatch();
+    }
+
+    // Ride.notifyCustomerOffers for a ride holding the given number of offers.
+    public interface OffersMessage {
+        void setup(int offers, boolean binary);
+        int notifyCustomer();
+    }
+
+    private Workloads() { }
+
+    public static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load workload " + className, e);
+        }
+    }
+}
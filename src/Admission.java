@@ -0,0 +1,73 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Admission control: what a client may send, checked before a command runs.
+//
+// Token buckets, off at a rate of 0 (all but --auth-rate, by default):
+//   --conn-rate  every command on one connection, logged in or not;
+//   --auth-rate  REGISTER / LOGIN / RESUME on one connection, so a client can't
+//                try passwords or open sessions at line rate;
+//   --ride-rate  REQUEST / CANCEL / OFFER / ASSIGN per user, whatever connection
+//                they arrive on. These are the commands that scan the rides or
+//                broadcast to drivers.
+// Each may save up --rate-burst-s seconds' worth for a burst. On top of that,
+// --max-inflight caps the ride commands being handled at once, server-wide, and
+// --max-connections the open connections.
+//
+// A command over a limit is answered "ERROR: throttled" and not run, so the
+// client can back off; it costs the server one bucket check and a prebuilt reply.
+public class Admission {
+    static final Message THROTTLED = Message.of("ERROR: throttled");
+    static final byte[] THROTTLED_LINE = "ERROR: throttled\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // The commands --ride-rate and --max-inflight apply to.
+    static boolean isRideCommand(Command command) {
+        return command == Command.REQUEST || command == Command.CANCEL
+                || command == Command.OFFER || command == Command.ASSIGN;
+    }
+
+    static boolean isAuthCommand(Command command) {
+        return command == Command.REGISTER || command == Command.LOGIN || command == Command.RESUME;
+    }
+
+    // Whether to take on a new connection, judged by the ones already open.
+    public boolean acceptConnection() {
+        int max = Server.config.maxConnections;
+        if (max <= 0 || Server.stats.activeConnections() < max) return true;
+        Server.metrics.connectionsRejected.increment();
+        return false;
+    }
+
+    // True if the command may run. A ride command then holds an in-flight slot
+    // until finished(command). user is null before login.
+    public boolean admit(Command command, TokenBucket connectionLimit, TokenBucket authLimit, User user) {
+        ServerConfig config = Server.config;
+        if (!connectionLimit.tryTake(config.connectionRate, config.rateBurstS)
+                || (isAuthCommand(command) && !authLimit.tryTake(config.authRate, config.rateBurstS))) {
+            Server.metrics.throttled.increment();
+            return false;
+        }
+        if (user == null || !isRideCommand(command)) return true;
+        if (!user.rideLimit().tryTake(config.rideRate, config.rateBurstS)) {
+            Server.metrics.throttled.increment();
+            return false;
+        }
+        if (config.maxInflight > 0 && inFlight.incrementAndGet() > config.maxInflight) {
+            inFlight.decrementAndGet();
+            Server.metrics.throttled.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // After a command admit let through has run.
+    public void finished(Command command) {
+        if (Server.config.maxInflight > 0 && isRideCommand(command)) inFlight.decrementAndGet();
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+}
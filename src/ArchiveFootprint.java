@@ -0,0 +1,56 @@
+// Heap held per finished ride: as live Ride objects vs after the archiver has
+// moved them into RideArchive. Rides go through the real command path (REQUEST,
+// OFFER, ASSIGN, UPDATE START/END, RATE) with one customer and one driver.
+// Usage: java ArchiveFootprint [rides=200000]
+public class ArchiveFootprint {
+
+    public static void main(String[] args) {
+        int rides = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Server.rides.startArchiver(Long.MAX_VALUE); // enqueue finished rides; we archive by hand
+
+        RideStressTest.CapturingConnection customerConnection = new RideStressTest.CapturingConnection();
+        ClientHandler customer = login("footprint-customer", "customer", customerConnection);
+        ClientHandler driver = login("footprint-driver", "driver", new RideStressTest.CapturingConnection());
+
+        long before = usedHeap();
+        for (int i = 0; i < rides; i++) {
+            customer.handleLine("REQUEST:Pickup " + (i % 500) + ":Destination " + (i % 700));
+            int rideId = Server.rides.getActiveRideForCustomer(customer).getRideId();
+            driver.handleLine("OFFER:" + rideId + ":25");
+            customer.handleLine("ASSIGN:" + rideId + ":footprint-driver");
+            driver.handleLine("UPDATE:" + rideId + ":START");
+            driver.handleLine("UPDATE:" + rideId + ":END");
+            customer.handleLine("RATE:" + rideId + ":5:4:5:ok");
+        }
+        long live = usedHeap() - before;
+        System.out.printf("live:     %,d rides, %,d bytes/ride%n", Server.rides.liveSize(), live / rides);
+
+        long start = System.nanoTime();
+        int moved = Server.rides.archiveFinished();
+        long archiveNanos = System.nanoTime() - start;
+        long archived = usedHeap() - before;
+        System.out.printf("archived: %,d rides in %d ms, %,d bytes/ride, %,d left live%n",
+                moved, archiveNanos / 1_000_000, archived / rides, Server.rides.liveSize());
+
+        // Lookups still work: the last ride is rated, the first one can't be rated again.
+        customer.handleLine("RATE:1:5:5:5:again");
+        System.out.println("RATE on archived ride 1: " + customerConnection.lastMessage);
+        System.out.println("ride " + rides + ": " + Ride.getRideById(rides).getStatus()
+                + ", driver " + Ride.getRideById(rides).getAssignedDriverName());
+    }
+
+    private static ClientHandler login(String username, String type, Connection connection) {
+        Server.users.register(new User(username, "pw", type));
+        ClientHandler handler = new ClientHandler(connection);
+        handler.handleLine("LOGIN:" + username + ":pw");
+        return handler;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
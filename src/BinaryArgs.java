@@ -0,0 +1,121 @@
+import java.nio.charset.StandardCharsets;
+
+// CommandArgs over one binary frame body, read in place. reset() only records
+// field offsets into reusable arrays; numbers are read straight from the buffer
+// and only string fields allocate, when asked for.
+public class BinaryArgs implements CommandArgs {
+    private static final int MAX_FIELDS = 8;
+    private static final RideStatus[] STATUSES = RideStatus.values();
+    private static final Role[] ROLES = Role.values();
+
+    private byte[] frame;
+    private final int[] offsets = new int[MAX_FIELDS];
+    private byte[] types;
+    private Command command;
+    private int fieldCount;
+
+    // Point at a frame body (opcode + fields) of len bytes at buf[off].
+    public BinaryArgs reset(byte[] buf, int off, int len) {
+        frame = buf;
+        command = len > 0 ? Command.fromOpcode(buf[off]) : null;
+        types = command != null ? BinaryCodec.commandFields(command) : null;
+        fieldCount = 0;
+        if (types == null) return this;
+        int pos = off + 1;
+        int end = off + len;
+        for (byte type : types) {
+            int size = fieldSize(type, pos, end);
+            if (size < 0 || pos + size > end) break; // omitted (or truncated) trailing fields
+            offsets[fieldCount++] = pos;
+            pos += size;
+        }
+        return this;
+    }
+
+    // Null for an unknown opcode.
+    public Command command() {
+        return command;
+    }
+
+    @Override
+    public int count() {
+        return command == null ? 0 : 1 + fieldCount;
+    }
+
+    @Override
+    public String string(int i) {
+        if (i == 0) return command.name();
+        int pos = offsets[check(i)];
+        switch (types[i - 1]) {
+            case BinaryCodec.STR:
+                int len = u16(pos);
+                return new String(frame, pos + 2, len, StandardCharsets.UTF_8);
+            case BinaryCodec.I32:
+                return Integer.toString(i32(pos));
+            case BinaryCodec.F64:
+                return Double.toString(f64(pos));
+            case BinaryCodec.STATUS:
+                return STATUSES[(frame[pos] & 0xFF) % STATUSES.length].name();
+            case BinaryCodec.ROLE:
+                return ROLES[(frame[pos] & 0xFF) % ROLES.length].name().toLowerCase(); // as typed in REGISTER
+            default:
+                return Integer.toString(frame[pos] & 0xFF);
+        }
+    }
+
+    @Override
+    public int intArg(int i) {
+        int pos = offsets[check(i)];
+        switch (types[i - 1]) {
+            case BinaryCodec.I32:
+                return i32(pos);
+            case BinaryCodec.U8:
+                return frame[pos] & 0xFF;
+            default:
+                throw new NumberFormatException("field " + i + " is not an integer");
+        }
+    }
+
+    @Override
+    public double doubleArg(int i) {
+        int pos = offsets[check(i)];
+        switch (types[i - 1]) {
+            case BinaryCodec.F64:
+                return f64(pos);
+            case BinaryCodec.I32:
+                return i32(pos);
+            default:
+                throw new NumberFormatException("field " + i + " is not a number");
+        }
+    }
+
+    private int check(int i) {
+        if (i < 1 || i > fieldCount) throw new IndexOutOfBoundsException("field " + i);
+        return i - 1;
+    }
+
+    private int u16(int pos) {
+        return ((frame[pos] & 0xFF) << 8) | (frame[pos + 1] & 0xFF);
+    }
+
+    private int i32(int pos) {
+        return (u16(pos) << 16) | u16(pos + 2);
+    }
+
+    private double f64(int pos) {
+        return Double.longBitsToDouble(((long) i32(pos) << 32) | (i32(pos + 4) & 0xFFFFFFFFL));
+    }
+
+    private int fieldSize(byte type, int pos, int end) {
+        switch (type) {
+            case BinaryCodec.STR:
+                return pos + 2 <= end ? 2 + u16(pos) : -1;
+            case BinaryCodec.I32:
+                return 4;
+            case BinaryCodec.F64:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+}
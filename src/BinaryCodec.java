@@ -0,0 +1,149 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// Length-prefixed binary protocol, negotiated by a client sending MAGIC as its
+// very first byte (text commands always start with a letter). After that every
+// frame in both directions is [u16 body length][u8 opcode][fields], big-endian.
+// Ids, prices, ratings and statuses are fixed-width; strings are [u16 length][UTF-8].
+//
+// Client -> server opcodes are Command.opcode with the fields below; trailing
+// fields may be omitted (e.g. REQUEST without pickup coordinates).
+// Server -> client frames use the MSG_* opcodes; anything without a dedicated
+// layout goes out as MSG_TEXT carrying the text-protocol line.
+public final class BinaryCodec {
+    public static final int MAGIC = 0xB1;
+    public static final int MAX_FRAME = 0xFFFF;
+
+    // Field types.
+    static final byte STR = 1, I32 = 2, F64 = 3, U8 = 4, STATUS = 5, ROLE = 6;
+
+    private static final byte[][] COMMAND_FIELDS = new byte[128][];
+
+    static {
+        fields(Command.REGISTER, STR, STR, ROLE);
+        fields(Command.LOGIN, STR, STR);
+        fields(Command.REQUEST, STR, STR, F64, F64);
+        fields(Command.VIEW);
+        fields(Command.OFFER, I32, F64);
+        fields(Command.ASSIGN, I32, STR);
+        fields(Command.UPDATE, I32, STATUS);
+        fields(Command.RATE, I32, U8, U8, U8, STR);
+        fields(Command.CANCEL);
+        fields(Command.STATS);
+        fields(Command.DISCONNECT);
+        fields(Command.LOCATION, F64, F64);
+        fields(Command.METRICS);
+        fields(Command.TOP, U8);
+        fields(Command.RESUME, STR);
+    }
+
+    // Server -> client opcodes.
+    static final byte MSG_TEXT = (byte) 0x80;             // UTF-8 text line (rest of frame)
+    static final byte MSG_NEW_RIDE = (byte) 0x81;         // i32 rideId, str pickup, str destination
+    static final byte MSG_OFFERS = (byte) 0x82;           // i32 rideId, u16 n, n x (str driver, f64 price, f64 rating)
+    static final byte MSG_RIDE_UPDATE = (byte) 0x83;      // i32 rideId, u8 status
+    static final byte MSG_ASSIGNED = (byte) 0x84;         // i32 rideId
+    static final byte MSG_REQUEST_RECEIVED = (byte) 0x85; // i32 rideId
+    static final byte MSG_STATUS = (byte) 0x86;           // i32 rideId, u8 status
+
+    private BinaryCodec() { }
+
+    private static void fields(Command command, byte... types) {
+        COMMAND_FIELDS[command.opcode] = types;
+    }
+
+    static byte[] commandFields(Command command) {
+        return COMMAND_FIELDS[command.opcode];
+    }
+
+    // Encode a client command as a complete frame. Arguments follow the command's
+    // field layout; numbers may be given as strings, as typed at the console.
+    // Used by clients and tools, not on the server's hot path.
+    public static byte[] encodeCommand(Command command, Object... args) {
+        byte[] types = COMMAND_FIELDS[command.opcode];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(command.opcode);
+        ByteBuffer scratch = ByteBuffer.allocate(8);
+        for (int i = 0; i < args.length && i < types.length; i++) {
+            String value = String.valueOf(args[i]);
+            scratch.clear();
+            switch (types[i]) {
+                case STR:
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    scratch.putShort((short) bytes.length);
+                    body.write(scratch.array(), 0, 2);
+                    body.write(bytes, 0, bytes.length);
+                    continue;
+                case I32:
+                    scratch.putInt(Integer.parseInt(value));
+                    break;
+                case F64:
+                    scratch.putDouble(Double.parseDouble(value));
+                    break;
+                case U8:
+                    scratch.put((byte) Integer.parseInt(value));
+                    break;
+                case STATUS:
+                    scratch.put((byte) RideStatus.valueOf(value.toUpperCase(Locale.ROOT)).ordinal());
+                    break;
+                case ROLE:
+                    // The server treats anything but driver (or a refused admin) as a customer.
+                    Role role = value.equalsIgnoreCase("driver") ? Role.DRIVER
+                            : value.equalsIgnoreCase("admin") ? Role.ADMIN : Role.CUSTOMER;
+                    scratch.put((byte) role.ordinal());
+                    break;
+            }
+            body.write(scratch.array(), 0, scratch.position());
+        }
+        byte[] frame = new byte[2 + body.size()];
+        ByteBuffer.wrap(frame).putShort((short) body.size()).put(body.toByteArray());
+        return frame;
+    }
+
+    // Render a server frame body as the equivalent text-protocol line, so a binary
+    // client can reuse the text client's display and parsing logic.
+    public static String render(ByteBuffer body) {
+        byte opcode = body.get();
+        switch (opcode) {
+            case MSG_NEW_RIDE:
+                return "NEW_RIDE:" + body.getInt() + ":" + getString(body) + ":" + getString(body);
+            case MSG_OFFERS: {
+                StringBuilder sb = new StringBuilder("OFFERS:").append(body.getInt());
+                int n = body.getShort() & 0xFFFF;
+                for (int i = 0; i < n; i++) {
+                    String driver = getString(body);
+                    double price = body.getDouble();
+                    double rating = body.getDouble();
+                    sb.append(':').append(driver).append('=').append(price)
+                            .append("=Rating:").append(String.format(Locale.ROOT, "%.2f", rating));
+                }
+                return sb.toString();
+            }
+            case MSG_RIDE_UPDATE:
+                return "UPDATE:" + body.getInt() + ":" + RideStatus.values()[body.get()];
+            case MSG_ASSIGNED:
+                return "ASSIGNED:" + body.getInt() + ":You have been assigned a ride.";
+            case MSG_REQUEST_RECEIVED:
+                return "REQUEST_RECEIVED:" + body.getInt();
+            case MSG_STATUS:
+                return "STATUS:" + body.getInt() + ":" + RideStatus.values()[body.get()];
+            default:
+                return new String(body.array(), body.arrayOffset() + body.position(), body.remaining(),
+                        StandardCharsets.UTF_8);
+        }
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static void putString(ByteBuffer buf, byte[] utf8) {
+        buf.putShort((short) utf8.length);
+        buf.put(utf8);
+    }
+}
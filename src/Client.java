@@ -1,16 +1,55 @@
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.regex.Pattern;
 
+// Usage: java Client [--binary]
 public class Client {
     private static BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
     private static BufferedReader in;
     private static PrintWriter out;
     private static volatile boolean shouldDisconnect = false;
 
+    // Binary protocol (--binary): frames are rendered back to text lines on receipt.
+    private static boolean binary = false;
+    private static DataInputStream binaryIn;
+    private static OutputStream binaryOut;
+
+    private static void send(Command command, String... fields) throws IOException {
+        if (binary) {
+            try {
+                binaryOut.write(BinaryCodec.encodeCommand(command, (Object[]) fields));
+                binaryOut.flush();
+            } catch (IllegalArgumentException e) {
+                System.out.println("ERROR: Invalid input (" + e.getMessage() + ").");
+            }
+        } else {
+            out.println(fields.length == 0 ? command.name() : command.name() + ":" + String.join(":", fields));
+        }
+    }
+
+    // Next server message as a text-protocol line; null on end of stream.
+    private static String readServerLine() throws IOException {
+        if (!binary) {
+            return in.readLine();
+        }
+        int length;
+        try {
+            length = binaryIn.readUnsignedShort();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] body = new byte[length];
+        binaryIn.readFully(body);
+        return BinaryCodec.render(ByteBuffer.wrap(body));
+    }
+
     // Helper method to validate numeric input
     private static String getValidNumericInput(String prompt) throws IOException {
         while (true) {
@@ -31,8 +70,15 @@ public class Client {
                 ip = "localhost";
             }
             Socket socket = new Socket(ip, 12345);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            binary = args.length > 0 && args[0].equals("--binary");
+            if (binary) {
+                binaryIn = new DataInputStream(socket.getInputStream());
+                binaryOut = socket.getOutputStream();
+                binaryOut.write(BinaryCodec.MAGIC);
+            } else {
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(socket.getOutputStream(), true);
+            }
 
             String userType = null;
             boolean authenticated = false;
@@ -61,12 +107,12 @@ public class Client {
                             System.out.println("Invalid type. Please enter 'customer' or 'driver'.");
                         }
 
-                        out.println("REGISTER:" + username + ":" + password + ":" + type);
+                        send(Command.REGISTER, username, password, type);
 
                         // Wait for registration response
                         String authResponse = null;
                         boolean registrationSuccessful = false;
-                        while ((authResponse = in.readLine()) != null) {
+                        while ((authResponse = readServerLine()) != null) {
                             System.out.println("SERVER: " + authResponse);
 
                             if (authResponse.startsWith("ERROR: Username already exists")) {
@@ -96,11 +142,11 @@ public class Client {
                     System.out.print("Enter password: ");
                     String password = consoleReader.readLine().trim();
 
-                    out.println("LOGIN:" + username + ":" + password);
+                    send(Command.LOGIN, username, password);
 
                     // Read responses until we get a meaningful login response.
                     String authResponse = null;
-                    while ((authResponse = in.readLine()) != null) {
+                    while ((authResponse = readServerLine()) != null) {
                         // Skip over extra registration messages.
                         if (authResponse.startsWith("REGISTERED:") || authResponse.startsWith("INFO:")) {
                             System.out.println("SERVER: " + authResponse);
@@ -135,7 +181,7 @@ public class Client {
             Thread listenerThread = new Thread(() -> {
                 try {
                     String response;
-                    while ((response = in.readLine()) != null) {
+                    while ((response = readServerLine()) != null) {
                         System.out.println("SERVER: " + response);
                         if(response.startsWith("DISCONNECTING")) {
                             shouldDisconnect = true;
@@ -168,14 +214,21 @@ public class Client {
                         String pickup = consoleReader.readLine().trim();
                         System.out.print("Enter destination: ");
                         String destination = consoleReader.readLine().trim();
-                        out.println("REQUEST:" + pickup + ":" + destination);
+                        System.out.print("Enter pickup coordinates as lat,lon (blank to skip): ");
+                        String coords = consoleReader.readLine().trim();
+                        if (Pattern.matches("^-?\\d+(\\.\\d+)?,-?\\d+(\\.\\d+)?$", coords)) {
+                            String[] latLon = coords.split(",");
+                            send(Command.REQUEST, pickup, destination, latLon[0], latLon[1]);
+                        } else {
+                            send(Command.REQUEST, pickup, destination);
+                        }
                     } else if (input.equals("2")) {
-                        out.println("VIEW");
+                        send(Command.VIEW);
                     } else if (input.equals("3")) {
                         String rideId = getValidNumericInput("Enter Ride ID: ");
                         System.out.print("Enter chosen driver username: ");
                         String driverUser = consoleReader.readLine().trim();
-                        out.println("ASSIGN:" + rideId + ":" + driverUser);
+                        send(Command.ASSIGN, rideId, driverUser);
                     } else if (input.equals("4")) {
                         String rideId = getValidNumericInput("Enter Ride ID to rate: ");
                         String behaviourRating;
@@ -207,12 +260,12 @@ public class Client {
 
                         System.out.print("Enter comment: ");
                         String comment = consoleReader.readLine().trim();
-                        out.println("RATE:" + rideId + ":" + behaviourRating + ":" + carRating + ":" + rideRating + ":" + comment);
+                        send(Command.RATE, rideId, behaviourRating, carRating, rideRating, comment);
                     } else if (input.equals("5")) {
                         // Send CANCEL command.
-                        out.println("CANCEL");
+                        send(Command.CANCEL);
                     } else if (input.equals("6")) {
-                        out.println("DISCONNECT");
+                        send(Command.DISCONNECT);
                         Thread.sleep(500);
                         if (shouldDisconnect) break;
                     } else {
@@ -222,21 +275,31 @@ public class Client {
                     System.out.println("\n--- Driver Menu ---");
                     System.out.println("1. Send Offer for a Ride");
                     System.out.println("2. Update Ride Status (START/END)");
-                    System.out.println("3. Disconnect");
+                    System.out.println("3. Update Location");
+                    System.out.println("4. Disconnect");
                     System.out.print("Choice: ");
                     String input = consoleReader.readLine().trim();
 
                     if (input.equals("1")) {
                         String rideId = getValidNumericInput("Enter Ride ID to offer: ");
                         String price = getValidNumericInput("Enter your fare offer: ");
-                        out.println("OFFER:" + rideId + ":" + price);
+                        send(Command.OFFER, rideId, price);
                     } else if (input.equals("2")) {
                         String rideId = getValidNumericInput("Enter Ride ID to update: ");
                         System.out.print("Enter status (START/END): ");
                         String status = consoleReader.readLine().trim();
-                        out.println("UPDATE:" + rideId + ":" + status);
+                        send(Command.UPDATE, rideId, status);
                     } else if (input.equals("3")) {
-                        out.println("DISCONNECT");
+                        System.out.print("Enter your location as lat,lon: ");
+                        String coords = consoleReader.readLine().trim();
+                        if (Pattern.matches("^-?\\d+(\\.\\d+)?,-?\\d+(\\.\\d+)?$", coords)) {
+                            String[] latLon = coords.split(",");
+                            send(Command.LOCATION, latLon[0], latLon[1]);
+                        } else {
+                            System.out.println("ERROR: Please enter coordinates like 30.0444,31.2357.");
+                        }
+                    } else if (input.equals("4")) {
+                        send(Command.DISCONNECT);
                         Thread.sleep(500);
                         if (shouldDisconnect) break;
                     } else {
@@ -246,13 +309,19 @@ public class Client {
                     // Admin menu remains the same
                     System.out.println("\n--- Admin Menu ---");
                     System.out.println("1. View System Statistics");
-                    System.out.println("2. Disconnect");
+                    System.out.println("2. View Server Metrics");
+                    System.out.println("3. View Best Drivers");
+                    System.out.println("4. Disconnect");
                     System.out.print("Choice: ");
                     String input = consoleReader.readLine().trim();
                     if (input.equals("1")) {
-                        out.println("STATS");
+                        send(Command.STATS);
                     } else if (input.equals("2")) {
-                        out.println("DISCONNECT");
+                        send(Command.METRICS);
+                    } else if (input.equals("3")) {
+                        send(Command.TOP);
+                    } else if (input.equals("4")) {
+                        send(Command.DISCONNECT);
                         Thread.sleep(500);
                         if (shouldDisconnect) break;
                     } else {
@@ -1,35 +1,67 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
-
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One client connection and, once logged in, the user's session. Rides and the
+// online sets refer to the session, so when a client reconnects with RESUME the
+// session keeps its identity: only where its messages go changes, and the new
+// connection's handler passes its commands on to the session.
 public class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    // The connection this handler reads commands from.
+    private final Connection transport;
+    // Where this session's messages go: the transport, a SessionBuffer while the
+    // client is offline, or the connection it resumed on.
+    private final AtomicReference<Connection> connection;
+    // Whose commands this handler's transport carries: itself, or a resumed session.
+    private volatile ClientHandler session = this;
+    // Issued at login; RESUME:token reattaches a new connection to this session.
+    private volatile String token;
     private User user; // The logged-in user
-    private boolean running = true;
+    private Role role; // user's role, cached at login
+    private volatile boolean running = true;
 
     // For driver clients: indicates if they are busy with a ride.
-    private boolean busy = false;
+    private volatile boolean busy = false;
 
     // For drivers: track the ride ID for which an offer has been sent.
     // -1 means no current pending offer.
-    private int currentOfferRideId = -1;
+    private final AtomicInteger currentOfferRideId = new AtomicInteger(-1);
+
+    // For drivers: last reported position and its DriverLocationIndex cell.
+    static final long NO_CELL = Long.MIN_VALUE;
+    private volatile double latitude = Double.NaN;
+    private volatile double longitude = Double.NaN;
+    private volatile long locationCell = NO_CELL;
+
+    private static final Message UNKNOWN_COMMAND = Message.of("ERROR: Unknown command.");
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    // This connection's --conn-rate and --auth-rate buckets (see Admission).
+    private final TokenBucket commandLimit = new TokenBucket();
+    private final TokenBucket authLimit = new TokenBucket();
+
+    // Reused per command; only ever touched by the connection's reading thread.
+    private final TextArgs textArgs = new TextArgs();
+    private final BinaryArgs binaryArgs = new BinaryArgs();
 
     public ClientHandler(Socket socket) {
-        this.socket = socket;
-        try {
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-        } catch(IOException e) {
-            System.err.println("ClientHandler error: " + e.getMessage());
-        }
+        this(SocketConnection.open(socket));
+    }
+
+    public ClientHandler(Connection connection) {
+        this.transport = connection;
+        this.connection = new AtomicReference<>(connection);
+        Server.stats.connectionOpened();
     }
 
     public String getUserName() {
-        return user != null ? user.getUsername() : "unknown";
+        User u = session.user;
+        return u != null ? u.getUsername() : "unknown";
     }
 
     public boolean isBusy() {
@@ -41,467 +73,693 @@ public class ClientHandler implements Runnable {
     }
 
     public int getCurrentOfferRideId() {
-        return currentOfferRideId;
+        return currentOfferRideId.get();
     }
 
-    public void clearCurrentOffer() {
-        this.currentOfferRideId = -1;
+    // Hold the driver for one ride, as a pending offer does. False if they already have one.
+    boolean claimForRide(int rideId) {
+        return currentOfferRideId.compareAndSet(-1, rideId);
     }
 
-    public void setCurrentOfferRideId(int rideId) {
-        this.currentOfferRideId = rideId;
+    // Clear the pending offer only if it is still for the given ride.
+    public void clearCurrentOffer(int rideId) {
+        currentOfferRideId.compareAndSet(rideId, -1);
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    long getLocationCell() {
+        return locationCell;
+    }
+
+    // Only DriverLocationIndex should call this, so the grid follows.
+    void setLocation(double latitude, double longitude, long cell) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.locationCell = cell;
     }
 
     public void sendMessage(String msg) {
-        out.println(msg);
+        connection.get().send(Message.of(msg));
+    }
+
+    // Send a pre-built message; lets a broadcast share one encoding.
+    public void sendMessage(Message msg) {
+        connection.get().send(msg);
+    }
+
+    // The current connection's unsent messages; null while the session is offline.
+    OutboundQueue outbound() {
+        return connection.get().outbound();
+    }
+
+    // False once the session has ended (DISCONNECT), so the transport closes.
+    public boolean isRunning() {
+        return session.running;
     }
 
+    // Blocking mode: read commands from the socket on this thread until disconnect.
     @Override
     public void run() {
+        SocketConnection socketConnection = (SocketConnection) transport;
         try {
-            // Authentication loop: remains until a successful login.
-            while (user == null && running) {
-                String authMsg = in.readLine();
-                if (authMsg == null) break;
-                // Expected formats:
-                // Registration: REGISTER:username:password:type
-                // Login: LOGIN:username:password
-                String[] tokens = authMsg.split(":", -1);
-                if (tokens.length < 3) {
-                    out.println("ERROR: Invalid authentication format. Please try again.");
-                    continue;
+            socketConnection.readLoop(this);
+        } catch (IOException e) {
+            ServerLog.warn("IOException in ClientHandler ({}): {}", getUserName(), e.getMessage());
+        } finally {
+            onDisconnect();
+        }
+    }
+
+    // Process one complete text-protocol line (without its newline).
+    public void handleLine(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        handleLine(bytes, 0, bytes.length);
+    }
+
+    // Entry point shared by every server mode: one text line in buf[off, off + len),
+    // tokenized in place. The buffer is only read during the call.
+    public void handleLine(byte[] buf, int off, int len) {
+        long start = System.nanoTime();
+        ClientHandler target = session;
+        Command command;
+        if (target.user == null) {
+            // Authentication: remains until a successful login or RESUME.
+            textArgs.reset(buf, off, len, true);
+            command = textArgs.command();
+            if (!Server.admission.admit(command, commandLimit, authLimit, null)) {
+                sendMessage(Admission.THROTTLED);
+                return;
+            }
+            handleAuth(command, textArgs);
+        } else {
+            if (ServerLog.isDebugEnabled()) {
+                // Copied now: buf is reused once this call returns.
+                ServerLog.debug("From {}: {}", getUserName(), new String(buf, off, len, StandardCharsets.UTF_8));
+            }
+            textArgs.reset(buf, off, len, false);
+            if (textArgs.count() == 0) return;
+            command = textArgs.command();
+            if (!Server.admission.admit(command, commandLimit, authLimit, target.user)) {
+                sendMessage(Admission.THROTTLED);
+                return;
+            }
+            try {
+                target.handleCommand(command, textArgs);
+            } finally {
+                Server.admission.finished(command);
+            }
+        }
+        if (command != null) Server.metrics.commandFinished(command, start);
+    }
+
+    // Binary-protocol counterpart of handleLine: one frame body (opcode + fields).
+    public void handleFrame(byte[] buf, int off, int len) {
+        long start = System.nanoTime();
+        binaryArgs.reset(buf, off, len);
+        Command command = binaryArgs.command();
+        ClientHandler target = session;
+        User user = target.user;
+        if (!Server.admission.admit(command, commandLimit, authLimit, user)) {
+            sendMessage(Admission.THROTTLED);
+            return;
+        }
+        if (user == null) {
+            handleAuth(command, binaryArgs);
+        } else {
+            ServerLog.debug("From {}: {} (binary)", getUserName(), command);
+            try {
+                target.handleCommand(command, binaryArgs);
+            } finally {
+                Server.admission.finished(command);
+            }
+        }
+        if (command != null) Server.metrics.commandFinished(command, start);
+    }
+
+    private void handleAuth(Command command, CommandArgs args) {
+        // Expected formats:
+        // Registration: REGISTER:username:password:type
+        // Login: LOGIN:username:password
+        // Reconnect: RESUME:token
+        if (command == Command.RESUME) {
+            resume(args.count() >= 2 ? args.string(1) : null);
+            return;
+        }
+        if (args.count() < 3) {
+            sendMessage("ERROR: Invalid authentication format. Please try again.");
+            return;
+        }
+        String username = args.string(1);
+        String password = args.string(2);
+
+        if (command == Command.REGISTER) {
+            if (args.count() < 4) {
+                sendMessage("ERROR: Registration requires type. Please try again.");
+                return;
+            }
+            String type = args.string(3);
+            if (type.equalsIgnoreCase("admin")) {
+                sendMessage("ERROR: Cannot register as admin.");
+                return;
+            }
+            // Enforce strict type: only "driver" is accepted; anything else defaults to "customer".
+            if (!type.equalsIgnoreCase("driver")) {
+                type = "customer";
+            }
+            // Accept registration unless the name is already taken (atomic check-and-add).
+            user = new User(username, password, type);
+            if (!Server.users.register(user)) {
+                user = null;
+                sendMessage("ERROR: Username already exists.");
+                return;
+            }
+            Server.wal.logUser(user);
+            ServerLog.info("REGISTERED:{}", username);
+
+            sendMessage("REGISTERED:" + username);
+            sendMessage("INFO: Registration successful. Please log in.");
+            // Reset user to force login.
+            user = null;
+            return;
+        } else if (command == Command.LOGIN) {
+            User found = User.authenticate(username, password);
+            if (found == null) {
+                sendMessage("ERROR: Invalid credentials.");
+                return;
+            } else {
+                user = found;
+                role = found.getRole();
+                ServerLog.info("LOGGEDIN:{}:{}", username, user.getType());
+                addToRoleList();
+                sendMessage("LOGGEDIN:" + username + ":" + user.getType());
+                if (Server.config.sessionTtlMs > 0) {
+                    token = newToken();
+                    Server.sessions.put(token, this);
+                    sendMessage("SESSION:" + token);
+                }
+            }
+        } else {
+            sendMessage("ERROR: Unknown authentication command.");
+            return;
+        }
+    }
+
+    private void handleCommand(Command command, CommandArgs args) {
+        if (command == null) {
+            sendMessage(UNKNOWN_COMMAND);
+            return;
+        }
+        // Permission check up front against the role cached at login.
+        if (command.role != null && command.role != role) {
+            sendMessage(command.denied);
+            return;
+        }
+        switch (command) {
+            case REQUEST:
+                // Format: REQUEST:pickup:destination[:pickupLat:pickupLon]
+                // Check if customer already has an active ride (i.e. not END or CANCELLED).
+                if (Server.rides.getActiveRideForCustomer(this) != null) {
+                    sendMessage("ERROR: You already have an active ride. Cancel it before requesting a new one.");
+                    break;
                 }
-                String command = tokens[0];
-                String username = tokens[1];
-                String password = tokens[2];
-
-                if (command.equalsIgnoreCase("REGISTER")) {
-                    if (tokens.length < 4) {
-                        out.println("ERROR: Registration requires type. Please try again.");
-                        continue;
+                if (args.count() >= 3) {
+                    String pickup = args.string(1);
+                    String destination = args.string(2);
+                    double lat = Double.NaN, lon = Double.NaN;
+                    if (args.count() >= 5) {
+                        try {
+                            lat = args.doubleArg(3);
+                            lon = args.doubleArg(4);
+                        } catch (NumberFormatException nfe) {
+                            sendMessage("ERROR: Invalid pickup coordinates.");
+                            break;
+                        }
+                        if (!validCoordinates(lat, lon)) {
+                            sendMessage("ERROR: Invalid pickup coordinates.");
+                            break;
+                        }
                     }
-                    String type = tokens[3];
-                    if (type.equalsIgnoreCase("admin")) {
-                        out.println("ERROR: Cannot register as admin.");
-                        continue;
+                    Ride ride = new Ride(pickup, destination, this, lat, lon);
+                    if (!Server.rides.add(ride)) {
+                        sendMessage("ERROR: You already have an active ride. Cancel it before requesting a new one.");
+                        break;
                     }
-                    // Enforce strict type: only "driver" is accepted; anything else defaults to "customer".
-                    if (!type.equalsIgnoreCase("driver")) {
-                        type = "customer";
+                    sendMessage(Message.requestReceived(ride.getRideId()));
+                    // Leave it to the batch matcher, or notify nearby (or all) available drivers.
+                    if (!Server.matcher.submit(ride)) {
+                        RideDispatcher.dispatch(ride);
+                        OfferAuction.start(ride);
                     }
-                    if (User.userExists(username)) {
-                        out.println("ERROR: Username already exists.");
-                        continue;
+                } else {
+                    sendMessage("ERROR: Invalid REQUEST format. Provide pickup and destination.");
+                }
+                break;
+
+            case VIEW:
+                // Find the ride requested by this customer that is still active.
+                Ride activeRide = Server.rides.getActiveRideForCustomer(this);
+                if (activeRide != null) {
+                    sendMessage(Message.status(activeRide.getRideId(), activeRide.getStatus()));
+                } else {
+                    sendMessage("INFO: No current active ride.");
+                }
+                break;
+
+            // In the method for handling OFFER command
+            case OFFER:
+                int pendingRideId = currentOfferRideId.get();
+                if (pendingRideId != -1) {
+                    sendMessage("ERROR: You have already sent an offer for ride " + pendingRideId + ". Cannot send another offer.");
+                    break;
+                }
+                if (args.count() >= 3) {
+                    int rideId;
+                    double price;
+                    try {
+                        rideId = args.intArg(1);
+                        price = args.doubleArg(2);
+                    } catch (NumberFormatException nfe) {
+                        sendMessage("ERROR: Invalid rideId or price.");
+                        break;
                     }
-                    // Accept registration.
-                    user = new User(username, password, type);
-                    Server.users.add(user);
-                    System.out.println("REGISTERED:" + username);
-
-                    out.println("REGISTERED:" + username);
-                    out.println("INFO: Registration successful. Please log in.");
-                    // Reset user to force login.
-                    user = null;
-                    continue;
-                } else if (command.equalsIgnoreCase("LOGIN")) {
-                    User found = User.authenticate(username, password);
-                    if (found == null) {
-                        out.println("ERROR: Invalid credentials.");
-                        continue;
+                    Ride ride = Ride.getRideById(rideId);
+                    // Mark the pending offer before publishing it, so an ASSIGN or CANCEL
+                    // that sees the offer is guaranteed to clear it again.
+                    if (ride != null && currentOfferRideId.compareAndSet(-1, rideId)) {
+                        if (!ride.addOffer(this, price)) {
+                            clearCurrentOffer(rideId);
+                            sendMessage("ERROR: Ride not found or already assigned.");
+                            break;
+                        }
+                        sendMessage("OFFER_SENT for ride " + rideId);
+                        // Notify the customer with all current offers.
+                        ride.notifyCustomerOffers();
                     } else {
-                        user = found;
-                        System.out.println("LOGGEDIN:" + username + ":" + user.getType());
-                        addToRoleList();
-                        out.println("LOGGEDIN:" + username + ":" + user.getType());
+                        sendMessage("ERROR: Ride not found or already assigned.");
                     }
                 } else {
-                    out.println("ERROR: Unknown authentication command.");
-                    continue;
+                    sendMessage("ERROR: Invalid OFFER format. Provide rideId and price.");
                 }
-            }
-
-            // Main loop for handling commands after authentication.
-            String line;
-            while (running && (line = in.readLine()) != null) {
-                System.out.println("From " + getUserName() + ": " + line);
-                String[] tokens = line.split(":");
-                if (tokens.length == 0) continue;
-                String command = tokens[0];
-                switch (command.toUpperCase()) {
-                    case "REQUEST":
-                        // Format: REQUEST:pickup:destination
-                        if (user.getType().equalsIgnoreCase("customer")) {
-                            // Check if customer already has an active ride (i.e. not END or CANCELLED).
-                            boolean hasActiveRide = Server.rides.stream()
-                                    .anyMatch(r -> r.getCustomerHandler() == this &&
-                                            !(r.getStatus().equals("END") || r.getStatus().equals("CANCELLED")));
-                            if (hasActiveRide) {
-                                out.println("ERROR: You already have an active ride. Cancel it before requesting a new one.");
-                                break;
-                            }
-                            if (tokens.length >= 3) {
-                                String pickup = tokens[1];
-                                String destination = tokens[2];
-                                Ride ride = new Ride(pickup, destination, this);
-                                Server.rides.add(ride);
-                                out.println("REQUEST_RECEIVED:" + ride.getRideId());
-                                // Broadcast to available drivers.
-                                broadcastRideRequest(ride);
-                            } else {
-                                out.println("ERROR: Invalid REQUEST format. Provide pickup and destination.");
-                            }
-                        } else {
-                            out.println("ERROR: Only customers can request rides.");
-                        }
+                break;
+
+            case LOCATION:
+                // Format: LOCATION:lat:lon
+                // Sent frequently by drivers; no reply on success to keep pings cheap.
+                if (args.count() >= 3) {
+                    double lat, lon;
+                    try {
+                        lat = args.doubleArg(1);
+                        lon = args.doubleArg(2);
+                    } catch (NumberFormatException nfe) {
+                        sendMessage("ERROR: Invalid coordinates.");
                         break;
-
-                    case "VIEW":
-                        // Only customers can view ride status.
-                        if (user.getType().equalsIgnoreCase("customer")) {
-                            // Find the most recent ride requested by this customer that is still active.
-                            Ride currentRide = Server.rides.stream()
-                                    .filter(r -> r.getCustomerHandler() == this &&
-                                            !(r.getStatus().equals("END") || r.getStatus().equals("CANCELLED")))
-                                    .sorted((r1, r2) -> Integer.compare(r2.getRideId(), r1.getRideId())) // sort descending by rideId
-                                    .findFirst().orElse(null);
-                            if (currentRide != null) {
-                                out.println("STATUS:" + currentRide.getRideId() + ":" + currentRide.getStatus());
-                            } else {
-                                out.println("INFO: No current active ride.");
-                            }
-                        } else {
-                            out.println("ERROR: Only customers can view ride status.");
-                        }
+                    }
+                    if (!validCoordinates(lat, lon)) {
+                        sendMessage("ERROR: Invalid coordinates.");
                         break;
-
-                    // In the method for handling OFFER command
-                    case "OFFER":
-                        if (user.getType().equalsIgnoreCase("driver")) {
-                            if (currentOfferRideId != -1) {
-                                out.println("ERROR: You have already sent an offer for ride " + currentOfferRideId + ". Cannot send another offer.");
-                                break;
-                            }
-                            if (tokens.length >= 3) {
-                                int rideId;
-                                double price;
-                                try {
-                                    rideId = Integer.parseInt(tokens[1]);
-                                    price = Double.parseDouble(tokens[2]);
-                                } catch (NumberFormatException nfe) {
-                                    out.println("ERROR: Invalid rideId or price.");
-                                    break;
-                                }
-                                Ride ride = Ride.getRideById(rideId);
-                                if (ride != null && !ride.isAssigned()) {
-                                    ride.addOffer(this, price);
-                                    // Mark that this driver has a pending offer for this ride.
-                                    setCurrentOfferRideId(rideId);
-                                    out.println("OFFER_SENT for ride " + rideId);
-                                    // Notify the customer with all current offers.
-                                    ride.notifyCustomerOffers();
-                                } else {
-                                    out.println("ERROR: Ride not found or already assigned.");
-                                }
-                            } else {
-                                out.println("ERROR: Invalid OFFER format. Provide rideId and price.");
-                            }
-                        } else {
-                            out.println("ERROR: Only drivers can offer rides.");
-                        }
+                    }
+                    Server.driverLocations.update(this, lat, lon);
+                } else {
+                    sendMessage("ERROR: Invalid LOCATION format. Provide latitude and longitude.");
+                }
+                break;
+
+            case ASSIGN:
+                // Format: ASSIGN:rideId:driverUsername
+                if (args.count() >= 3) {
+                    int rideId;
+                    try {
+                        rideId = args.intArg(1);
+                    } catch (NumberFormatException nfe) {
+                        sendMessage("ERROR: Invalid rideId.");
                         break;
-
-                    case "ASSIGN":
-                        // Format: ASSIGN:rideId:driverUsername
-                        if (user.getType().equalsIgnoreCase("customer")) {
-                            if (tokens.length >= 3) {
-                                int rideId;
-                                try {
-                                    rideId = Integer.parseInt(tokens[1]);
-                                } catch (NumberFormatException nfe) {
-                                    out.println("ERROR: Invalid rideId.");
-                                    break;
-                                }
-                                // Check if this ride was actually requested by this customer.
-                                Ride ride = Ride.getRideById(rideId);
-                                if (ride == null || ride.getCustomerHandler() != this) {
-                                    out.println("ERROR: You are not authorized to assign ride " + rideId + ".");
-                                    break;
-                                }
-                                String driverUsername = tokens[2];
-                                if (!ride.isAssigned()) {
-                                    ClientHandler chosenDriver = ride.assignDriver(driverUsername);
-                                    if (chosenDriver != null) {
-                                        ride.setAssigned(true);
-                                        out.println("RIDE_ASSIGNED:Driver " + driverUsername);
-                                        chosenDriver.sendMessage("ASSIGNED:" + rideId + ":You have been assigned a ride.");
-                                        chosenDriver.setBusy(true);
-                                        // Clear pending offers for this ride.
-                                        for (ClientHandler driverHandler : Server.drivers) {
-                                            if (driverHandler.getCurrentOfferRideId() == rideId) {
-                                                driverHandler.clearCurrentOffer();
-                                            }
-                                        }
-                                    } else {
-                                        out.println("ERROR: Driver not found in offers.");
-                                    }
-                                } else {
-                                    out.println("ERROR: Ride already assigned.");
-                                }
-                            } else {
-                                out.println("ERROR: Invalid ASSIGN format. Provide rideId and driver username.");
-                            }
-                        } else {
-                            out.println("ERROR: Only customers can assign rides.");
-                        }
+                    }
+                    // Check if this ride was actually requested by this customer.
+                    Ride ride = Ride.getRideById(rideId);
+                    if (ride == null || !ride.belongsTo(this)) {
+                        sendMessage("ERROR: You are not authorized to assign ride " + rideId + ".");
                         break;
-
-                    case "UPDATE":
-                        // Format: UPDATE:rideId:status (status can be START or END only)
-                        if (user.getType().equalsIgnoreCase("driver")) {
-                            if (tokens.length >= 3) {
-                                int rideId;
-                                try {
-                                    rideId = Integer.parseInt(tokens[1]);
-                                } catch (NumberFormatException nfe) {
-                                    out.println("ERROR: Invalid rideId.");
-                                    break;
-                                }
-                                String newStatus = tokens[2].toUpperCase();
-                                // Allow only "START" or "END"
-                                if (!newStatus.equals("START") && !newStatus.equals("END")) {
-                                    out.println("ERROR: Invalid status. Only START or END allowed.");
-                                    break;
-                                }
-                                Ride ride = Ride.getRideById(rideId);
-                                if (ride != null) {
-                                    // Check that the driver sending update is the one assigned to this ride.
-                                    if (ride.getAssignedDriver() == null ||
-                                            !ride.getAssignedDriver().getUser().getUsername().equalsIgnoreCase(getUserName())) {
-                                        out.println("ERROR: You are not assigned to ride " + rideId + ". Cannot update its status.");
-                                        break;
-                                    }
-                                    // If newStatus is START, ensure the ride is not already started.
-                                    if (newStatus.equals("START") && ride.getStatus().equals("START")) {
-                                        out.println("ERROR: Ride " + rideId + " is already started.");
-                                        break;
-                                    }
-                                    // If newStatus is END, ensure the ride was started.
-                                    if (newStatus.equals("END") && !ride.getStatus().equals("START")) {
-                                        out.println("ERROR: Ride " + rideId + " must be started before ending.");
-                                        break;
-                                    }
-                                    ride.updateStatus(newStatus);
-                                    // Notify the customer.
-                                    ride.getCustomerHandler().sendMessage("UPDATE:" + rideId + ":" + newStatus);
-                                    // Mark driver as not busy after END.
-                                    if (newStatus.equals("END")) {
-                                        setBusy(false);
-                                    }
-                                    out.println("STATUS_UPDATED:" + rideId + ":" + newStatus);
-                                } else {
-                                    out.println("ERROR: Ride not found.");
-                                }
-                            } else {
-                                out.println("ERROR: Invalid UPDATE format. Provide rideId and status.");
-                            }
+                    }
+                    String driverUsername = args.string(2);
+                    if (!ride.isAssigned()) {
+                        ClientHandler chosenDriver = Server.rides.assign(ride, driverUsername);
+                        if (chosenDriver != null) {
+                            // Notifies both sides and clears pending offers for this ride.
+                            ride.notifyAssigned(chosenDriver);
+                        } else if (ride.getStatus() != RideStatus.REQUESTED) {
+                            sendMessage("ERROR: Ride already assigned.");
                         } else {
-                            out.println("ERROR: Only drivers can update ride status.");
+                            sendMessage("ERROR: Driver not found in offers.");
                         }
+                    } else {
+                        sendMessage("ERROR: Ride already assigned.");
+                    }
+                } else {
+                    sendMessage("ERROR: Invalid ASSIGN format. Provide rideId and driver username.");
+                }
+                break;
+
+            case UPDATE:
+                // Format: UPDATE:rideId:status (status can be START or END only)
+                if (args.count() >= 3) {
+                    int rideId;
+                    try {
+                        rideId = args.intArg(1);
+                    } catch (NumberFormatException nfe) {
+                        sendMessage("ERROR: Invalid rideId.");
                         break;
-
-                    case "RATE":
-                        // Format: RATE:rideId:behaviourRating:carRating:rideRating:comment
-                        if (user.getType().equalsIgnoreCase("customer")) {
-                            if (tokens.length >= 6) {
-                                int rideId, behaviourRating, carRating, rideRating;
-                                try {
-                                    rideId = Integer.parseInt(tokens[1]);
-                                    behaviourRating = Integer.parseInt(tokens[2]);
-                                    carRating = Integer.parseInt(tokens[3]);
-                                    rideRating = Integer.parseInt(tokens[4]);
-                                } catch (NumberFormatException nfe) {
-                                    out.println("ERROR: Invalid rideId or rating values.");
-                                    break;
-                                }
-                                // Validate rating range.
-                                if (behaviourRating < 1 || behaviourRating > 5 ||
-                                        carRating < 1 || carRating > 5 ||
-                                        rideRating < 1 || rideRating > 5) {
-                                    out.println("ERROR: Ratings must be between 1 and 5.");
-                                    break;
-                                }
-                                String comment = tokens[5];
-                                Ride ride = Ride.getRideById(rideId);
-                                if (ride == null) {
-                                    out.println("ERROR: Ride not found.");
-                                    break;
-                                }
-                                // Ensure that the ride was requested by this customer.
-                                if (ride.getCustomerHandler() != this) {
-                                    out.println("ERROR: You are not authorized to rate ride " + rideId + ".");
-                                    break;
-                                }
-                                // Ensure that the ride has ended before rating.
-                                if (!ride.getStatus().equals("END")) {
-                                    out.println("ERROR: Ride must be ended before rating.");
-                                    break;
-                                }
-                                // Ensure the ride hasn't been rated already.
-                                if (ride.isRated()) {
-                                    out.println("ERROR: Ride has already been rated.");
-                                    break;
-                                }
-                                // Mark the ride as rated.
-                                ride.setRated(true);
-                                // Calculate overall rating as the average.
-                                double overallRating = (behaviourRating + carRating + rideRating) / 3.0;
-                                ClientHandler driverHandler = ride.getAssignedDriver();
-                                driverHandler.getUser().addRating((int) overallRating);
-                                String ratingMessage = "RATED: Ride " + rideId +
-                                        " rated with Behaviour: " + behaviourRating +
-                                        ", Car: " + carRating +
-                                        ", Ride: " + rideRating +
-                                        ". Comment: " + comment +
-                                        ". Overall new rating: " + driverHandler.getUser().getRating();
-                                out.println(ratingMessage);
-                                driverHandler.sendMessage(ratingMessage);
+                    }
+                    String newStatus = args.string(2).toUpperCase();
+                    // Allow only "START" or "END"
+                    if (!newStatus.equals("START") && !newStatus.equals("END")) {
+                        sendMessage("ERROR: Invalid status. Only START or END allowed.");
+                        break;
+                    }
+                    RideStatus target = RideStatus.valueOf(newStatus);
+                    Ride ride = Ride.getRideById(rideId);
+                    if (ride != null) {
+                        // Check that the driver sending update is the one assigned to this ride.
+                        // By name, so finished rides read back from the archive answer the same way.
+                        String assignedName = ride.getAssignedDriverName();
+                        if (assignedName == null || !assignedName.equalsIgnoreCase(getUserName())) {
+                            sendMessage("ERROR: You are not assigned to ride " + rideId + ". Cannot update its status.");
+                            break;
+                        }
+                        // START is only valid from ASSIGNED, END only from START.
+                        RideStatus from = (target == RideStatus.START) ? RideStatus.ASSIGNED : RideStatus.START;
+                        if (!Server.rides.transition(ride, from, target)) {
+                            RideStatus current = ride.getStatus();
+                            if (target == RideStatus.START && current == RideStatus.START) {
+                                sendMessage("ERROR: Ride " + rideId + " is already started.");
+                            } else if (target == RideStatus.END && current != RideStatus.START) {
+                                sendMessage("ERROR: Ride " + rideId + " must be started before ending.");
                             } else {
-                                out.println("ERROR: Invalid RATE format. Provide rideId, behaviourRating, carRating, rideRating, and comment.");
+                                sendMessage("ERROR: Ride " + rideId + " is " + current + "; cannot change to " + target + ".");
                             }
-                        } else {
-                            out.println("ERROR: Only customers can rate drivers.");
+                            break;
+                        }
+                        // Notify the customer, if online.
+                        ClientHandler customer = ride.currentCustomer();
+                        if (customer != null) {
+                            customer.sendMessage(Message.rideUpdate(rideId, target));
                         }
+                        // Mark driver as not busy after END.
+                        if (target == RideStatus.END) {
+                            setBusy(false);
+                        }
+                        sendMessage("STATUS_UPDATED:" + rideId + ":" + newStatus);
+                    } else {
+                        sendMessage("ERROR: Ride not found.");
+                    }
+                } else {
+                    sendMessage("ERROR: Invalid UPDATE format. Provide rideId and status.");
+                }
+                break;
+
+            case RATE:
+                // Format: RATE:rideId:behaviourRating:carRating:rideRating:comment
+                if (args.count() >= 6) {
+                    int rideId, behaviourRating, carRating, rideRating;
+                    try {
+                        rideId = args.intArg(1);
+                        behaviourRating = args.intArg(2);
+                        carRating = args.intArg(3);
+                        rideRating = args.intArg(4);
+                    } catch (NumberFormatException nfe) {
+                        sendMessage("ERROR: Invalid rideId or rating values.");
+                        break;
+                    }
+                    // Validate rating range.
+                    if (behaviourRating < 1 || behaviourRating > 5 ||
+                            carRating < 1 || carRating > 5 ||
+                            rideRating < 1 || rideRating > 5) {
+                        sendMessage("ERROR: Ratings must be between 1 and 5.");
+                        break;
+                    }
+                    String comment = args.string(5);
+                    Ride ride = Ride.getRideById(rideId);
+                    if (ride == null) {
+                        sendMessage("ERROR: Ride not found.");
+                        break;
+                    }
+                    // Ensure that the ride was requested by this customer.
+                    if (!ride.belongsTo(this)) {
+                        sendMessage("ERROR: You are not authorized to rate ride " + rideId + ".");
                         break;
+                    }
+                    // Ensure that the ride has ended before rating.
+                    if (ride.getStatus() != RideStatus.END) {
+                        sendMessage("ERROR: Ride must be ended before rating.");
+                        break;
+                    }
+                    // Mark the ride as rated; fails if it has been rated already.
+                    if (!ride.markRated()) {
+                        sendMessage("ERROR: Ride has already been rated.");
+                        break;
+                    }
+                    // By name, so rides recovered from the log (no driver handler) can be rated too.
+                    User driver = Server.users.get(ride.getAssignedDriverName());
+                    Server.ratings.record(driver, behaviourRating, carRating, rideRating);
+                    Server.wal.logRating(rideId, driver.getUsername(), behaviourRating, carRating, rideRating, comment);
+                    String ratingMessage = "RATED: Ride " + rideId +
+                            " rated with Behaviour: " + behaviourRating +
+                            ", Car: " + carRating +
+                            ", Ride: " + rideRating +
+                            ". Comment: " + comment +
+                            ". Overall new rating: " + driver.getRating();
+                    sendMessage(ratingMessage);
+                    // Archived and recovered rides keep no handler: reach the driver by account.
+                    ClientHandler driverHandler = ride.getAssignedDriver();
+                    if (driverHandler == null) driverHandler = driver.getHandler();
+                    if (driverHandler != null) {
+                        driverHandler.sendMessage(ratingMessage);
+                    }
+                } else {
+                    sendMessage("ERROR: Invalid RATE format. Provide rideId, behaviourRating, carRating, rideRating, and comment.");
+                }
+                break;
 
 
-                    case "CANCEL":
-                        // Only customers can cancel their active ride.
-                        if (user.getType().equalsIgnoreCase("customer")) {
-                            // Find the latest active ride for this customer (ride not END or CANCELLED).
-                            Ride currentRide = Server.rides.stream()
-                                    .filter(r -> r.getCustomerHandler() == this &&
-                                            !(r.getStatus().equals("END") || r.getStatus().equals("CANCELLED")))
-                                    .sorted((r1, r2) -> Integer.compare(r2.getRideId(), r1.getRideId()))
-                                    .findFirst().orElse(null);
-                            if (currentRide != null) {
-                                // Allow cancellation only if ride is not already started.
-                                if (currentRide.getStatus().equals("START")) {
-                                    out.println("ERROR: Ride already started; cannot cancel.");
-                                } else {
-                                    currentRide.updateStatus("CANCELLED");
-                                    out.println("Ride " + currentRide.getRideId() + " has been cancelled.");
-                                    // Notify assigned driver if any, and mark driver as not busy.
-                                    if (currentRide.getAssignedDriver() != null) {
-                                        currentRide.getAssignedDriver().setBusy(false);
-                                    }
-                                    // Clear pending offers for this ride from all drivers.
-                                    for (ClientHandler driverHandler : Server.drivers) {
-                                        if (driverHandler.getCurrentOfferRideId() == currentRide.getRideId()) {
-                                            driverHandler.clearCurrentOffer();
-                                        }
-                                        // Broadcast cancellation update to all drivers.
-                                        driverHandler.sendMessage("UPDATE:" + currentRide.getRideId() + ":CANCELLED");
-                                    }
-                                }
-                            } else {
-                                out.println("INFO: No active ride to cancel.");
-                            }
-                        } else {
-                            out.println("ERROR: Only customers can cancel rides.");
+            case CANCEL:
+                // Find the active ride for this customer (ride not END or CANCELLED).
+                Ride currentRide = Server.rides.getActiveRideForCustomer(this);
+                if (currentRide != null) {
+                    // Allow cancellation only if ride is not already started.
+                    if (!Server.rides.cancel(currentRide)) {
+                        sendMessage("ERROR: Ride already started; cannot cancel.");
+                    } else {
+                        sendMessage("Ride " + currentRide.getRideId() + " has been cancelled.");
+                        // Notify assigned driver if any, and mark driver as not busy.
+                        if (currentRide.getAssignedDriver() != null) {
+                            currentRide.getAssignedDriver().setBusy(false);
                         }
+                        // Clear pending offers for this ride.
+                        currentRide.releaseOffers();
+                        // Tell the drivers who were sent the ride or offered on it.
+                        currentRide.publish(Message.rideUpdate(currentRide.getRideId(), RideStatus.CANCELLED));
+                    }
+                } else {
+                    sendMessage("INFO: No active ride to cancel.");
+                }
+                break;
+
+
+
+            case STATS:
+                // Every figure is a maintained counter: no pass over users or rides.
+                StringBuilder stats = new StringBuilder("STATS:");
+                stats.append("Total Users: ").append(Server.users.size()).append(" | ");
+                stats.append("Total Customers: ").append(Server.customers.size()).append(" | ");
+                stats.append("Total Drivers: ").append(Server.drivers.size()).append(" | ");
+                stats.append("Total Admins: ").append(Server.users.countByRole(Role.ADMIN)).append(" | ");
+                stats.append("Total Rides: ").append(Server.rides.size()).append(" | ");
+                stats.append("Ride Statuses [REQUESTED:").append(Server.rides.countByStatus(RideStatus.REQUESTED))
+                        .append(", ASSIGNED:").append(Server.rides.countByStatus(RideStatus.ASSIGNED))
+                        .append(", START:").append(Server.rides.countByStatus(RideStatus.START))
+                        .append(", END:").append(Server.rides.countByStatus(RideStatus.END))
+                        .append(", CANCELLED:").append(Server.rides.countByStatus(RideStatus.CANCELLED)).append("] | ");
+                stats.append("Active Connections: ").append(Server.stats.activeConnections()).append(" | ");
+                stats.append(String.format(Locale.ROOT, "Rides/s: %.2f", Server.stats.ridesPerSecond())).append(" | ");
+                stats.append("Uptime: ").append(Server.stats.uptimeSeconds()).append("s");
+                sendMessage(stats.toString());
+                break;
+
+            case METRICS:
+                sendMessage(Server.metrics.render());
+                break;
+
+            case TOP:
+                // Format: TOP[:k] -- the k best rated drivers, 10 by default.
+                int k = 10;
+                if (args.count() >= 2) {
+                    try {
+                        k = args.intArg(1);
+                    } catch (NumberFormatException nfe) {
+                        k = 0;
+                    }
+                    if (k < 1 || k > 100) {
+                        sendMessage("ERROR: Provide a number of drivers between 1 and 100.");
                         break;
+                    }
+                }
+                sendMessage(topDrivers(k));
+                break;
 
+            case DISCONNECT:
+                // Prevent disconnect if in an ongoing ride.
+                if (isInOngoingRide()) {
+                    sendMessage("ERROR: You are in an ongoing ride, cannot disconnect.");
+                } else {
+                    sendMessage("DISCONNECTING");
+                    running = false;
+                }
+                break;
+
+            default:
+                sendMessage(UNKNOWN_COMMAND);
+        }
+    }
 
+    // Called once when the transport goes away, whatever the server mode.
+    public void onDisconnect() {
+        transport.close();
+        Server.stats.connectionClosed();
+        session.transportLost(transport);
+    }
 
-                    case "STATS":
-                        if (user.getType().equalsIgnoreCase("admin")) {
-                            long adminCount = Server.users.stream()
-                                    .filter(u -> u.getType().equalsIgnoreCase("admin"))
-                                    .count();
-                            StringBuilder stats = new StringBuilder("STATS:");
-                            stats.append("Total Users: ").append(Server.users.size()).append(" | ");
-                            stats.append("Total Customers: ").append(Server.customers.size()).append(" | ");
-                            stats.append("Total Drivers: ").append(Server.drivers.size()).append(" | ");
-                            stats.append("Total Admins: ").append(adminCount).append(" | ");
-                            stats.append("Total Rides: ").append(Server.rides.size()).append(" | ");
-                            long requested = Server.rides.stream().filter(r -> r.getStatus().equals("REQUESTED")).count();
-                            long assigned = Server.rides.stream().filter(r -> r.getStatus().equals("ASSIGNED")).count();
-                            long started = Server.rides.stream().filter(r -> r.getStatus().equals("START")).count();
-                            long ended = Server.rides.stream().filter(r -> r.getStatus().equals("END")).count();
-                            stats.append("Ride Statuses [REQUESTED:").append(requested)
-                                    .append(", ASSIGNED:").append(assigned)
-                                    .append(", START:").append(started)
-                                    .append(", END:").append(ended).append("]");
-                            out.println(stats.toString());
-                        } else {
-                            out.println("ERROR: Only admin can view statistics.");
-                        }
-                        break;
+    // A transport of this session closed. If the client said DISCONNECT, or has
+    // no session token, the session ends. Otherwise it stays for --session-ttl-ms,
+    // offline, with its messages buffered for a RESUME.
+    private void transportLost(Connection lost) {
+        if (!running || token == null) {
+            if (connection.get() == lost) endSession();
+            return;
+        }
+        SessionBuffer buffer = new SessionBuffer(Server.config.sessionBufferCapacity);
+        if (!connection.compareAndSet(lost, buffer)) return; // RESUME already moved it elsewhere
+        goOffline();
+        if (connection.get() != buffer) goOnline(); // resumed in the meantime
+        buffer.setExpiry(Server.timer.schedule(() -> {
+            if (buffer.expire()) endSession();
+        }, Server.config.sessionTtlMs));
+        ServerLog.info("Connection lost for user: {}; session kept for resume", getUserName());
+    }
 
-                    case "DISCONNECT":
-                        // Prevent disconnect if in an ongoing ride.
-                        if (isInOngoingRide()) {
-                            out.println("ERROR: You are in an ongoing ride, cannot disconnect.");
-                        } else {
-                            out.println("DISCONNECTING");
-                            running = false;
-                        }
-                        break;
+    private void endSession() {
+        running = false;
+        if (token != null) Server.sessions.remove(token, this);
+        removeFromRoleList();
+        ServerLog.info("Connection closed for user: {}", getUserName());
+    }
 
-                    default:
-                        out.println("ERROR: Unknown command.");
+    // RESUME:token on a connection that has not logged in: from now on its
+    // commands act as the session, and the session's messages come here.
+    private void resume(String resumeToken) {
+        ClientHandler resumed = resumeToken != null ? Server.sessions.get(resumeToken) : null;
+        if (resumed == null || !resumed.reattach(transport)) {
+            sendMessage("ERROR: Session expired. Please log in again.");
+            return;
+        }
+        session = resumed;
+        ServerLog.info("RESUMED:{}", resumed.getUserName());
+    }
+
+    // Point this session's messages at a new connection: replay the offline buffer
+    // into it, or take over from a connection the client has given up on.
+    private boolean reattach(Connection next) {
+        Message greeting = Message.of("RESUMED:" + user.getUsername() + ":" + user.getType());
+        while (running) {
+            Connection current = connection.get();
+            if (current instanceof SessionBuffer) {
+                SessionBuffer buffer = (SessionBuffer) current;
+                if (buffer.resumeTo(next, greeting)) {
+                    connection.set(next);
+                    goOnline();
+                    return true;
                 }
+                if (buffer.isExpired()) return false;
+                Thread.onSpinWait(); // another RESUME is switching over
+            } else if (connection.compareAndSet(current, next)) {
+                next.send(greeting);
+                current.close();
+                return true;
             }
-        } catch (IOException e) {
-            System.err.println("IOException in ClientHandler (" + getUserName() + "): " + e.getMessage());
-        } finally {
-            try {
-                socket.close();
-            } catch(IOException e) { }
-            removeFromRoleList();
-            System.out.println("Connection closed for user: " + getUserName());
         }
+        return false;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        TOKENS.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
     }
 
     // Check if this client is in an ongoing ride (status START).
     private boolean isInOngoingRide() {
-        return Server.rides.stream().anyMatch(r ->
-                ((r.getCustomerHandler() == this || (r.getAssignedDriver() != null && r.getAssignedDriver() == this))
-                        && r.getStatus().equals("START")));
+        Ride asCustomer = Server.rides.getActiveRideForCustomer(this);
+        if (asCustomer != null && asCustomer.getStatus() == RideStatus.START) return true;
+        Ride asDriver = Server.rides.getActiveRideForDriver(this);
+        return asDriver != null && asDriver.getStatus() == RideStatus.START;
     }
 
     private void addToRoleList() {
-        if (user.getType().equalsIgnoreCase("driver")) {
-            Server.drivers.add(this);
-        } else if (user.getType().equalsIgnoreCase("customer")) {
-            Server.customers.add(this);
-        }
+        user.loggedIn(this);
+        goOnline();
     }
 
     private void removeFromRoleList() {
         if (user != null) {
-            if (user.getType().equalsIgnoreCase("driver")) {
-                Server.drivers.remove(this);
-            } else if (user.getType().equalsIgnoreCase("customer")) {
-                Server.customers.remove(this);
-            }
+            user.loggedOut(this);
+            goOffline();
         }
     }
 
-    private void broadcastRideRequest(Ride ride) {
-        // Send ride request to all free drivers.
-        boolean anyDriverAvailable = false;
-        for (ClientHandler driverHandler : Server.drivers) {
-            if (!driverHandler.isBusy()) {
-                driverHandler.sendMessage("NEW_RIDE:" + ride.getRideId() + ":" + ride.getPickup() + ":" + ride.getDestination());
-                anyDriverAvailable = true;
-            }
+    // Online users get NEW_RIDE broadcasts and can be assigned; an offline driver
+    // also leaves the location grid until it reports a position again.
+    private void goOnline() {
+        if (role == Role.DRIVER) {
+            Server.drivers.add(this);
+        } else if (role == Role.CUSTOMER) {
+            Server.customers.add(this);
         }
-        if (!anyDriverAvailable) {
-            ride.getCustomerHandler().sendMessage("INFO: No drivers are currently available.");
+    }
+
+    private void goOffline() {
+        if (role == Role.DRIVER) {
+            Server.drivers.remove(this);
+            Server.driverLocations.remove(this);
+        } else if (role == Role.CUSTOMER) {
+            Server.customers.remove(this);
         }
     }
 
+    // "TOP:1. name 4.67 (behaviour 4.50, car 4.80, ride 4.70; 12 ratings) | 2. ..."
+    private static String topDrivers(int k) {
+        StringBuilder top = new StringBuilder("TOP:");
+        int place = 0;
+        for (DriverRatings.Entry entry : Server.ratings.top(k)) {
+            RatingAggregate ratings = entry.driver.getRatings();
+            if (place > 0) top.append(" | ");
+            top.append(++place).append(". ").append(entry.driver.getUsername())
+                    .append(String.format(Locale.ROOT, " %.2f (behaviour %.2f, car %.2f, ride %.2f; %d ratings)",
+                            ratings.mean(), ratings.mean(RatingAggregate.BEHAVIOUR),
+                            ratings.mean(RatingAggregate.CAR), ratings.mean(RatingAggregate.RIDE), entry.count));
+        }
+        if (place == 0) top.append("No rated drivers yet.");
+        return top.toString();
+    }
+
+    private static boolean validCoordinates(double lat, double lon) {
+        return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+    }
+
     public User getUser() {
         return user;
     }
@@ -0,0 +1,72 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Client-to-server commands. The opcode is the command's id in the binary protocol;
+// role is who may use it once logged in (null: anyone).
+public enum Command {
+    REGISTER(1, null, null),
+    LOGIN(2, null, null),
+    REQUEST(3, Role.CUSTOMER, "ERROR: Only customers can request rides."),
+    VIEW(4, Role.CUSTOMER, "ERROR: Only customers can view ride status."),
+    OFFER(5, Role.DRIVER, "ERROR: Only drivers can offer rides."),
+    ASSIGN(6, Role.CUSTOMER, "ERROR: Only customers can assign rides."),
+    UPDATE(7, Role.DRIVER, "ERROR: Only drivers can update ride status."),
+    RATE(8, Role.CUSTOMER, "ERROR: Only customers can rate drivers."),
+    CANCEL(9, Role.CUSTOMER, "ERROR: Only customers can cancel rides."),
+    STATS(10, Role.ADMIN, "ERROR: Only admin can view statistics."),
+    DISCONNECT(11, null, null),
+    LOCATION(12, Role.DRIVER, "ERROR: Only drivers can report a location."),
+    METRICS(13, Role.ADMIN, "ERROR: Only admin can view metrics."),
+    TOP(14, Role.ADMIN, "ERROR: Only admin can view the driver leaderboard."),
+    RESUME(15, null, null);
+
+    public final byte opcode;
+    public final Role role;
+    // Reply when a user with another role sends this command; built once.
+    final Message denied;
+    private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+    private static final Command[] BY_OPCODE = new Command[128];
+    // Names bucketed by length, so a lookup compares against one or two candidates.
+    private static final Command[][] BY_LENGTH = new Command[16][0];
+
+    static {
+        for (Command c : values()) {
+            BY_OPCODE[c.opcode] = c;
+            Command[] bucket = BY_LENGTH[c.name.length];
+            Command[] grown = Arrays.copyOf(bucket, bucket.length + 1);
+            grown[bucket.length] = c;
+            BY_LENGTH[c.name.length] = grown;
+        }
+    }
+
+    Command(int opcode, Role role, String denied) {
+        this.opcode = (byte) opcode;
+        this.role = role;
+        this.denied = denied != null ? Message.of(denied) : null;
+    }
+
+    // Null for an unknown opcode.
+    public static Command fromOpcode(int opcode) {
+        return (opcode >= 0 && opcode < BY_OPCODE.length) ? BY_OPCODE[opcode] : null;
+    }
+
+    // Case-insensitive lookup of the ASCII name in buf[off, off + len), without
+    // building a String. Null for an unknown name.
+    public static Command lookup(byte[] buf, int off, int len) {
+        if (len >= BY_LENGTH.length) return null;
+        for (Command c : BY_LENGTH[len]) {
+            if (c.matches(buf, off)) return c;
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] buf, int off) {
+        for (int i = 0; i < name.length; i++) {
+            int b = buf[off + i];
+            if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+            if (b != name[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,16 @@
+// Read-only view of one parsed command, whatever the wire protocol.
+// Index 0 is the command itself, so indexes match the text protocol's
+// colon-separated tokens (e.g. OFFER:rideId:price -> 1 = rideId, 2 = price).
+public interface CommandArgs {
+
+    // Number of tokens, including the command.
+    int count();
+
+    String string(int i);
+
+    // Throws NumberFormatException if the token is not an integer.
+    int intArg(int i);
+
+    // Throws NumberFormatException if the token is not a number.
+    double doubleArg(int i);
+}
@@ -0,0 +1,17 @@
+// Transport used by a ClientHandler to talk to its client.
+// Implemented by the blocking socket mode and the NIO selector mode.
+public interface Connection {
+
+    // Queue a single protocol line for the client. Never blocks on the network.
+    void send(Message msg);
+
+    // Close the underlying socket/channel once queued messages are written.
+    void close();
+
+    String getRemoteAddress();
+
+    // Messages queued for the client and not yet written; null if the transport has no such queue.
+    default OutboundQueue outbound() {
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Maps keys (usernames) to shards. Each shard owns many points on a 64-bit ring
+// and a key belongs to the first point at or after its hash, so growing the
+// cluster from N to N+1 shards moves about 1/(N+1) of the keys. Immutable:
+// lookups are a binary search over two primitive arrays.
+public class ConsistentHashRing {
+    private final long[] points;
+    private final int[] owners;
+    private final int shardCount;
+
+    public ConsistentHashRing(int shardCount, int pointsPerShard) {
+        this.shardCount = shardCount;
+        long[][] pairs = new long[shardCount * pointsPerShard][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int p = 0; p < pointsPerShard; p++) {
+                pairs[shard * pointsPerShard + p] = new long[] {hash("shard-" + shard + "#" + p), shard};
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[pairs.length];
+        owners = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = (int) pairs[i][1];
+        }
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    // Usernames are case-insensitive, like UserRegistry.
+    public int shardFor(String key) {
+        return owners[firstPoint(key)];
+    }
+
+    // The key's shard followed by the next distinct shards clockwise: its
+    // neighbours, which take over if it goes away. At most shardCount.
+    public int[] shardsFor(String key, int count) {
+        count = Math.min(count, shardCount);
+        int[] found = new int[count];
+        int n = 0;
+        for (int i = firstPoint(key); n < count; i = (i + 1) % points.length) {
+            int shard = owners[i];
+            boolean seen = false;
+            for (int j = 0; j < n; j++) {
+                seen |= found[j] == shard;
+            }
+            if (!seen) found[n++] = shard;
+        }
+        return found;
+    }
+
+    private int firstPoint(String key) {
+        long h = hash(key.toLowerCase(Locale.ROOT));
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) i = -i - 1;
+        return i == points.length ? 0 : i;
+    }
+
+    // FNV-1a over the UTF-8 bytes, then the MurmurHash3 finalizer so that similar
+    // names ("driver1", "driver2") land far apart.
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1a85ec3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
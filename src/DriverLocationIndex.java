@@ -0,0 +1,100 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Uniform lat/lon grid over driver positions. A location ping that stays in the
+// same cell only overwrites the driver's coordinates; crossing a cell boundary
+// moves the driver between two cell sets. Searches walk rings of cells outwards
+// from the pickup until the K nearest free drivers are known.
+public class DriverLocationIndex {
+    // ~1.1 km of latitude per cell.
+    static final double CELL_DEGREES = 0.01;
+    static final double KM_PER_DEGREE = 111.32;
+
+    private final Map<Long, Set<ClientHandler>> cells = new ConcurrentHashMap<>();
+
+    // Record a driver's position. Called from the driver's own handler thread only.
+    public void update(ClientHandler driver, double lat, double lon) {
+        long newCell = cellKey(lat, lon);
+        long oldCell = driver.getLocationCell();
+        driver.setLocation(lat, lon, newCell);
+        if (oldCell != newCell) {
+            cells.computeIfAbsent(newCell, k -> ConcurrentHashMap.newKeySet()).add(driver);
+            if (oldCell != ClientHandler.NO_CELL) {
+                removeFromCell(oldCell, driver);
+            }
+        }
+    }
+
+    public void remove(ClientHandler driver) {
+        long cell = driver.getLocationCell();
+        if (cell != ClientHandler.NO_CELL) {
+            driver.setLocation(Double.NaN, Double.NaN, ClientHandler.NO_CELL);
+            removeFromCell(cell, driver);
+        }
+    }
+
+    // Up to k free drivers within radiusKm of (lat, lon), nearest first.
+    public List<ClientHandler> nearestFree(double lat, double lon, int k, double radiusKm) {
+        // The k closest so far, ascending by distance.
+        ClientHandler[] found = new ClientHandler[k];
+        double[] distances = new double[k];
+        int size = 0;
+        int centerRow = (int) Math.floor(lat / CELL_DEGREES);
+        int centerCol = (int) Math.floor(lon / CELL_DEGREES);
+        // A ring r cells out is at least r narrowest-cell-widths away.
+        double cellKm = CELL_DEGREES * KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(lat)));
+        int maxRing = (int) Math.ceil(radiusKm / cellKm);
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int col = centerCol - ring; col <= centerCol + ring; col += Math.max(1, step)) {
+                    Set<ClientHandler> cell = cells.get(key(row, col));
+                    if (cell == null) continue;
+                    for (ClientHandler driver : cell) {
+                        if (driver.isBusy()) continue;
+                        double d = distanceKm(lat, lon, driver.getLatitude(), driver.getLongitude());
+                        if (d > radiusKm || (size == k && d >= distances[k - 1])) continue;
+                        int i = size < k ? size++ : k - 1;
+                        while (i > 0 && distances[i - 1] > d) {
+                            found[i] = found[i - 1];
+                            distances[i] = distances[i - 1];
+                            i--;
+                        }
+                        found[i] = driver;
+                        distances[i] = d;
+                    }
+                }
+            }
+            // Everything not yet visited is further than ring * cellKm.
+            if (size == k && distances[k - 1] <= ring * cellKm) break;
+        }
+        return Arrays.asList(found).subList(0, size);
+    }
+
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        // Equirectangular approximation; accurate enough at city scale.
+        double x = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * 6371.0;
+    }
+
+    static long cellKey(double lat, double lon) {
+        return key((int) Math.floor(lat / CELL_DEGREES), (int) Math.floor(lon / CELL_DEGREES));
+    }
+
+    static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private void removeFromCell(long cell, ClientHandler driver) {
+        Set<ClientHandler> set = cells.get(cell);
+        if (set != null) {
+            set.remove(driver);
+        }
+    }
+}
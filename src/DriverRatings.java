@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Driver leaderboard, kept in order as ratings arrive: a rating moves one entry
+// in a skip list (O(log n)), and the best k drivers are the first k entries, so
+// neither ranking offers nor the admin TOP query sorts all drivers.
+//
+// Drivers are ranked by a smoothed score, not the plain mean: every driver starts
+// with PRIOR_RATINGS imaginary 3-star ratings, so one 5-star ride doesn't beat a
+// hundred 4.9s. Unrated drivers score exactly 3, as in the offer auction before.
+public class DriverRatings {
+    static final double PRIOR_MEAN = 3.0;
+    static final int PRIOR_RATINGS = 5;
+
+    // A driver's place in the leaderboard: best score first, then more ratings,
+    // then by name, so no two drivers' entries are ever equal.
+    static final class Entry implements Comparable<Entry> {
+        final User driver;
+        final double score;
+        final long count;
+
+        Entry(User driver, double score, long count) {
+            this.driver = driver;
+            this.score = score;
+            this.count = count;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = Double.compare(o.score, score);
+            if (c == 0) c = Long.compare(o.count, count);
+            if (c == 0) c = driver.getUsername().compareToIgnoreCase(o.driver.getUsername());
+            return c;
+        }
+    }
+
+    private final ConcurrentSkipListSet<Entry> board = new ConcurrentSkipListSet<>();
+
+    public void record(User driver, int behaviour, int car, int ride) {
+        driver.getRatings().record(behaviour, car, ride);
+        reindex(driver);
+    }
+
+    // Move the driver's entry to match its aggregate. One thread at a time per
+    // driver does the move; a caller that finds one in progress leaves its change
+    // to that thread, which goes round again before it stops.
+    void reindex(User driver) {
+        RatingAggregate ratings = driver.getRatings();
+        if (ratings.reindexPending.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            Entry old = ratings.rank;
+            Entry next = new Entry(driver, score(ratings), ratings.count());
+            if (old == null || old.compareTo(next) != 0) {
+                board.add(next); // add before remove: readers may see both, never neither
+                ratings.rank = next;
+                if (old != null) board.remove(old);
+            }
+            missed = ratings.reindexPending.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    static double score(RatingAggregate ratings) {
+        long n = ratings.count(RatingAggregate.BEHAVIOUR) + ratings.count(RatingAggregate.CAR)
+                + ratings.count(RatingAggregate.RIDE);
+        long total = ratings.sum(RatingAggregate.BEHAVIOUR) + ratings.sum(RatingAggregate.CAR)
+                + ratings.sum(RatingAggregate.RIDE);
+        int prior = PRIOR_RATINGS * RatingAggregate.DIMENSIONS;
+        return (total + PRIOR_MEAN * prior) / (n + prior);
+    }
+
+    // Ranking score of a driver for the offer auction; higher is better.
+    public double score(User driver) {
+        RatingAggregate ratings = driver.getRatings();
+        return ratings != null ? score(ratings) : PRIOR_MEAN;
+    }
+
+    // The best k rated drivers, best first. Reads at most k entries plus any
+    // superseded ones a concurrent move has not yet removed.
+    public List<Entry> top(int k) {
+        List<Entry> best = new ArrayList<>(Math.min(k, 64));
+        for (Entry entry : board) {
+            if (best.size() == k) break;
+            if (entry.driver.getRatings().rank == entry) best.add(entry);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+// Splits a client's byte stream into commands for its ClientHandler: newline-
+// delimited text lines, or length-prefixed frames if the first byte selected the
+// binary protocol. Shared by both transports. A command that arrives whole in one
+// read is dispatched straight from the read buffer; only the partial tail of a
+// read is copied aside until the rest arrives.
+public class InboundFramer {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final ClientHandler handler;
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+    private boolean protocolKnown = false;
+    private volatile boolean binary = false;
+
+    public InboundFramer(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    // True once the client has selected the binary protocol.
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Dispatch every complete command in data[off, off + len). Returns false when
+    // the connection should close: the handler stopped running, or a text line
+    // grew past the limit.
+    public boolean feed(byte[] data, int off, int len) {
+        if (!protocolKnown && len > 0) {
+            protocolKnown = true;
+            if ((data[off] & 0xFF) == BinaryCodec.MAGIC) {
+                binary = true;
+                off++;
+                len--;
+            }
+        }
+        return binary ? feedFrames(data, off, len) : feedLines(data, off, len);
+    }
+
+    private boolean feedLines(byte[] data, int off, int len) {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (data[i] != '\n') continue;
+            if (pendingLength == 0) {
+                dispatchLine(data, start, i - start);
+            } else {
+                if (!append(data, start, i - start)) return false;
+                dispatchLine(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+            start = i + 1;
+            if (!handler.isRunning()) return false;
+        }
+        return append(data, start, end - start);
+    }
+
+    private void dispatchLine(byte[] buf, int off, int len) {
+        if (len > 0 && buf[off + len - 1] == '\r') len--;
+        handler.handleLine(buf, off, len);
+    }
+
+    private boolean append(byte[] data, int off, int len) {
+        int needed = pendingLength + len;
+        if (needed > MAX_LINE_LENGTH) {
+            ServerLog.warn("Line too long from {}; closing.", handler.getUserName());
+            return false;
+        }
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+        }
+        System.arraycopy(data, off, pending, pendingLength, len);
+        pendingLength = needed;
+        return true;
+    }
+
+    private boolean feedFrames(byte[] data, int off, int len) {
+        if (pendingLength > 0) {
+            // Finish the partial frame first; frames are at most 64 KB.
+            int needed = pendingLength + len;
+            if (needed > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+            }
+            System.arraycopy(data, off, pending, pendingLength, len);
+            pendingLength = 0;
+            return dispatchFrames(pending, 0, needed);
+        }
+        return dispatchFrames(data, off, len);
+    }
+
+    // Dispatch the complete frames in buf[off, off + len) and keep the remainder.
+    private boolean dispatchFrames(byte[] buf, int off, int len) {
+        int pos = off;
+        int end = off + len;
+        while (end - pos >= 2) {
+            int length = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+            if (end - pos - 2 < length) break; // rest of the frame not here yet
+            handler.handleFrame(buf, pos + 2, length);
+            pos += 2 + length;
+            if (!handler.isRunning()) return false;
+        }
+        int rest = end - pos;
+        if (rest > pending.length) {
+            pending = new byte[Math.max(rest, pending.length * 2)];
+        }
+        System.arraycopy(buf, pos, pending, 0, rest); // may overlap when buf == pending
+        pendingLength = rest;
+        return true;
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load for a running Server over the text protocol. Opens N customer
+// and M driver connections (one virtual thread each) that register, log in and
+// then play full ride lifecycles: REQUEST -> OFFER -> ASSIGN -> UPDATE START/END
+// -> RATE, with a share of rides cancelled instead. New rides start at a fixed
+// target rate (open loop): when no customer is free for a slot it is counted as
+// a shortfall rather than delaying the schedule, and latencies are measured from
+// the slot's scheduled time.
+//
+// --stalled-drivers adds drivers that log in and then never read, like phones on
+// a dead link: the server should drop or disconnect them without the others'
+// latencies moving. --abusers adds customers that loop REQUEST / CANCEL at
+// --abuse-rate commands/s each; with the server's rate limits on (see Admission)
+// they should be throttled, again without the others' latencies moving.
+//
+// Reports throughput, errors by kind and request->offer, ->assigned, ->ended
+// latency percentiles. Exits 1 if no ride completed or there were more
+// unexpected errors than --max-errors, so it can gate a CI job.
+// Usage: java LoadGenerator [--host=localhost] [--port=12345] [--customers=1000] [--drivers=200]
+//                           [--rate=100] [--duration-s=30] [--cancel-pct=10] [--trip-ms=100]
+//                           [--ride-timeout-ms=10000] [--max-errors=0] [--prefix=lg] [--stalled-drivers=0]
+//                           [--abusers=0] [--abuse-rate=500]
+public class LoadGenerator {
+    // Drivers and pickups spread over roughly 22 x 28 km around central Cairo.
+    private static final double LAT = 30.0, LON = 31.1, LAT_SPAN = 0.2, LON_SPAN = 0.3;
+
+    // Replies that are a normal outcome of races between agents, not failures.
+    private static final String[] EXPECTED_ERRORS = {
+            "ERROR: You have already sent an offer",    // our previous offer lost and was released silently
+            "ERROR: Ride not found or already assigned.",
+            "ERROR: Ride already assigned.",
+            "ERROR: Driver not found in offers.",       // the driver's offer moved on to another ride
+            "ERROR: You are on ride",                   // via ShardRouter: our ASSIGNED was still in flight
+    };
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int customerCount = 1000;
+    private int driverCount = 200;
+    private double rate = 100;
+    private int durationS = 30;
+    private int cancelPct = 10;
+    private long tripMs = 100;
+    private long rideTimeoutMs = 10_000;
+    private long maxErrors = 0;
+    private String prefix = "lg";
+    private int stalledCount = 0;
+    private int abuserCount = 0;
+    private double abuseRate = 500;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentLinkedQueue<CustomerAgent> idle = new ConcurrentLinkedQueue<>();
+    private final List<Agent> agents = new ArrayList<>();
+
+    private final LatencyHistogram toOffer = new LatencyHistogram();
+    private final LatencyHistogram toAssigned = new LatencyHistogram();
+    private final LatencyHistogram toEnded = new LatencyHistogram();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder shortfall = new LongAdder();
+    private final LongAdder linesSent = new LongAdder();
+    private final LongAdder expectedErrors = new LongAdder();
+    private final LongAdder unexpectedErrors = new LongAdder();
+    // Abusers' own traffic, kept out of the figures above.
+    private final LongAdder abuseSent = new LongAdder();
+    private final LongAdder abuseThrottled = new LongAdder();
+    private final Map<String, LongAdder> errorKinds = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = parse(args);
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    private static LoadGenerator parse(String[] args) {
+        LoadGenerator g = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(2, eq)) {
+                case "host": g.host = value; break;
+                case "port": g.port = Integer.parseInt(value); break;
+                case "customers": g.customerCount = Integer.parseInt(value); break;
+                case "drivers": g.driverCount = Integer.parseInt(value); break;
+                case "rate": g.rate = Double.parseDouble(value); break;
+                case "duration-s": g.durationS = Integer.parseInt(value); break;
+                case "cancel-pct": g.cancelPct = Integer.parseInt(value); break;
+                case "trip-ms": g.tripMs = Long.parseLong(value); break;
+                case "ride-timeout-ms": g.rideTimeoutMs = Long.parseLong(value); break;
+                case "max-errors": g.maxErrors = Long.parseLong(value); break;
+                case "prefix": g.prefix = value; break;
+                case "stalled-drivers": g.stalledCount = Integer.parseInt(value); break;
+                case "abusers": g.abuserCount = Integer.parseInt(value); break;
+                case "abuse-rate": g.abuseRate = Double.parseDouble(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return g;
+    }
+
+    private boolean run() throws Exception {
+        PortProbe.await(new InetSocketAddress(host, port), null, 10_000);
+        long connectStart = System.nanoTime();
+        try (ExecutorService connect = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < driverCount; i++) {
+                DriverAgent driver = new DriverAgent(prefix + "-d" + i);
+                agents.add(driver);
+                connect.submit(() -> driver.start("driver"));
+            }
+            for (int i = 0; i < stalledCount; i++) {
+                StalledDriverAgent driver = new StalledDriverAgent(prefix + "-s" + i);
+                agents.add(driver);
+                connect.submit(() -> driver.start("driver"));
+            }
+            for (int i = 0; i < abuserCount; i++) {
+                AbusiveCustomerAgent abuser = new AbusiveCustomerAgent(prefix + "-a" + i);
+                agents.add(abuser);
+                connect.submit(() -> abuser.start("customer"));
+            }
+            for (int i = 0; i < customerCount; i++) {
+                CustomerAgent customer = new CustomerAgent(prefix + "-c" + i);
+                agents.add(customer);
+                connect.submit(() -> customer.start("customer"));
+            }
+        }
+        long ready = agents.stream().filter(a -> a.loggedIn).count();
+        System.out.printf("%d of %d connections logged in after %.1f s%n",
+                ready, agents.size(), (System.nanoTime() - connectStart) / 1e9);
+        for (Agent agent : agents) {
+            if (agent instanceof CustomerAgent && agent.loggedIn) idle.add((CustomerAgent) agent);
+        }
+
+        // Open-loop pacing: slot k is due at start + k * interval, whatever happened before.
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + durationS * 1_000_000_000L;
+        long nextReport = start + 5_000_000_000L;
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            CustomerAgent customer = idle.poll();
+            if (customer == null) {
+                shortfall.increment();
+            } else {
+                customer.startRide(due);
+            }
+            if (System.nanoTime() >= nextReport) {
+                report((System.nanoTime() - start) / 1e9, false);
+                nextReport += 5_000_000_000L;
+            }
+        }
+        // Let rides in flight finish, up to one ride timeout.
+        long drainEnd = System.nanoTime() + rideTimeoutMs * 1_000_000L + tripMs * 2_000_000L;
+        while (idle.size() < countLoggedInCustomers() && System.nanoTime() < drainEnd) {
+            Thread.sleep(50);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        report(elapsed, true);
+        scheduler.shutdownNow();
+        for (Agent agent : agents) agent.close();
+        boolean ok = completed.sum() > 0 && unexpectedErrors.sum() <= maxErrors;
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    private long countLoggedInCustomers() {
+        return agents.stream().filter(a -> a instanceof CustomerAgent && a.loggedIn).count();
+    }
+
+    private void report(double elapsedS, boolean last) {
+        System.out.printf("t=%.0fs started %d completed %d (%.1f/s) cancelled %d timed out %d shortfall %d"
+                        + " lines %.0f/s errors %d expected + %d unexpected%n",
+                elapsedS, started.sum(), completed.sum(), completed.sum() / elapsedS, cancelled.sum(),
+                timedOut.sum(), shortfall.sum(), linesSent.sum() / elapsedS,
+                expectedErrors.sum(), unexpectedErrors.sum());
+        if (abuserCount > 0) {
+            System.out.printf("abusers sent %.0f/s, %d throttled%n", abuseSent.sum() / elapsedS, abuseThrottled.sum());
+        }
+        if (!last) return;
+        System.out.printf("%-22s %8s %10s %10s %10s %10s%n", "latency (ms)", "n", "p50", "p99", "p999", "max");
+        latency("request -> offer", toOffer);
+        latency("request -> assigned", toAssigned);
+        latency("request -> ended", toEnded);
+        if (!errorKinds.isEmpty()) {
+            System.out.println("errors:");
+            new TreeMap<>(errorKinds).forEach((kind, n) -> System.out.printf("%8d  %s%n", n.sum(), kind));
+        }
+    }
+
+    private static void latency(String name, LatencyHistogram h) {
+        System.out.printf("%-22s %8d %10.2f %10.2f %10.2f %10.2f%n", name, h.count(),
+                h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6);
+    }
+
+    private void error(String line) {
+        for (String expected : EXPECTED_ERRORS) {
+            if (line.startsWith(expected)) {
+                expectedErrors.increment();
+                return;
+            }
+        }
+        unexpectedErrors.increment();
+        // Ride ids vary; group by the message without its digits.
+        errorKinds.computeIfAbsent(line.replaceAll("\\d+", "N"), k -> new LongAdder()).increment();
+    }
+
+    private static double randomLat() {
+        return LAT + ThreadLocalRandom.current().nextDouble() * LAT_SPAN;
+    }
+
+    private static double randomLon() {
+        return LON + ThreadLocalRandom.current().nextDouble() * LON_SPAN;
+    }
+
+    // One logged-in connection. Replies are handled on the connection's own
+    // virtual thread; scheduled steps (trip time, timeouts) send from the scheduler.
+    private abstract class Agent {
+        final String username;
+        volatile boolean loggedIn;
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+
+        Agent(String username) {
+            this.username = username;
+        }
+
+        void start(String type) {
+            try {
+                socket = new Socket();
+                configure(socket);
+                socket.connect(new InetSocketAddress(host, port));
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                // Register (or find the user left by an earlier run), then log in.
+                send("REGISTER:" + username + ":pw:" + type);
+                String reply = in.readLine();
+                if (reply != null && reply.startsWith("REGISTERED")) in.readLine(); // the INFO line
+                send("LOGIN:" + username + ":pw");
+                reply = in.readLine();
+                if (reply == null || !reply.startsWith("LOGGEDIN")) {
+                    System.err.println(username + ": login failed: " + reply);
+                    close();
+                    return;
+                }
+                loggedIn = true;
+                onLoggedIn();
+                if (reads()) Thread.ofVirtual().name(username).start(this::readLoop);
+            } catch (IOException e) {
+                System.err.println(username + ": " + e.getMessage());
+                close();
+            }
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("ERROR")) {
+                        if (countsErrors()) error(line);
+                        onError(line);
+                    } else {
+                        onLine(line);
+                    }
+                }
+            } catch (IOException e) {
+                // closed by close() at the end of the run, or by the server
+            }
+        }
+
+        synchronized void send(String line) {
+            try {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sent().increment();
+            } catch (IOException e) {
+                // the read loop sees the connection go away
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) { }
+        }
+
+        void configure(Socket socket) throws IOException { }
+
+        boolean reads() {
+            return true;
+        }
+
+        boolean countsErrors() {
+            return true;
+        }
+
+        LongAdder sent() {
+            return linesSent;
+        }
+
+        void onLoggedIn() { }
+
+        abstract void onLine(String line);
+
+        void onError(String line) { }
+    }
+
+    // Offers on every NEW_RIDE while free, then drives its assigned ride to the end.
+    private final class DriverAgent extends Agent {
+        DriverAgent(String username) {
+            super(username);
+        }
+
+        @Override
+        void onLoggedIn() {
+            send("LOCATION:" + randomLat() + ":" + randomLon());
+        }
+
+        @Override
+        void onLine(String line) {
+            if (line.startsWith("NEW_RIDE:")) {
+                int rideId = Integer.parseInt(field(line, 1));
+                send("OFFER:" + rideId + ":" + ThreadLocalRandom.current().nextInt(15, 60));
+            } else if (line.startsWith("ASSIGNED:")) {
+                String rideId = field(line, 1);
+                scheduler.schedule(() -> send("UPDATE:" + rideId + ":START"), tripMs / 4, TimeUnit.MILLISECONDS);
+            } else if (line.startsWith("STATUS_UPDATED:")) {
+                String rideId = field(line, 1);
+                if (line.endsWith(":START")) {
+                    scheduler.schedule(() -> send("UPDATE:" + rideId + ":END"), tripMs, TimeUnit.MILLISECONDS);
+                } else {
+                    // Dropped off somewhere else.
+                    send("LOCATION:" + randomLat() + ":" + randomLon());
+                }
+            }
+        }
+    }
+
+    // Shows up on the map and then stops reading; a small receive buffer makes
+    // the server's queue for it back up sooner.
+    private final class StalledDriverAgent extends Agent {
+        StalledDriverAgent(String username) {
+            super(username);
+        }
+
+        @Override
+        void configure(Socket socket) throws IOException {
+            socket.setReceiveBufferSize(4096);
+        }
+
+        @Override
+        boolean reads() {
+            return false;
+        }
+
+        @Override
+        void onLoggedIn() {
+            send("LOCATION:" + randomLat() + ":" + randomLon());
+        }
+
+        @Override
+        void onLine(String line) { }
+    }
+
+    // Requests and cancels rides at --abuse-rate from its own thread, as long as
+    // the run lasts. Paced rather than flat out only so that it doesn't starve
+    // this process's other threads. Its replies are mostly errors, by design, so
+    // only the throttled ones are counted.
+    private final class AbusiveCustomerAgent extends Agent {
+        private volatile boolean closed;
+
+        AbusiveCustomerAgent(String username) {
+            super(username);
+        }
+
+        @Override
+        void onLoggedIn() {
+            Thread.ofVirtual().name(username + "-flood").start(() -> {
+                long interval = (long) (2e9 / abuseRate); // two commands per round
+                for (long due = System.nanoTime(); !closed; due += interval) {
+                    send("REQUEST:Pickup:Destination:" + randomLat() + ":" + randomLon());
+                    send("CANCEL");
+                    long wait = due + interval - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+            });
+        }
+
+        @Override
+        boolean countsErrors() {
+            return false;
+        }
+
+        @Override
+        LongAdder sent() {
+            return abuseSent;
+        }
+
+        @Override
+        void onError(String line) {
+            if (line.equals("ERROR: throttled")) abuseThrottled.increment();
+        }
+
+        @Override
+        void onLine(String line) { }
+
+        @Override
+        void close() {
+            closed = true;
+            super.close();
+        }
+    }
+
+    // Requests a ride when the pacer hands it a slot; takes the cheapest first
+    // offer, rates the driver at the end, then goes back to the idle pool.
+    private final class CustomerAgent extends Agent {
+        private volatile long due;          // scheduled start of the current ride
+        private volatile int rideId = -1;
+        private volatile boolean assigning;
+        private volatile boolean offered;
+        private volatile boolean cancelling;
+        private final AtomicLong generation = new AtomicLong();
+
+        CustomerAgent(String username) {
+            super(username);
+        }
+
+        void startRide(long due) {
+            this.due = due;
+            rideId = -1;
+            assigning = false;
+            offered = false;
+            cancelling = ThreadLocalRandom.current().nextInt(100) < cancelPct;
+            long ride = generation.incrementAndGet();
+            started.increment();
+            send("REQUEST:Pickup:Destination:" + randomLat() + ":" + randomLon());
+            scheduler.schedule(() -> {
+                if (generation.get() == ride && !assigning && rideId != -1) {
+                    timedOut.increment();
+                    cancelling = true;
+                    send("CANCEL");
+                }
+            }, rideTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        void onLine(String line) {
+            if (line.startsWith("REQUEST_RECEIVED:")) {
+                rideId = Integer.parseInt(field(line, 1));
+                if (cancelling) send("CANCEL");
+            } else if (line.startsWith("OFFERS:")) {
+                if (!offered) {
+                    offered = true;
+                    toOffer.recordSince(due);
+                }
+                if (!assigning && !cancelling) {
+                    String driver = cheapest(line);
+                    if (driver != null) {
+                        assigning = true;
+                        send("ASSIGN:" + rideId + ":" + driver);
+                    }
+                }
+            } else if (line.startsWith("RIDE_ASSIGNED:")) {
+                assigning = true; // also when the server's matcher assigned it, with no OFFERS
+                toAssigned.recordSince(due);
+            } else if (line.startsWith("UPDATE:") && line.endsWith(":END")) {
+                toEnded.recordSince(due);
+                send("RATE:" + rideId + ":5:4:5:load test");
+            } else if (line.startsWith("RATED:")) {
+                completed.increment();
+                finish();
+            } else if (line.startsWith("Ride ") && line.endsWith("has been cancelled.")) {
+                cancelled.increment();
+                finish();
+            }
+        }
+
+        @Override
+        void onError(String line) {
+            // Our pick went elsewhere; wait for the next OFFERS.
+            if (line.startsWith("ERROR: Driver not found in offers.")) {
+                assigning = false;
+            } else if (line.startsWith("ERROR: Ride already started; cannot cancel.")) {
+                cancelling = false;
+            } else if (line.startsWith("ERROR: You already have an active ride")) {
+                finish(); // e.g. left over from an earlier run; counted as unexpected
+            }
+        }
+
+        private void finish() {
+            generation.incrementAndGet();
+            rideId = -1;
+            idle.add(this);
+        }
+    }
+
+    // OFFERS:rideId:driver=price=Rating:x.xx[:driver=price=Rating:x.xx...]
+    private static String cheapest(String line) {
+        String[] parts = line.split(":");
+        String best = null;
+        double bestPrice = Double.MAX_VALUE;
+        for (int i = 2; i < parts.length; i += 2) {
+            String[] offer = parts[i].split("=");
+            if (offer.length < 2) continue;
+            double price = Double.parseDouble(offer[1]);
+            if (price < bestPrice) {
+                bestPrice = price;
+                best = offer[0];
+            }
+        }
+        return best;
+    }
+
+    private static String field(String line, int index) {
+        return line.split(":")[index];
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// What a per-command log line costs the handler threads: the old
+// System.out.println("From user: line"), ServerLog writing to a file, and
+// ServerLog with the line's level turned off. Every thread logs the same
+// command lines as fast as it can. "lines/s" and "ns/line" are what the callers
+// see; "written" is what reached the file (ServerLog drops lines when its ring is
+// full), and "written/s" counts until the last of them is on disk.
+// Both write to a temporary file, so the numbers are the disk's, not a terminal's.
+// Usage: java LogBenchmark [lines=2000000] [threads=16]
+public class LogBenchmark {
+    private static final byte[] LINE = "REQUEST:Tahrir Square:Zamalek:30.0444:31.2357".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        PrintStream results = System.out;
+        Path dir = Files.createTempDirectory("log-bench");
+        results.printf("%,d lines from %d threads%n", lines, threads);
+        results.printf("%-22s %12s %10s %12s %12s%n", "logger", "lines/s", "ns/line", "written", "written/s");
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            PrintStream results2 = round == 0 ? new PrintStream(PrintStream.nullOutputStream()) : results;
+            run(results2, "System.out.println", dir, lines, threads, Mode.PRINTLN);
+            run(results2, "ServerLog", dir, lines, threads, Mode.SERVER_LOG);
+            run(results2, "ServerLog, level off", dir, lines, threads, Mode.DISABLED);
+        }
+        System.exit(0);
+    }
+
+    private enum Mode { PRINTLN, SERVER_LOG, DISABLED }
+
+    private static void run(PrintStream results, String label, Path dir, int lines, int threads, Mode mode)
+            throws Exception {
+        Path file = dir.resolve(mode + ".log");
+        Files.deleteIfExists(file);
+        PrintStream console = System.out;
+        if (mode == Mode.PRINTLN) {
+            // What System.out is on a console: autoflush, so a write per line.
+            System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 8192), true));
+        } else {
+            ServerConfig config = new ServerConfig();
+            config.logLevel = mode == Mode.DISABLED ? ServerLog.Level.INFO : ServerLog.Level.DEBUG;
+            config.logFile = file.toString();
+            config.logFileMb = 1024;
+            ServerLog.configure(config);
+        }
+        long droppedBefore = ServerLog.dropped();
+        long start = System.nanoTime();
+        try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            for (int t = 0; t < threads; t++) {
+                String user = "driver" + t;
+                pool.submit(() -> {
+                    for (int i = 0; i < lines / threads; i++) {
+                        if (mode == Mode.PRINTLN) {
+                            System.out.println("From " + user + ": " + new String(LINE, StandardCharsets.UTF_8));
+                        } else if (ServerLog.isDebugEnabled()) {
+                            ServerLog.debug("From {}: {}", user, new String(LINE, StandardCharsets.UTF_8));
+                        }
+                    }
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long dropped = ServerLog.dropped() - droppedBefore;
+        if (mode == Mode.PRINTLN) {
+            System.out.close();
+            System.setOut(console);
+        } else {
+            // Swapping in a fresh logger waits for this one to write out and close its file.
+            ServerLog.configure(new ServerConfig());
+        }
+        long drainedNanos = System.nanoTime() - start;
+        long done = lines / threads * (long) threads;
+        results.printf("%-22s %,12.0f %10.0f %12s %12s%n", label, done / (nanos / 1e9), (double) nanos / done,
+                mode == Mode.DISABLED ? "-" : String.format("%,d", done - dropped),
+                mode == Mode.DISABLED ? "-" : String.format("%,.0f", (done - dropped) / (drainedNanos / 1e9)));
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Users and rides as the write-ahead log describes them: the result of applying
+// its records in order. Used at startup to recover, by the compactor to turn
+// closed log segments into a snapshot, and by a StandbyReplica to follow a primary. Plain fields, no handlers: nobody is
+// connected to a recovered ride.
+//
+// Records from different threads can reach the log in a different order than
+// their compare-and-sets happened (e.g. a CANCEL logged before the ASSIGN it
+// beat). A status is therefore only applied if it moves the ride forward along
+// REQUESTED -> ASSIGNED -> START -> END/CANCELLED, which gives the same final
+// state whatever the interleaving.
+class LogState {
+    private static final int SNAPSHOT_MAGIC = 0x52534E50; // "RSNP"
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final RideStatus[] STATUSES = RideStatus.values();
+
+    static final class UserRecord {
+        String username, password, type;
+        // RatingAggregate counters; null until the driver is first rated.
+        long[] ratings;
+
+        void addRating(int behaviour, int car, int ride) {
+            if (ratings == null) ratings = new long[RatingAggregate.DIMENSIONS * RatingAggregate.STARS];
+            ratings[RatingAggregate.BEHAVIOUR * RatingAggregate.STARS + behaviour - 1]++;
+            ratings[RatingAggregate.CAR * RatingAggregate.STARS + car - 1]++;
+            ratings[RatingAggregate.RIDE * RatingAggregate.STARS + ride - 1]++;
+        }
+    }
+
+    static final class RideRecord {
+        int rideId;
+        String customer, pickup, destination, driver;
+        double pickupLatitude, pickupLongitude;
+        RideStatus status = RideStatus.REQUESTED;
+        boolean rated;
+    }
+
+    // Keyed like UserRegistry: lower-cased username.
+    final Map<String, UserRecord> users = new LinkedHashMap<>();
+    final Map<Integer, RideRecord> rides = new HashMap<>();
+
+    // Apply every intact record of a segment. A torn or corrupt record (a crash in
+    // the middle of a write) ends the segment: nothing after it was acknowledged
+    // as durable. Returns the number of records applied.
+    int replay(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int applied = applyRecords(buf);
+            if (buf.hasRemaining()) {
+                ServerLog.warn("Ignoring {} bytes of torn log tail in {}", buf.remaining(), segment.getFileName());
+            }
+            return applied;
+        }
+    }
+
+    // Apply the intact records at the start of buf, as laid out in a segment (and
+    // in the replication stream). Stops at the first torn or corrupt one, with buf
+    // positioned there.
+    int applyRecords(ByteBuffer buf) {
+        int applied = 0;
+        CRC32C crc = new CRC32C();
+        while (buf.remaining() >= WriteAheadLog.HEADER) {
+            int start = buf.position();
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+            ByteBuffer payload = buf.slice(buf.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                buf.position(start);
+                break;
+            }
+            apply(payload);
+            buf.position(buf.position() + length);
+            applied++;
+        }
+        return applied;
+    }
+
+    void apply(ByteBuffer rec) {
+        byte type = rec.get();
+        switch (type) {
+            case WriteAheadLog.USER: {
+                UserRecord user = new UserRecord();
+                user.username = getString(rec);
+                user.password = getString(rec);
+                user.type = getString(rec);
+                users.putIfAbsent(key(user.username), user);
+                break;
+            }
+            case WriteAheadLog.RIDE: {
+                RideRecord ride = new RideRecord();
+                ride.rideId = rec.getInt();
+                ride.customer = getString(rec);
+                ride.pickup = getString(rec);
+                ride.destination = getString(rec);
+                ride.pickupLatitude = rec.getDouble();
+                ride.pickupLongitude = rec.getDouble();
+                rides.putIfAbsent(ride.rideId, ride);
+                break;
+            }
+            case WriteAheadLog.OFFER:
+                // Offers are logged for the record only: the drivers who made them
+                // must reconnect (and re-offer) after a restart.
+                break;
+            case WriteAheadLog.ASSIGN: {
+                RideRecord ride = rides.get(rec.getInt());
+                if (ride != null && ride.driver == null) {
+                    ride.driver = getString(rec);
+                    advance(ride, RideStatus.ASSIGNED);
+                }
+                break;
+            }
+            case WriteAheadLog.STATUS: {
+                RideRecord ride = rides.get(rec.getInt());
+                if (ride != null) {
+                    advance(ride, STATUSES[rec.get()]);
+                }
+                break;
+            }
+            case WriteAheadLog.RATING: {
+                RideRecord ride = rides.get(rec.getInt());
+                String driver = getString(rec);
+                int behaviour = rec.get();
+                int car = rec.get();
+                int rideScore = rec.get(); // the comment that follows is kept in the log only
+                if (ride != null && !ride.rated) {
+                    ride.rated = true;
+                    UserRecord user = users.get(key(driver));
+                    if (user != null && behaviour >= 1) {
+                        user.addRating(behaviour, car, rideScore);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+    }
+
+    private static void advance(RideRecord ride, RideStatus next) {
+        if (!ride.status.isTerminal() && next.ordinal() > ride.status.ordinal()) {
+            ride.status = next;
+        }
+    }
+
+    // Install the recovered users and rides into Server.users and Server.rides.
+    void materialize() {
+        for (UserRecord u : users.values()) {
+            User user = new User(u.username, u.password, u.type);
+            Server.users.register(user); // fails only for the built-in admin, which is never rated
+            if (u.ratings != null && user.getRatings() != null) {
+                user.getRatings().restore(u.ratings);
+                Server.ratings.reindex(user);
+            }
+        }
+        for (RideRecord r : rides.values()) {
+            if (r.status.isTerminal()) {
+                Server.rides.restoreFinished(r.rideId, r.customer, r.driver, r.pickup, r.destination,
+                        r.pickupLatitude, r.pickupLongitude, r.status, r.rated);
+            } else {
+                Server.rides.restore(Ride.restore(r.rideId, r.customer, r.pickup, r.destination,
+                        r.pickupLatitude, r.pickupLongitude, r.status, r.driver, r.rated));
+            }
+        }
+    }
+
+    // Snapshot: [magic][version][users][rides][CRC32C of everything before it].
+    // Strings are [i32 length][UTF-8].
+    void writeSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            SnapshotWriter out = new SnapshotWriter(channel);
+            out.putInt(SNAPSHOT_MAGIC);
+            out.putInt(SNAPSHOT_VERSION);
+            out.putInt(users.size());
+            for (UserRecord u : users.values()) {
+                out.putString(u.username);
+                out.putString(u.password);
+                out.putString(u.type);
+                out.ensure(1).put((byte) (u.ratings != null ? 1 : 0));
+                if (u.ratings != null) {
+                    for (long count : u.ratings) out.ensure(8).putLong(count);
+                }
+            }
+            out.putInt(rides.size());
+            for (RideRecord r : rides.values()) {
+                out.putInt(r.rideId);
+                out.putString(r.customer);
+                out.putString(r.pickup);
+                out.putString(r.destination);
+                out.ensure(19).putDouble(r.pickupLatitude).putDouble(r.pickupLongitude)
+                        .put((byte) r.status.ordinal()).put((byte) (r.rated ? 1 : 0))
+                        .put((byte) (r.driver != null ? 1 : 0));
+                if (r.driver != null) out.putString(r.driver);
+            }
+            out.finish();
+            channel.force(true);
+        }
+    }
+
+    static LogState readSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+        }
+    }
+
+    // A whole snapshot file's contents; name is for error messages.
+    static LogState readSnapshot(ByteBuffer buf, String name) throws IOException {
+        LogState state = new LogState();
+        if (buf.limit() < 12) throw new IOException("Truncated snapshot: " + name);
+        CRC32C crc = new CRC32C();
+        crc.update(buf.slice(0, buf.limit() - 4));
+        if ((int) crc.getValue() != buf.getInt(buf.limit() - 4)) {
+            throw new IOException("Snapshot checksum mismatch: " + name);
+        }
+        int magic = buf.getInt();
+        int version = buf.getInt();
+        if (magic != SNAPSHOT_MAGIC || version != SNAPSHOT_VERSION) {
+            throw new IOException("Not a snapshot: " + name);
+        }
+        int userCount = buf.getInt();
+        for (int i = 0; i < userCount; i++) {
+            UserRecord u = new UserRecord();
+            u.username = readString(buf);
+            u.password = readString(buf);
+            u.type = readString(buf);
+            if (buf.get() != 0) {
+                u.ratings = new long[RatingAggregate.DIMENSIONS * RatingAggregate.STARS];
+                for (int r = 0; r < u.ratings.length; r++) u.ratings[r] = buf.getLong();
+            }
+            state.users.put(key(u.username), u);
+        }
+        int rideCount = buf.getInt();
+        for (int i = 0; i < rideCount; i++) {
+            RideRecord r = new RideRecord();
+            r.rideId = buf.getInt();
+            r.customer = readString(buf);
+            r.pickup = readString(buf);
+            r.destination = readString(buf);
+            r.pickupLatitude = buf.getDouble();
+            r.pickupLongitude = buf.getDouble();
+            r.status = STATUSES[buf.get()];
+            r.rated = buf.get() != 0;
+            if (buf.get() != 0) r.driver = readString(buf);
+            state.rides.put(r.rideId, r);
+        }
+        return state;
+    }
+
+    // Buffered snapshot output that keeps a running CRC of what it writes.
+    private static final class SnapshotWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+        private final CRC32C crc = new CRC32C();
+
+        SnapshotWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush();
+            return buf;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4).putInt(value);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            int off = 0;
+            while (off < bytes.length) {
+                int n = Math.min(ensure(1).remaining(), bytes.length - off);
+                buf.put(bytes, off, n);
+                off += n;
+            }
+        }
+
+        void finish() throws IOException {
+            flush();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.array(), 0, buf.limit());
+            while (buf.hasRemaining()) channel.write(buf);
+            buf.clear();
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
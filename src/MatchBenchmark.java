@@ -0,0 +1,75 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// What one RideMatcher batch costs with many rides waiting at once: drivers
+// and pickups spread at random over the LoadGenerator's 22 x 28 km of Cairo,
+// then a single batch, first with no time budget and then with the default one.
+// Login chatter goes to stderr.
+// Usage: java MatchBenchmark [rides=20000] [drivers=20000]
+public class MatchBenchmark {
+    private static final double LAT = 30.0, LON = 31.1, LAT_SPAN = 0.2, LON_SPAN = 0.3;
+    private static final PrintStream results = System.out;
+
+    public static void main(String[] args) {
+        System.setOut(System.err);
+        int rides = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int drivers = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        Server.config.matchIntervalMs = 1; // on, but batches run here rather than on the matcher thread
+        results.printf("%,d rides waiting, %,d free drivers%n", rides, drivers);
+        results.printf("%-10s %10s %10s %10s %14s%n", "budget", "batch ms", "reached", "assigned", "mean pickup km");
+        for (int i = 0; i < 30; i++) {
+            run(1000, 1000, 60_000, -1 - i); // warm-up: the matcher normally runs many small batches
+        }
+        run(rides, drivers, 60_000, 0);
+        run(rides, drivers, new ServerConfig().matchBudgetMs, 1);
+    }
+
+    private static void run(int rideCount, int driverCount, long budgetMs, int round) {
+        Random random = new Random(42);
+        Server.config.matchBudgetMs = budgetMs;
+        Server.metrics = new Metrics();
+        RideMatcher matcher = new RideMatcher();
+        List<ClientHandler> drivers = new ArrayList<>();
+        for (int i = 0; i < driverCount; i++) {
+            ClientHandler driver = login("mb" + round + "d" + i, "driver");
+            driver.handleLine("LOCATION:" + (LAT + random.nextDouble() * LAT_SPAN) + ":" + (LON + random.nextDouble() * LON_SPAN));
+            drivers.add(driver);
+        }
+        List<Ride> rides = new ArrayList<>();
+        for (int i = 0; i < rideCount; i++) {
+            ClientHandler customer = login("mb" + round + "c" + i, "customer");
+            Ride ride = new Ride("Pickup", "Destination", customer,
+                    LAT + random.nextDouble() * LAT_SPAN, LON + random.nextDouble() * LON_SPAN);
+            Server.rides.add(ride);
+            matcher.submit(ride);
+            rides.add(ride);
+        }
+
+        long start = System.nanoTime();
+        int assigned = matcher.matchBatch();
+        long nanos = System.nanoTime() - start;
+        double km = 0;
+        for (Ride ride : rides) {
+            ClientHandler driver = ride.getAssignedDriver();
+            if (driver != null) {
+                km += DriverLocationIndex.distanceKm(ride.getPickupLatitude(), ride.getPickupLongitude(),
+                        driver.getLatitude(), driver.getLongitude());
+            }
+        }
+        if (round >= 0) results.printf("%-10s %10.1f %10d %10d %14.2f%n", budgetMs >= 60_000 ? "none" : budgetMs + " ms",
+                nanos / 1e6, Server.metrics.matchPending.max(), assigned, assigned > 0 ? km / assigned : 0);
+
+        // Clear the map for the next round.
+        for (Ride ride : rides) Server.rides.cancel(ride);
+        for (ClientHandler driver : drivers) driver.onDisconnect();
+    }
+
+    private static ClientHandler login(String username, String type) {
+        Server.users.register(new User(username, "pw", type));
+        ClientHandler handler = new ClientHandler(new RideStressTest.CapturingConnection());
+        handler.handleLine("LOGIN:" + username + ":pw");
+        return handler;
+    }
+}
@@ -0,0 +1,258 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// One outbound protocol message. Both encodings (the text line and the binary
+// frame) are built at most once and shared, so a broadcast to many connections
+// encodes the message a single time per protocol in use.
+// Plain text messages come from of(); messages the binary protocol carries as
+// typed frames have their own factory and subclass below.
+public class Message {
+    private volatile String text;
+    private volatile byte[] bytes;
+    private volatile byte[] frame;
+
+    protected Message() { }
+
+    private Message(String text) {
+        this.text = text;
+    }
+
+    public static Message of(String text) {
+        return new Message(text);
+    }
+
+    // NEW_RIDE:rideId:pickup:destination
+    public static Message newRide(int rideId, String pickup, String destination) {
+        return new NewRide(rideId, pickup, destination);
+    }
+
+    // OFFERS:rideId:driver=price=Rating:x.xx:...
+    public static Message offers(int rideId, String[] drivers, double[] prices, double[] ratings) {
+        return new Offers(rideId, drivers, prices, ratings);
+    }
+
+    // UPDATE:rideId:STATUS
+    public static Message rideUpdate(int rideId, RideStatus status) {
+        return new RideStatusMessage(BinaryCodec.MSG_RIDE_UPDATE, "UPDATE:", rideId, status);
+    }
+
+    // STATUS:rideId:STATUS
+    public static Message status(int rideId, RideStatus status) {
+        return new RideStatusMessage(BinaryCodec.MSG_STATUS, "STATUS:", rideId, status);
+    }
+
+    // ASSIGNED:rideId:You have been assigned a ride.
+    public static Message assigned(int rideId) {
+        return new RideIdMessage(BinaryCodec.MSG_ASSIGNED, "ASSIGNED:", ":You have been assigned a ride.", rideId);
+    }
+
+    // REQUEST_RECEIVED:rideId
+    public static Message requestReceived(int rideId) {
+        return new RideIdMessage(BinaryCodec.MSG_REQUEST_RECEIVED, "REQUEST_RECEIVED:", "", rideId);
+    }
+
+    public String text() {
+        String t = text;
+        if (t == null) {
+            t = formatText();
+            text = t;
+        }
+        return t;
+    }
+
+    // The line as sent on the wire by the text protocol, including the trailing newline.
+    public byte[] bytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            b = (text() + "\n").getBytes(StandardCharsets.UTF_8);
+            bytes = b;
+        }
+        return b;
+    }
+
+    // The complete binary-protocol frame, including its length prefix.
+    public byte[] frame() {
+        byte[] f = frame;
+        if (f == null) {
+            byte[] body = encodeBody();
+            f = new byte[2 + body.length];
+            ByteBuffer.wrap(f).putShort((short) body.length).put(body);
+            frame = f;
+        }
+        return f;
+    }
+
+    // Wire encoding for the given protocol.
+    public byte[] encoded(boolean binary) {
+        return binary ? frame() : bytes();
+    }
+
+    protected String formatText() {
+        return text;
+    }
+
+    // A message a client that has fallen behind can do without (see OutboundQueue).
+    public boolean isDroppable() {
+        return false;
+    }
+
+    // Non-zero if a newer message with the same key makes this one pointless to
+    // send: it carries the whole current state of something, such as a ride.
+    public long coalesceKey() {
+        return 0;
+    }
+
+    // Binary frame body: opcode followed by fields. Untyped messages carry their text.
+    protected byte[] encodeBody() {
+        byte[] utf8 = text().getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[1 + Math.min(utf8.length, BinaryCodec.MAX_FRAME - 1)];
+        body[0] = BinaryCodec.MSG_TEXT;
+        System.arraycopy(utf8, 0, body, 1, body.length - 1);
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return text();
+    }
+
+    private static long key(byte opcode, int rideId) {
+        return ((long) (opcode & 0xFF) << 32) | (rideId & 0xFFFFFFFFL);
+    }
+
+    private static final class NewRide extends Message {
+        private final int rideId;
+        private final String pickup;
+        private final String destination;
+
+        NewRide(int rideId, String pickup, String destination) {
+            this.rideId = rideId;
+            this.pickup = pickup;
+            this.destination = destination;
+        }
+
+        @Override
+        protected String formatText() {
+            return "NEW_RIDE:" + rideId + ":" + pickup + ":" + destination;
+        }
+
+        // By the time a lagging driver read it, the ride would be taken.
+        @Override
+        public boolean isDroppable() {
+            return true;
+        }
+
+        @Override
+        protected byte[] encodeBody() {
+            byte[] p = pickup.getBytes(StandardCharsets.UTF_8);
+            byte[] d = destination.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 2 + p.length + 2 + d.length);
+            buf.put(BinaryCodec.MSG_NEW_RIDE).putInt(rideId);
+            BinaryCodec.putString(buf, p);
+            BinaryCodec.putString(buf, d);
+            return buf.array();
+        }
+    }
+
+    private static final class Offers extends Message {
+        private final int rideId;
+        private final String[] drivers;
+        private final double[] prices;
+        private final double[] ratings;
+
+        Offers(int rideId, String[] drivers, double[] prices, double[] ratings) {
+            this.rideId = rideId;
+            this.drivers = drivers;
+            this.prices = prices;
+            this.ratings = ratings;
+        }
+
+        // Each OFFERS lists every offer on the ride so far.
+        @Override
+        public long coalesceKey() {
+            return key(BinaryCodec.MSG_OFFERS, rideId);
+        }
+
+        @Override
+        protected String formatText() {
+            StringBuilder sb = new StringBuilder("OFFERS:").append(rideId);
+            for (int i = 0; i < drivers.length; i++) {
+                sb.append(':').append(drivers[i]).append('=').append(prices[i])
+                        .append("=Rating:").append(String.format(Locale.ROOT, "%.2f", ratings[i]));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        protected byte[] encodeBody() {
+            byte[][] names = new byte[drivers.length][];
+            int size = 1 + 4 + 2;
+            for (int i = 0; i < drivers.length; i++) {
+                names[i] = drivers[i].getBytes(StandardCharsets.UTF_8);
+                size += 2 + names[i].length + 8 + 8;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            buf.put(BinaryCodec.MSG_OFFERS).putInt(rideId).putShort((short) drivers.length);
+            for (int i = 0; i < drivers.length; i++) {
+                BinaryCodec.putString(buf, names[i]);
+                buf.putDouble(prices[i]).putDouble(ratings[i]);
+            }
+            return buf.array();
+        }
+    }
+
+    private static final class RideStatusMessage extends Message {
+        private final byte opcode;
+        private final String prefix;
+        private final int rideId;
+        private final RideStatus status;
+
+        RideStatusMessage(byte opcode, String prefix, int rideId, RideStatus status) {
+            this.opcode = opcode;
+            this.prefix = prefix;
+            this.rideId = rideId;
+            this.status = status;
+        }
+
+        // A ride's latest status supersedes the ones before it.
+        @Override
+        public long coalesceKey() {
+            return key(opcode, rideId);
+        }
+
+        @Override
+        protected String formatText() {
+            return prefix + rideId + ":" + status;
+        }
+
+        @Override
+        protected byte[] encodeBody() {
+            return ByteBuffer.allocate(1 + 4 + 1).put(opcode).putInt(rideId).put((byte) status.ordinal()).array();
+        }
+    }
+
+    private static final class RideIdMessage extends Message {
+        private final byte opcode;
+        private final String prefix;
+        private final String suffix;
+        private final int rideId;
+
+        RideIdMessage(byte opcode, String prefix, String suffix, int rideId) {
+            this.opcode = opcode;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.rideId = rideId;
+        }
+
+        @Override
+        protected String formatText() {
+            return prefix + rideId + suffix;
+        }
+
+        @Override
+        protected byte[] encodeBody() {
+            return ByteBuffer.allocate(1 + 4).put(opcode).putInt(rideId).array();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-side instrumentation: per-command latency, NEW_RIDE fan-out, how long
+// rides wait for a driver, how deep the outbound and log queues get and which
+// clients fall behind. All
+// recording is lock-free (see LatencyHistogram). Read by the admin METRICS
+// command and, with --metrics-port, by a plain-HTTP scrape endpoint on localhost.
+public class Metrics {
+    private static final Command[] COMMANDS = Command.values();
+    // Slow clients named in METRICS and /metrics.
+    private static final int SLOWEST_SHOWN = 5;
+
+    // Indexed by Command ordinal; time from parsed command to handler return.
+    private final LatencyHistogram[] commands = new LatencyHistogram[COMMANDS.length];
+    // One NEW_RIDE wave: time to pick the drivers and queue the message, and how many got it.
+    final LatencyHistogram dispatch = new LatencyHistogram();
+    final LatencyHistogram fanOut = new LatencyHistogram();
+    // Drivers reached by one ride lifecycle event (Ride.publish).
+    final LatencyHistogram eventFanOut = new LatencyHistogram();
+    // Building and queueing the OFFERS list for a customer.
+    final LatencyHistogram offersNotify = new LatencyHistogram();
+    // From REQUEST to the winning ASSIGN (by the customer or the auction).
+    final LatencyHistogram timeToAssign = new LatencyHistogram();
+    // Batch matching: time per batch, rides looked at, and rides assigned.
+    final LatencyHistogram matchBatch = new LatencyHistogram();
+    final LatencyHistogram matchPending = new LatencyHistogram();
+    final LatencyHistogram matchAssigned = new LatencyHistogram();
+    // Messages already waiting in a client's outbound queue when one more is added.
+    final LatencyHistogram outboundDepth = new LatencyHistogram();
+    // Slow clients (see OutboundQueue): NEW_RIDEs shed, messages replaced by a
+    // newer one, and clients disconnected for falling too far behind.
+    final LongAdder outboundDropped = new LongAdder();
+    final LongAdder outboundCoalesced = new LongAdder();
+    final LongAdder slowConsumerDisconnects = new LongAdder();
+    // Admission control: commands answered "ERROR: throttled", and connections
+    // refused at --max-connections.
+    final LongAdder throttled = new LongAdder();
+    final LongAdder connectionsRejected = new LongAdder();
+    // Write-ahead log: records per group commit, and the write + force time of each.
+    final LatencyHistogram walBatch = new LatencyHistogram();
+    final LatencyHistogram walCommit = new LatencyHistogram();
+    // Replication: from sending a batch to a backup until it acknowledges the batch.
+    final LatencyHistogram replicationAck = new LatencyHistogram();
+
+    public Metrics() {
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new LatencyHistogram();
+        }
+    }
+
+    public void commandFinished(Command command, long startNanos) {
+        commands[command.ordinal()].recordSince(startNanos);
+    }
+
+    // One line for the METRICS command: "METRICS:name n=.. p50=.. p99=.. p999=.. max=.. | ...".
+    // Latencies are in microseconds; fan-out, depths and batch sizes are plain counts.
+    public String render() {
+        StringBuilder sb = new StringBuilder("METRICS:");
+        for (Command command : COMMANDS) {
+            LatencyHistogram h = commands[command.ordinal()];
+            if (h.count() > 0) summary(sb, command.name(), h, true);
+        }
+        summary(sb, "dispatch", dispatch, true);
+        summary(sb, "fan_out", fanOut, false);
+        summary(sb, "event_fan_out", eventFanOut, false);
+        summary(sb, "offers_notify", offersNotify, true);
+        summary(sb, "time_to_assign", timeToAssign, true);
+        if (Server.config.matchIntervalMs > 0) {
+            summary(sb, "match_batch", matchBatch, true);
+            summary(sb, "match_pending", matchPending, false);
+            summary(sb, "match_assigned", matchAssigned, false);
+        }
+        summary(sb, "outbound_depth", outboundDepth, false);
+        sb.append("slow_consumers dropped=").append(outboundDropped.sum())
+                .append(" coalesced=").append(outboundCoalesced.sum())
+                .append(" disconnected=").append(slowConsumerDisconnects.sum()).append(" | ");
+        sb.append("log_dropped ").append(ServerLog.dropped()).append(" | ");
+        sb.append("admission throttled=").append(throttled.sum())
+                .append(" refused_connections=").append(connectionsRejected.sum());
+        if (Server.config.maxInflight > 0) sb.append(" ride_commands_in_flight=").append(Server.admission.inFlight());
+        sb.append(" | ");
+        List<Lagging> slowest = slowest(SLOWEST_SHOWN);
+        if (!slowest.isEmpty()) {
+            sb.append("slowest");
+            for (Lagging client : slowest) {
+                sb.append(' ').append(client.user).append(" queued=").append(client.queued)
+                        .append(" stalled=").append(client.stalledMs).append("ms dropped=").append(client.dropped)
+                        .append(" coalesced=").append(client.coalesced).append(';');
+            }
+            sb.setLength(sb.length() - 1);
+            sb.append(" | ");
+        }
+        if (Server.wal.isEnabled()) {
+            summary(sb, "wal_batch", walBatch, false);
+            summary(sb, "wal_commit", walCommit, true);
+            sb.append("wal_pending ").append(Server.wal.pending()).append(" | ");
+        }
+        Replicator replicator = Server.wal.replicator();
+        if (replicator != null) {
+            summary(sb, "replication_ack", replicationAck, true);
+            sb.append("backups ").append(replicator.backups()).append(" | ");
+            sb.append("replication_lag ").append(replicator.lag()).append(" | ");
+        }
+        sb.setLength(sb.length() - 3);
+        return sb.toString();
+    }
+
+    private static void summary(StringBuilder sb, String name, LatencyHistogram h, boolean nanos) {
+        sb.append(name).append(" n=").append(h.count());
+        if (nanos) {
+            sb.append(String.format(Locale.ROOT, " p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+        } else {
+            sb.append(" p50=").append(h.percentile(0.5)).append(" p99=").append(h.percentile(0.99))
+                    .append(" p999=").append(h.percentile(0.999)).append(" max=").append(h.max());
+        }
+        sb.append(" | ");
+    }
+
+    // Prometheus text format: one summary per histogram, latencies in seconds.
+    public String renderPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE ride_command_seconds summary\n");
+        for (Command command : COMMANDS) {
+            quantiles(sb, "ride_command_seconds", "command=\"" + command.name() + "\"",
+                    commands[command.ordinal()], 1e-9);
+        }
+        prometheusSummary(sb, "ride_dispatch_seconds", dispatch, 1e-9);
+        prometheusSummary(sb, "ride_dispatch_fan_out", fanOut, 1);
+        prometheusSummary(sb, "ride_event_fan_out", eventFanOut, 1);
+        prometheusSummary(sb, "ride_offers_notify_seconds", offersNotify, 1e-9);
+        prometheusSummary(sb, "ride_time_to_assign_seconds", timeToAssign, 1e-9);
+        if (Server.config.matchIntervalMs > 0) {
+            prometheusSummary(sb, "ride_match_batch_seconds", matchBatch, 1e-9);
+            prometheusSummary(sb, "ride_match_batch_rides", matchPending, 1);
+            prometheusSummary(sb, "ride_match_batch_assigned", matchAssigned, 1);
+        }
+        prometheusSummary(sb, "ride_outbound_queue_depth", outboundDepth, 1);
+        counter(sb, "ride_outbound_dropped_total", outboundDropped.sum());
+        counter(sb, "ride_outbound_coalesced_total", outboundCoalesced.sum());
+        counter(sb, "ride_slow_consumer_disconnects_total", slowConsumerDisconnects.sum());
+        counter(sb, "ride_log_dropped_total", ServerLog.dropped());
+        counter(sb, "ride_throttled_commands_total", throttled.sum());
+        counter(sb, "ride_refused_connections_total", connectionsRejected.sum());
+        if (Server.config.maxInflight > 0) gauge(sb, "ride_commands_in_flight", Server.admission.inFlight());
+        sb.append("# TYPE ride_outbound_backlog gauge\n");
+        for (Lagging client : slowest(SLOWEST_SHOWN)) {
+            sb.append("ride_outbound_backlog{user=\"");
+            appendLabelValue(sb, client.user);
+            sb.append("\"} ").append(client.queued).append('\n');
+        }
+        if (Server.wal.isEnabled()) {
+            prometheusSummary(sb, "ride_wal_batch_records", walBatch, 1);
+            prometheusSummary(sb, "ride_wal_commit_seconds", walCommit, 1e-9);
+            gauge(sb, "ride_wal_pending_records", Server.wal.pending());
+        }
+        Replicator replicator = Server.wal.replicator();
+        if (replicator != null) {
+            prometheusSummary(sb, "ride_replication_ack_seconds", replicationAck, 1e-9);
+            gauge(sb, "ride_replication_backups", replicator.backups());
+            gauge(sb, "ride_replication_lag_records", replicator.lag());
+        }
+        gauge(sb, "ride_active_connections", Server.stats.activeConnections());
+        gauge(sb, "ride_online_drivers", Server.drivers.size());
+        gauge(sb, "ride_online_customers", Server.customers.size());
+        gauge(sb, "ride_live_rides", Server.rides.liveSize());
+        gauge(sb, "ride_archived_rides", Server.rides.archivedSize());
+        for (RideStatus status : RideStatus.values()) {
+            sb.append("ride_rides{status=\"").append(status.name()).append("\"} ")
+                    .append(Server.rides.countByStatus(status)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void prometheusSummary(StringBuilder sb, String name, LatencyHistogram h, double scale) {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        quantiles(sb, name, null, h, scale);
+    }
+
+    private static void quantiles(StringBuilder sb, String name, String labels, LatencyHistogram h, double scale) {
+        String prefix = labels != null ? labels + "," : "";
+        for (double q : new double[] {0.5, 0.99, 0.999}) {
+            sb.append(name).append("{").append(prefix).append("quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(q) * scale).append('\n');
+        }
+        sb.append(name).append("_count");
+        if (labels != null) sb.append("{").append(labels).append("}");
+        sb.append(' ').append(h.count()).append('\n');
+    }
+
+    // One slow client's outbound queue, read once so it sorts consistently.
+    private static final class Lagging {
+        final String user;
+        final int queued;
+        final long stalledMs;
+        final int dropped;
+        final int coalesced;
+
+        Lagging(String user, OutboundQueue q) {
+            this.user = user;
+            this.queued = q.size();
+            this.stalledMs = q.stalledMillis();
+            this.dropped = q.dropped();
+            this.coalesced = q.coalesced();
+        }
+
+        int backlog() {
+            return queued + dropped + coalesced;
+        }
+    }
+
+    // The online clients furthest behind, or that have lost messages, worst first.
+    private static List<Lagging> slowest(int n) {
+        List<Lagging> behind = new ArrayList<>();
+        for (Iterable<ClientHandler> online : List.of(Server.drivers, Server.customers)) {
+            for (ClientHandler client : online) {
+                OutboundQueue q = client.outbound();
+                if (q != null && (q.size() > 0 || q.dropped() > 0 || q.coalesced() > 0)) {
+                    behind.add(new Lagging(client.getUserName(), q));
+                }
+            }
+        }
+        behind.sort(Comparator.comparingInt(Lagging::backlog).reversed());
+        return behind.subList(0, Math.min(n, behind.size()));
+    }
+
+    // A label value as the text format wants it: backslash, quote and newline escaped.
+    private static void appendLabelValue(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    // GET http://127.0.0.1:<port>/metrics. Loopback only: there is no authentication.
+    public void startHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = renderPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start(); // one dispatcher thread; scrapes are rare
+        ServerLog.info("Metrics on http://127.0.0.1:{}/metrics", port);
+    }
+}
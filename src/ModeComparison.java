@@ -0,0 +1,99 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares server modes on the same machine: starts Server in a child JVM for each
+// mode, opens N idle connections, and reports resident memory per connection,
+// server thread count and accept-to-first-response latency.
+// Linux only (reads /proc/<pid>/status).
+// Usage: java ModeComparison [connections=2000] [modes=blocking,virtual,nio]
+public class ModeComparison {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] modes = (args.length > 1 ? args[1] : "blocking,virtual,nio").split(",");
+        int port = 12500;
+        System.out.printf("%-9s %8s %12s %10s %10s %10s%n",
+                "mode", "conns", "KB/conn", "threads", "p50 ms", "p99 ms");
+        for (String mode : modes) {
+            measure(mode, connections, port++);
+        }
+    }
+
+    private static void measure(String mode, int connections, int port) throws Exception {
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                "Server", "--mode=" + mode, "--port=" + port)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            PortProbe.await(new InetSocketAddress("localhost", port), server, 10_000);
+            // Warm up the accept and login path before taking the baseline.
+            for (int i = 0; i < 200; i++) {
+                firstResponse(port, sockets);
+            }
+            closeAll(sockets);
+            Thread.sleep(1000);
+            long baseRss = readStatus(server.pid(), "VmRSS:");
+
+            long[] latencies = new long[connections];
+            for (int i = 0; i < connections; i++) {
+                latencies[i] = firstResponse(port, sockets);
+            }
+            Thread.sleep(1000);
+            long rss = readStatus(server.pid(), "VmRSS:");
+            long threads = readStatus(server.pid(), "Threads:");
+            Arrays.sort(latencies);
+            System.out.printf("%-9s %8d %12.1f %10d %10.3f %10.3f%n",
+                    mode, connections, (rss - baseRss) / (double) connections, threads,
+                    latencies[connections / 2] / 1e6, latencies[(int) (connections * 0.99)] / 1e6);
+        } finally {
+            closeAll(sockets);
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Connect, send one line and time until the server's first response arrives.
+    private static long firstResponse(int port, List<Socket> sockets) throws IOException {
+        long start = System.nanoTime();
+        Socket socket = new Socket("localhost", port);
+        sockets.add(socket);
+        OutputStream out = socket.getOutputStream();
+        out.write("LOGIN:nobody:nothing\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        in.readLine();
+        return System.nanoTime() - start;
+    }
+
+    private static void closeAll(List<Socket> sockets) {
+        for (Socket s : sockets) {
+            try {
+                s.close();
+            } catch (IOException e) { }
+        }
+        sockets.clear();
+    }
+
+    // Reads a numeric field (kB for VmRSS) from /proc/<pid>/status.
+    private static long readStatus(long pid, String field) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+            if (line.startsWith(field)) {
+                return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return -1;
+    }
+}
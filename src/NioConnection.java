@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking transport owned by one NioServer.Worker. Reads are split into
+// commands by an InboundFramer and handed to the ClientHandler on the worker thread;
+// writes from any thread go to a bounded OutboundQueue that the worker drains,
+// coalescing everything queued since the last flush into a single write.
+public class NioConnection implements Connection {
+    private final SocketChannel channel;
+    private final NioServer.Worker worker;
+    private ClientHandler handler; // set by open, before the channel is registered
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private InboundFramer framer;
+
+    private final OutboundQueue outbound = new OutboundQueue(Server.config.outboundQueueCapacity);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024); // kept in fill mode
+    // Set while this connection sits in the worker's flush queue, so a burst of
+    // sends schedules one flush rather than one per message.
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile boolean overflowed = false;
+    private volatile boolean closeAfterFlush = false;
+    private volatile boolean closed = false;
+
+    private NioConnection(SocketChannel channel, NioServer.Worker worker) {
+        this.channel = channel;
+        this.worker = worker;
+    }
+
+    // The handler is built once the connection is, so it never sees a half-built one.
+    public static NioConnection open(SocketChannel channel, NioServer.Worker worker) {
+        NioConnection connection = new NioConnection(channel, worker);
+        connection.handler = new ClientHandler(connection);
+        connection.framer = new InboundFramer(connection.handler);
+        return connection;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (closed) return;
+        if (!outbound.offer(msg)) {
+            // Client is too far behind; drop it on the worker thread.
+            overflowed = true;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void close() {
+        // Let anything already queued (e.g. "DISCONNECTING") go out first.
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            worker.requestFlush(this);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    // Called on the worker thread when the channel has data.
+    void onReadable() {
+        int n;
+        try {
+            readBuffer.clear();
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            ServerLog.warn("IOException in NioConnection ({}): {}", handler.getUserName(), e.getMessage());
+            closeNow();
+            return;
+        }
+        if (n < 0) {
+            closeNow();
+            return;
+        }
+        if (closeAfterFlush) return; // already saying goodbye
+        boolean keepOpen;
+        try {
+            keepOpen = framer.feed(readBuffer.array(), 0, n);
+        } catch (RuntimeException e) {
+            // Never let one bad command take down the whole worker.
+            ServerLog.error("Error in NioConnection ({}): {}", handler.getUserName(), e);
+            closeNow();
+            return;
+        }
+        if (!keepOpen) {
+            // Either DISCONNECT (flush the goodbye first) or an over-long line.
+            if (handler.isRunning()) {
+                closeNow();
+            } else {
+                close();
+            }
+        }
+    }
+
+    // Called on the worker thread: write as much as the socket accepts.
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) return;
+        if (overflowed) {
+            ServerLog.warn("Slow client {} at {} ({}); disconnecting.", handler.getUserName(), getRemoteAddress(),
+                    outbound.describe());
+            Server.metrics.slowConsumerDisconnects.increment();
+            closeNow();
+            return;
+        }
+        try {
+            while (true) {
+                writeBuffer = outbound.drainTo(writeBuffer, framer.isBinary());
+                if (writeBuffer.position() == 0) break;
+                writeBuffer.flip();
+                channel.write(writeBuffer);
+                boolean partial = writeBuffer.hasRemaining();
+                writeBuffer.compact();
+                if (partial) {
+                    // Socket buffer full; wait for OP_WRITE.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closeAfterFlush) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            ServerLog.warn("IOException in NioConnection ({}): {}", handler.getUserName(), e.getMessage());
+            closeNow();
+        }
+    }
+
+    private void closeNow() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) { }
+        outbound.clear();
+        handler.onDisconnect();
+    }
+}
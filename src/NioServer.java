@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Non-blocking server mode: the accepting thread hands new channels to a small
+// pool of selector threads, each of which frames lines for many connections and
+// runs the same ClientHandler command logic as the blocking mode.
+public class NioServer {
+    private final ServerConfig config;
+    private final Worker[] workers;
+
+    public NioServer(ServerConfig config) {
+        this.config = config;
+        this.workers = new Worker[Math.max(1, config.ioThreads)];
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            Thread t = new Thread(workers[i], "nio-worker-" + i);
+            t.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                ServerLog.info("New connection from {}", channel.getRemoteAddress());
+                workers[next].register(channel);
+                next = (next + 1) % workers.length;
+            }
+        }
+    }
+
+    // One selector thread. All reads and command handling for its connections
+    // happen here; other threads only enqueue work and wake the selector.
+    static class Worker implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        Worker(int index) throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // Ask the worker to write out a connection's queued messages.
+        void requestFlush(NioConnection connection) {
+            pendingFlushes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inWorkerThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    registerPending();
+                    flushPending();
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    ServerLog.error("NIO worker error: {}", e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    // Checked here, where the connection is counted, so a burst of
+                    // accepts can overshoot --max-connections by at most one per worker.
+                    if (!Server.admission.acceptConnection()) {
+                        ServerLog.warn("Refused connection from {}: {} open", channel.getRemoteAddress(),
+                                Server.config.maxConnections);
+                        channel.write(ByteBuffer.wrap(Admission.THROTTLED_LINE)); // still blocking: one short write
+                        channel.close();
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    NioConnection connection = NioConnection.open(channel, this);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.attach(key);
+                } catch (IOException e) {
+                    ServerLog.warn("NIO register error: {}", e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) { }
+                }
+            }
+        }
+
+        private void flushPending() {
+            NioConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                connection.flush();
+            }
+        }
+    }
+}
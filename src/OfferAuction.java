@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Optional auction mode (--auction-window-ms > 0): a new ride collects offers for
+// a fixed window, then the timing wheel picks the best one by price and driver
+// rating and assigns it without waiting for the customer. If no offer arrived,
+// the window is re-armed, at most --max-widenings times, so a ride nobody bids
+// on stops holding a timer; the customer can still ASSIGN manually at any time.
+// close runs on the wheel thread, which must not block: with sync replication
+// the winner is told once the backups have the assignment, from the log writer.
+public class OfferAuction {
+
+    public static void start(Ride ride) {
+        long window = Server.config.auctionWindowMs;
+        if (window > 0) {
+            Server.timer.schedule(() -> close(ride, 0), window);
+        }
+    }
+
+    static void close(Ride ride, int rearmed) {
+        if (ride.getStatus() != RideStatus.REQUESTED) {
+            return;
+        }
+        List<Ride.Offer> offers = new ArrayList<>(ride.getOffers());
+        offers.sort((a, b) -> Double.compare(score(a), score(b)));
+        for (Ride.Offer offer : offers) {
+            ClientHandler driver = Server.rides.assign(ride, offer.getDriver().getUserName());
+            if (driver != null) {
+                Server.wal.afterDurable(() -> ride.notifyAssigned(driver));
+                return;
+            }
+            if (ride.getStatus() != RideStatus.REQUESTED) {
+                return; // cancelled or assigned manually meanwhile
+            }
+        }
+        // No usable offer yet: keep collecting, unless the window ran out of re-arms.
+        if (rearmed < Server.config.maxWidenings) {
+            Server.timer.schedule(() -> close(ride, rearmed + 1), Server.config.auctionWindowMs);
+        }
+    }
+
+    // Lower is better: a 5-star driver's price is discounted by the rating weight.
+    // The rating is the leaderboard score, so unrated drivers count as 3 stars.
+    static double score(Ride.Offer offer) {
+        double rating = Server.ratings.score(offer.getDriver().getUser());
+        return offer.getPrice() * (1.0 - Server.config.auctionRatingWeight * rating / 5.0);
+    }
+}
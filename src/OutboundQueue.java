@@ -0,0 +1,137 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded multi-producer queue of messages waiting to be written to one client.
+// Any thread may offer; only the connection's I/O side drains, copying every
+// message that fits into one buffer so they go out in a single write.
+//
+// A client that falls behind is handled by --slow-consumer: past half the
+// capacity, NEW_RIDE offers to it are dropped (a ride that old has been taken),
+// and with COALESCE a newer OFFERS or UPDATE for a ride takes the place of one
+// still queued. A full queue, or one that has not moved for --slow-consumer-ms,
+// makes offer refuse and the connection disconnects the client. Either way the
+// sender never waits, so one bad link costs the others nothing.
+public class OutboundQueue {
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final int highWater;
+    private final ServerConfig.SlowConsumerPolicy policy;
+    private final long stallNanos;
+    // COALESCE: the newest message per key. A key is here exactly while one
+    // message with it is queued; draining that message sends this one instead.
+    private final Map<Long, Message> latest = new ConcurrentHashMap<>();
+    // Polled by the drainer but not yet copied out (didn't fit). Drainer only.
+    private Message head;
+    // When the drainer last took something, or the queue last became non-empty.
+    private volatile long movedAt = System.nanoTime();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger coalesced = new AtomicInteger();
+
+    public OutboundQueue(int capacity) {
+        this(capacity, Server.config.slowConsumer, Server.config.slowConsumerMs);
+    }
+
+    public OutboundQueue(int capacity, ServerConfig.SlowConsumerPolicy policy, long stallMs) {
+        this.capacity = capacity;
+        this.highWater = Math.max(1, capacity / 2);
+        this.policy = policy;
+        this.stallNanos = stallMs * 1_000_000L;
+    }
+
+    // Returns false, without queueing, when the client is already capacity
+    // messages behind or has taken nothing for --slow-consumer-ms.
+    public boolean offer(Message msg) {
+        if (policy != ServerConfig.SlowConsumerPolicy.DISCONNECT) {
+            if (msg.isDroppable() && size.get() >= highWater) {
+                dropped.incrementAndGet();
+                Server.metrics.outboundDropped.increment();
+                return true;
+            }
+            long key = msg.coalesceKey();
+            if (policy == ServerConfig.SlowConsumerPolicy.COALESCE && key != 0 && latest.put(key, msg) != null) {
+                coalesced.incrementAndGet();
+                Server.metrics.outboundCoalesced.increment();
+                return true;
+            }
+        }
+        int depth = size.incrementAndGet();
+        long now = System.nanoTime();
+        if (depth > capacity || (stallNanos > 0 && depth > 1 && now - movedAt > stallNanos)) {
+            size.decrementAndGet();
+            return false;
+        }
+        if (depth == 1) movedAt = now;
+        queue.add(msg);
+        Server.metrics.outboundDepth.record(depth - 1);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // NEW_RIDEs shed and messages replaced by newer ones, over the connection's life.
+    public int dropped() {
+        return dropped.get();
+    }
+
+    public int coalesced() {
+        return coalesced.get();
+    }
+
+    // How long messages have been waiting without the client taking any; 0 if none wait.
+    public long stalledMillis() {
+        return isEmpty() ? 0 : (System.nanoTime() - movedAt) / 1_000_000L;
+    }
+
+    // "512 queued, 3200 ms without progress, 40 dropped, 2 coalesced", for logs.
+    public String describe() {
+        return size() + " queued, " + stalledMillis() + " ms without progress, "
+                + dropped() + " dropped, " + coalesced() + " coalesced";
+    }
+
+    // Append queued messages to buf (in fill mode) while they fit, encoded for the
+    // connection's protocol. A single message larger than the buffer gets a bigger
+    // buffer. Returns the buffer to keep using.
+    public ByteBuffer drainTo(ByteBuffer buf, boolean binary) {
+        int start = buf.position();
+        while (true) {
+            if (head == null) {
+                Message msg = queue.poll();
+                if (msg == null) break;
+                long key = msg.coalesceKey();
+                if (key != 0 && policy == ServerConfig.SlowConsumerPolicy.COALESCE) {
+                    msg = latest.remove(key);
+                    if (msg == null) continue; // cleared by a disconnect meanwhile
+                }
+                head = msg;
+            }
+            byte[] bytes = head.encoded(binary);
+            if (bytes.length > buf.remaining()) {
+                if (buf.position() > 0) break; // write what we have first
+                buf = ByteBuffer.allocate(Integer.highestOneBit(bytes.length) << 1);
+            }
+            buf.put(bytes);
+            head = null;
+            size.decrementAndGet();
+        }
+        if (buf.position() > start) movedAt = System.nanoTime();
+        return buf;
+    }
+
+    public void clear() {
+        while (queue.poll() != null) {
+            size.decrementAndGet();
+        }
+        latest.clear();
+    }
+}
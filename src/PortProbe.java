@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+// Waiting for a server that is still starting, for the tools that start or
+// drive one: LoadGenerator, ModeComparison and ShardCluster.
+final class PortProbe {
+    private static final int CONNECT_TIMEOUT_MS = 500;
+    private static final int RETRY_MS = 100;
+
+    private PortProbe() { }
+
+    // Return once something accepts connections on address. process, if not
+    // null, is the server being waited for: if it exits first, so does the wait.
+    static void await(InetSocketAddress address, Process process, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            Socket probe = new Socket();
+            try {
+                probe.connect(address, CONNECT_TIMEOUT_MS);
+                return;
+            } catch (IOException e) {
+                if (process != null && !process.isAlive()) {
+                    throw new IllegalStateException("Server for " + address + " exited with " + process.exitValue());
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("No server on " + address + " after " + timeoutMs + " ms");
+                }
+                Thread.sleep(RETRY_MS);
+            } finally {
+                try {
+                    probe.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+}
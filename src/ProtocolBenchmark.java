@@ -0,0 +1,64 @@
+import java.nio.charset.StandardCharsets;
+
+// Text vs binary protocol: encoded size of common messages and the cost of
+// parsing a command into typed arguments the way ClientHandler does.
+// Usage: java ProtocolBenchmark [iterations=5000000]
+public class ProtocolBenchmark {
+    private static volatile double sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+        System.out.printf("%-34s %8s %8s%n", "message", "text B", "binary B");
+        size("OFFER:123456:27.5", Command.OFFER, "123456", "27.5");
+        size("LOCATION:30.044420:31.235712", Command.LOCATION, "30.044420", "31.235712");
+        size("UPDATE:123456:START", Command.UPDATE, "123456", "START");
+        size("REQUEST:Tahrir:Zamalek:30.0444:31.2357", Command.REQUEST, "Tahrir", "Zamalek", "30.0444", "31.2357");
+        size(Message.newRide(123456, "Tahrir", "Zamalek"));
+        size(Message.rideUpdate(123456, RideStatus.CANCELLED));
+        size(Message.offers(123456, new String[] {"driver1", "driver2", "driver3"},
+                new double[] {27.5, 30, 25}, new double[] {4.5, 3.9, 5}));
+
+        System.out.println();
+        System.out.printf("%-34s %8s %8s%n", "parse (ns/op)", "text", "binary");
+        parse("OFFER:123456:27.5", Command.OFFER, "123456", "27.5", iterations);
+        parse("LOCATION:30.044420:31.235712", Command.LOCATION, "30.044420", "31.235712", iterations);
+    }
+
+    private static void size(String line, Command command, String... fields) {
+        System.out.printf("%-34s %8d %8d%n", command + " (client)",
+                (line + "\n").getBytes(StandardCharsets.UTF_8).length,
+                BinaryCodec.encodeCommand(command, (Object[]) fields).length);
+    }
+
+    private static void size(Message msg) {
+        String name = msg.text().substring(0, msg.text().indexOf(':'));
+        System.out.printf("%-34s %8d %8d%n", name + " (server)", msg.bytes().length, msg.frame().length);
+    }
+
+    // Both commands have a number in fields 1 and 2.
+    private static void parse(String line, Command command, String a, String b, int iterations) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = BinaryCodec.encodeCommand(command, a, b);
+        TextArgs text = new TextArgs();
+        BinaryArgs binary = new BinaryArgs();
+        long textNs = 0, binaryNs = 0;
+        for (int round = 0; round < 3; round++) { // first rounds are warm-up
+            long start = System.nanoTime();
+            double acc = 0;
+            for (int i = 0; i < iterations; i++) {
+                TextArgs args = text.reset(bytes, 0, bytes.length, false);
+                if (args.command() == command) acc += args.doubleArg(1) + args.doubleArg(2);
+            }
+            textNs = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BinaryArgs args = binary.reset(frame, 2, frame.length - 2);
+                if (args.command() == command) acc += args.doubleArg(1) + args.doubleArg(2);
+            }
+            binaryNs = System.nanoTime() - start;
+            sink = acc;
+        }
+        System.out.printf("%-34s %8.1f %8.1f%n", command, textNs / (double) iterations, binaryNs / (double) iterations);
+    }
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A driver's ratings: for each dimension (behaviour, car, ride), how many times
+// each of 1..5 stars was given. Counts, sums and means all derive from those 15
+// counters, so recording a rating is three atomic increments and nothing is
+// rounded. Readers see a slightly moving snapshot, like LatencyHistogram.
+public class RatingAggregate {
+    public static final int BEHAVIOUR = 0, CAR = 1, RIDE = 2;
+    static final int DIMENSIONS = 3;
+    static final int STARS = 5;
+
+    private final AtomicLongArray counts = new AtomicLongArray(DIMENSIONS * STARS);
+
+    // Kept by DriverRatings: the driver's leaderboard entry (null until rated), and
+    // the re-index requests not yet handled.
+    volatile DriverRatings.Entry rank;
+    final AtomicInteger reindexPending = new AtomicInteger();
+
+    // Scores are 1..5, already validated.
+    void record(int behaviour, int car, int ride) {
+        counts.getAndIncrement(BEHAVIOUR * STARS + behaviour - 1);
+        counts.getAndIncrement(CAR * STARS + car - 1);
+        counts.getAndIncrement(RIDE * STARS + ride - 1);
+    }
+
+    // Number of ratings.
+    public long count() {
+        return count(RIDE);
+    }
+
+    public long count(int dimension) {
+        long total = 0;
+        for (int star = 1; star <= STARS; star++) {
+            total += counts.get(dimension * STARS + star - 1);
+        }
+        return total;
+    }
+
+    public long sum(int dimension) {
+        long total = 0;
+        for (int star = 1; star <= STARS; star++) {
+            total += star * counts.get(dimension * STARS + star - 1);
+        }
+        return total;
+    }
+
+    // 0 when unrated.
+    public double mean(int dimension) {
+        long n = count(dimension);
+        return n == 0 ? 0 : (double) sum(dimension) / n;
+    }
+
+    // Mean over all three dimensions: the driver's overall rating. 0 when unrated.
+    public double mean() {
+        long n = 0, total = 0;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            n += count(d);
+            total += sum(d);
+        }
+        return n == 0 ? 0 : (double) total / n;
+    }
+
+    // How many ratings gave each of 1..5 stars in this dimension.
+    public long[] distribution(int dimension) {
+        long[] stars = new long[STARS];
+        for (int i = 0; i < STARS; i++) {
+            stars[i] = counts.get(dimension * STARS + i);
+        }
+        return stars;
+    }
+
+    // All 15 counters, dimension-major; the form the log and snapshots use.
+    long[] toArray() {
+        long[] values = new long[DIMENSIONS * STARS];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counts.get(i);
+        }
+        return values;
+    }
+
+    // Recovery only, before the server accepts connections.
+    void restore(long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            counts.set(i, values[i]);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Write-ahead log numbers: what logging costs a command, how that compares with
+// an fsync per record, and how long a cold start takes with and without a snapshot.
+// Usage: java RecoveryBenchmark [rides=1000000] [dir=<temp>]
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rides = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path dir = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("wal-bench");
+        clean(dir);
+
+        ServerConfig config = new ServerConfig();
+        config.walSegmentMb = 1024; // one segment until we ask for a snapshot
+        config.snapshotIntervalS = 3600;
+        WriteAheadLog wal = WriteAheadLog.open(dir, config);
+
+        // A full ride lifecycle is 5 records: ride, assign, start, end, rated.
+        int customers = 10_000, drivers = 2_000;
+        for (int i = 0; i < customers; i++) wal.logUser(new User("customer" + i, "pw", "customer"));
+        for (int i = 0; i < drivers; i++) wal.logUser(new User("driver" + i, "pw", "driver"));
+        long start = System.nanoTime();
+        for (int id = 1; id <= rides; id++) {
+            logLifecycle(wal, id, customers, drivers);
+        }
+        long appendNanos = System.nanoTime() - start;
+        wal.sync();
+        long durableNanos = System.nanoTime() - start;
+        long records = rides * 5L;
+        System.out.printf("append:        %,d records, %.0f ns/record on the caller, durable after %.2f s (group commit)%n",
+                records, appendNanos / (double) records, durableNanos / 1e9);
+        System.out.printf("fsync each:    %.0f ns/record%n", fsyncPerRecordNanos(dir.resolve("fsync-probe")));
+
+        long logBytes = directorySize(dir);
+        start = System.nanoTime();
+        LogState replayed = recover(dir);
+        System.out.printf("cold start, log only:       %.2f s (%,d rides, %,d MB of log)%n",
+                (System.nanoTime() - start) / 1e9, replayed.rides.size(), logBytes >> 20);
+        replayed = null;
+
+        wal.snapshotNow();
+        int tail = Math.max(1, rides / 100);
+        for (int id = rides + 1; id <= rides + tail; id++) {
+            logLifecycle(wal, id, customers, drivers);
+        }
+        wal.sync();
+        start = System.nanoTime();
+        LogState recovered = recover(dir);
+        System.out.printf("cold start, snapshot+tail:  %.2f s (%,d rides, tail of %,d rides)%n",
+                (System.nanoTime() - start) / 1e9, recovered.rides.size(), tail);
+
+        start = System.nanoTime();
+        recovered.materialize();
+        System.out.printf("materialize into Server:    %.2f s%n", (System.nanoTime() - start) / 1e9);
+        wal.close();
+        clean(dir);
+    }
+
+    private static void logLifecycle(WriteAheadLog wal, int id, int customers, int drivers) {
+        String driver = "driver" + (id % drivers);
+        wal.logRide(Ride.restore(id, "customer" + (id % customers), "Tahrir", "Zamalek",
+                30.0444, 31.2357, RideStatus.REQUESTED, null, false));
+        wal.logAssign(id, driver);
+        wal.logStatus(id, RideStatus.START);
+        wal.logStatus(id, RideStatus.END);
+        wal.logRating(id, driver, 5, 4, 4, "ok");
+    }
+
+    // Same steps as WriteAheadLog.open, without installing the result.
+    private static LogState recover(Path dir) throws Exception {
+        LogState state = null;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("snapshot-") && name.endsWith(".snap")) {
+                    state = LogState.readSnapshot(file);
+                } else if (name.startsWith("wal-") && name.endsWith(".log")) {
+                    if (state == null) state = new LogState();
+                    state.replay(file);
+                }
+            }
+        }
+        return state;
+    }
+
+    private static double fsyncPerRecordNanos(Path file) throws Exception {
+        int n = 2000;
+        ByteBuffer rec = ByteBuffer.allocate(60);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                rec.clear();
+                channel.write(rec);
+                channel.force(false);
+            }
+            return (System.nanoTime() - start) / (double) n;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static long directorySize(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static void clean(Path dir) throws Exception {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).filter(f -> !f.equals(dir)).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// What replication costs, between two JVMs on this host: log throughput with no
+// backup, with async acks and with sync acks, how far the backup trails (send to
+// ack), and how much an async backup is behind when the appends stop. The backup
+// is a real Server with --backup-of. The log is not fsynced, so the numbers are
+// the network's, not the disk's.
+//
+// Then, in each ack mode, a backup that connects and never reads: the primary
+// has to drop it within the stall timeout and go on logging.
+// Usage: java ReplicationBenchmark [rides=100000] [threads=64]
+public class ReplicationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rides = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        System.out.printf("%,d rides (%,d records) from %d threads%n", rides, rides * 4L, threads);
+        System.out.printf("%-10s %12s %12s %12s %16s%n", "mode", "records/s", "ack p50", "ack p99", "behind at end");
+        run("no backup", null, rides, threads);
+        run("async", false, rides, threads);
+        run("sync", true, rides, threads);
+        System.out.println();
+        System.out.printf("%-10s %12s %16s%n", "stalled", "dropped in", "records/s after");
+        stalled("async", false, threads);
+        stalled("sync", true, threads);
+    }
+
+    // sync null: no replication at all.
+    private static void run(String label, Boolean sync, int rides, int threads) throws Exception {
+        Path dir = Files.createTempDirectory("repl-bench");
+        ServerConfig config = new ServerConfig();
+        config.walFsync = false;
+        config.walSegmentMb = 1024; // no compaction while we measure
+        config.replicatePort = sync != null ? freePort() : 0;
+        config.replicationSync = sync != null && sync;
+        Server.metrics = new Metrics();
+        WriteAheadLog wal = WriteAheadLog.open(dir, config);
+        Replicator replicator = wal.replicator();
+        Process backup = null;
+        if (replicator != null) {
+            backup = startBackup(config.replicatePort);
+            long deadline = System.nanoTime() + 30_000_000_000L;
+            while (replicator.backups() == 0) {
+                if (System.nanoTime() > deadline || !backup.isAlive()) throw new IllegalStateException("Backup did not join");
+                Thread.sleep(10);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int t = 0; t < threads; t++) {
+                int first = t + 1;
+                pool.submit(() -> {
+                    for (int id = first; id <= rides; id += threads) logLifecycle(wal, id);
+                });
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long behind = wal.pending() + (replicator != null ? replicator.lag() : 0);
+        long drainStart = System.nanoTime();
+        wal.sync();
+        while (replicator != null && replicator.lag() > 0 && replicator.backups() > 0) {
+            LockSupport.parkNanos(50_000);
+        }
+        long drainMicros = (System.nanoTime() - drainStart) / 1000;
+
+        LatencyHistogram acks = Server.metrics.replicationAck;
+        System.out.printf("%-10s %,12.0f %12s %12s %16s%n", label, rides * 4L / (nanos / 1e9),
+                replicator != null ? micros(acks.percentile(0.5)) : "-",
+                replicator != null ? micros(acks.percentile(0.99)) : "-",
+                String.format("%,d rec/%,d us", behind, drainMicros));
+
+        if (backup != null) {
+            backup.destroy();
+            backup.waitFor();
+        }
+        wal.close();
+        clean(dir);
+    }
+
+    // Log rides until a backup that never reads is dropped, then for a second
+    // more to see the primary is back to full speed.
+    private static void stalled(String label, boolean sync, int threads) throws Exception {
+        Path dir = Files.createTempDirectory("repl-bench");
+        ServerConfig config = new ServerConfig();
+        config.walFsync = false;
+        config.walSegmentMb = 1024;
+        config.replicatePort = freePort();
+        config.replicationSync = sync;
+        Server.metrics = new Metrics();
+        WriteAheadLog wal = WriteAheadLog.open(dir, config);
+        Replicator replicator = wal.replicator();
+        SocketChannel stuck = SocketChannel.open();
+        stuck.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+        stuck.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.replicatePort));
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (replicator.backups() == 0) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Backup did not join");
+            Thread.sleep(10);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong logged = new AtomicLong();
+        long start = System.nanoTime();
+        long droppedAt;
+        long loggedAtDrop;
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int t = 0; t < threads; t++) {
+                int first = t + 1;
+                pool.submit(() -> {
+                    for (int id = first; !stop.get(); id += threads) {
+                        logLifecycle(wal, id);
+                        logged.addAndGet(4);
+                    }
+                });
+            }
+            while (replicator.backups() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            droppedAt = System.nanoTime();
+            loggedAtDrop = logged.get();
+            Thread.sleep(1000);
+            stop.set(true);
+        }
+        long after = logged.get() - loggedAtDrop;
+        double afterSeconds = (System.nanoTime() - droppedAt) / 1e9;
+        stuck.close();
+        wal.close();
+        clean(dir);
+        if (replicator.backups() > 0) throw new IllegalStateException(label + ": stalled backup was never dropped");
+        System.out.printf("%-10s %10.1f s %,16.0f%n", label, (droppedAt - start) / 1e9, after / afterSeconds);
+    }
+
+    // A ride lifecycle without the rating: ride, assign, start, end.
+    private static void logLifecycle(WriteAheadLog wal, int id) {
+        String driver = "driver" + (id % 2000);
+        wal.logRide(Ride.restore(id, "customer" + (id % 10_000), "Tahrir", "Zamalek",
+                30.0444, 31.2357, RideStatus.REQUESTED, null, false));
+        wal.logAssign(id, driver);
+        wal.logStatus(id, RideStatus.START);
+        wal.logStatus(id, RideStatus.END);
+    }
+
+    private static Process startBackup(int replicatePort) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Server",
+                "--port=" + freePort(), "--backup-of=127.0.0.1:" + replicatePort)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1e3);
+    }
+
+    private static void clean(Path dir) throws Exception {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Primary side of replication (--replicate-port): streams the write-ahead log to
+// backups (StandbyReplica) as the log writer writes it.
+//
+// admit, ship and awaitAcks run on the WAL writer thread, between batches, so a
+// backup gets exactly the bytes of the log, in order. A backup that connects is
+// first sent the newest snapshot and the segments after it, then every batch as
+// it is written. Backups acknowledge how many live records they have applied,
+// once per burst of frames rather than per record; with sync acks the writer
+// waits for that before releasing the batch's commands.
+//
+// The writer never writes to a socket itself: it queues frames, and each backup
+// has a sender thread that writes them out. A full queue makes the writer wait
+// for that backup, as a slow backup always has; one whose connection takes no
+// bytes for STALL_TIMEOUT_NANOS is dropped instead, in either ack mode.
+//
+// Stream: frames of [u8 kind][i32 records][i32 length][bytes]. Acks: i64.
+public class Replicator {
+    static final byte SNAPSHOT = 1;  // a snapshot file; empty for "start from nothing"
+    static final byte CATCH_UP = 2;  // a log segment written before the backup joined
+    static final byte RECORDS = 3;   // a batch of live records
+
+    // A backup whose connection hasn't taken a write, or that hasn't acknowledged
+    // a sync batch, by then is dropped, so one stuck backup can't stop the primary.
+    private static final long STALL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // Live records queued for one backup before the writer waits for it.
+    private static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+    // Catch-up files go out in pieces this big, so a big one isn't taken for a stall.
+    private static final long FILE_CHUNK = 1024 * 1024;
+
+    // What a backup's sender writes next: data, or the first length bytes of a
+    // log file, opened (and measured) when the backup joined.
+    private static final class Frame {
+        final byte kind;
+        final int records;
+        final int length;
+        final ByteBuffer data;
+        final FileChannel file;
+
+        Frame(byte kind, int records, ByteBuffer data) {
+            this.kind = kind;
+            this.records = records;
+            this.length = data.remaining();
+            this.data = data;
+            this.file = null;
+        }
+
+        Frame(byte kind, FileChannel file) throws IOException {
+            this.kind = kind;
+            this.records = 0;
+            this.length = (int) file.size(); // well under 2 GB: segments roll over at --wal-segment-mb
+            this.data = null;
+            this.file = file;
+        }
+    }
+
+    static final class Backup {
+        final SocketChannel channel;
+        final String address;
+        // Live records queued (writer thread) and acknowledged (ack thread).
+        volatile long shipped;
+        volatile long acked;
+        final AtomicBoolean closed = new AtomicBoolean();
+        // {records shipped through, nanoTime} per batch, until acknowledged.
+        final Queue<long[]> inFlight = new ConcurrentLinkedQueue<>();
+        final Queue<Frame> outbox = new ConcurrentLinkedQueue<>();
+        // Frames in outbox or being written, and the bytes of live records among them.
+        final AtomicInteger queuedFrames = new AtomicInteger();
+        final AtomicLong queuedBytes = new AtomicLong();
+        // When the sender's current write started; 0 between writes.
+        volatile long writingSince;
+        // Set once the catch-up files are out; sync acks wait only for these.
+        volatile boolean caughtUp;
+        // The writer is waiting for room in outbox.
+        volatile boolean writerWaiting;
+        volatile Thread sender;
+
+        Backup(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.address = String.valueOf(channel.getRemoteAddress());
+        }
+    }
+
+    private final boolean sync;
+    private final ServerSocketChannel listener;
+    private final Queue<Backup> joining = new ConcurrentLinkedQueue<>();
+    private final List<Backup> live = new CopyOnWriteArrayList<>();
+    private volatile Thread writer;
+    private volatile boolean closing = false;
+
+    Replicator(int port, boolean sync) throws IOException {
+        this.sync = sync;
+        // Loopback only, like the metrics endpoint: backups are not authenticated.
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ServerLog.info("Replicating the log on 127.0.0.1:{} ({} acks)", port, sync ? "sync" : "async");
+    }
+
+    // The WAL writer thread, woken when a backup joins, acknowledges or drops.
+    void setWriter(Thread writer) {
+        this.writer = writer;
+    }
+
+    boolean isSync() {
+        return sync;
+    }
+
+    public int backups() {
+        return live.size();
+    }
+
+    // Records sent but not yet acknowledged by the backup furthest behind.
+    public long lag() {
+        long lag = 0;
+        for (Backup backup : live) {
+            lag = Math.max(lag, backup.shipped - backup.acked);
+        }
+        return lag;
+    }
+
+    private void acceptLoop() {
+        while (!closing) {
+            try {
+                SocketChannel channel = listener.accept();
+                channel.socket().setTcpNoDelay(true);
+                joining.add(new Backup(channel));
+                Thread w = writer;
+                if (w != null) LockSupport.unpark(w);
+            } catch (IOException e) {
+                if (!closing) ServerLog.warn("Replication accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    boolean hasJoining() {
+        return !joining.isEmpty();
+    }
+
+    Backup nextJoining() {
+        return joining.poll();
+    }
+
+    // Writer thread: queue the log files that bring a new backup up to date, then
+    // add it to the live stream. The files are opened here, so one compacted
+    // away later is still sent whole, and measured here, so the segment being
+    // written sends only what the live stream won't. Can be called again for the
+    // same backup if the files were compacted away before they could be opened.
+    void admit(Backup backup, Path snapshot, List<Path> segments) throws IOException {
+        List<Frame> catchUp = new ArrayList<>();
+        try {
+            catchUp.add(snapshot != null ? new Frame(SNAPSHOT, open(snapshot))
+                    : new Frame(SNAPSHOT, 0, ByteBuffer.allocate(0)));
+            for (Path segment : segments) {
+                catchUp.add(new Frame(CATCH_UP, open(segment)));
+            }
+        } catch (IOException e) {
+            for (Frame frame : catchUp) closeFile(frame);
+            throw e;
+        }
+        for (Frame frame : catchUp) {
+            backup.queuedFrames.incrementAndGet();
+            backup.outbox.add(frame);
+        }
+        live.add(backup);
+        Thread sender = new Thread(() -> sendLoop(backup), "replication-send");
+        sender.setDaemon(true);
+        backup.sender = sender;
+        sender.start();
+        Thread acks = new Thread(() -> ackLoop(backup), "replication-acks");
+        acks.setDaemon(true);
+        acks.start();
+        ServerLog.info("Backup {} joined ({} log segments of catch-up)", backup.address, segments.size());
+    }
+
+    // Writer thread: queue a batch of records, just written to the log, for every
+    // live backup. The caller reuses its buffer, so the backups share one copy.
+    void ship(ByteBuffer records, int count) {
+        if (live.isEmpty()) return;
+        ByteBuffer copy = ByteBuffer.allocate(records.remaining()).put(records).flip();
+        for (Backup backup : live) {
+            if (!reserve(backup, copy.remaining())) continue;
+            long through = backup.shipped + count;
+            backup.inFlight.add(new long[] {through, System.nanoTime()});
+            backup.queuedFrames.incrementAndGet();
+            backup.outbox.add(new Frame(RECORDS, count, copy.duplicate()));
+            backup.shipped = through;
+            LockSupport.unpark(backup.sender);
+        }
+    }
+
+    // Writer thread: make room for length more bytes in the backup's queue,
+    // waiting while it is full. False, with the backup dropped, if its
+    // connection stops taking writes meanwhile (or already had).
+    private boolean reserve(Backup backup, int length) {
+        while (!backup.closed.get()) {
+            long since = backup.writingSince;
+            long stalled = since != 0 ? System.nanoTime() - since : 0;
+            if (stalled > STALL_TIMEOUT_NANOS) {
+                drop(backup, "no write went through in " + TimeUnit.NANOSECONDS.toSeconds(STALL_TIMEOUT_NANOS) + " s");
+                return false;
+            }
+            long queued = backup.queuedBytes.get();
+            if (queued == 0 || queued + length <= MAX_QUEUED_BYTES) {
+                backup.queuedBytes.addAndGet(length);
+                return true;
+            }
+            backup.writerWaiting = true;
+            if (backup.queuedBytes.get() == queued) LockSupport.parkNanos(this, STALL_TIMEOUT_NANOS - stalled);
+            backup.writerWaiting = false;
+        }
+        return false;
+    }
+
+    // Writer thread: with sync acks, wait until every live backup has applied all
+    // it was sent. Records that pile up meanwhile go out as the next, bigger batch.
+    // A backup still catching up isn't waited for: its acks start after the files.
+    void awaitAcks() {
+        if (!sync) return;
+        long deadline = System.nanoTime() + STALL_TIMEOUT_NANOS;
+        for (Backup backup : live) {
+            while (backup.caughtUp && backup.acked < backup.shipped && !backup.closed.get()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    drop(backup, "no acknowledgement within " + TimeUnit.NANOSECONDS.toSeconds(STALL_TIMEOUT_NANOS) + " s");
+                    break;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+        }
+    }
+
+    private void ackLoop(Backup backup) {
+        ByteBuffer ack = ByteBuffer.allocate(8);
+        try {
+            while (true) {
+                ack.clear();
+                while (ack.hasRemaining()) {
+                    if (backup.channel.read(ack) < 0) throw new EOFException("connection closed");
+                }
+                long acked = ack.getLong(0);
+                backup.acked = acked;
+                long[] batch;
+                while ((batch = backup.inFlight.peek()) != null && batch[0] <= acked) {
+                    backup.inFlight.poll();
+                    Server.metrics.replicationAck.recordSince(batch[1]);
+                }
+                if (sync) LockSupport.unpark(writer);
+            }
+        } catch (IOException e) {
+            drop(backup, e.getMessage());
+        }
+    }
+
+    // One per backup: write out its queued frames, in order, until it is dropped.
+    private void sendLoop(Backup backup) {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        try {
+            while (!backup.closed.get()) {
+                Frame frame = backup.outbox.poll();
+                if (frame == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                header.clear();
+                header.put(frame.kind).putInt(frame.records).putInt(frame.length).flip();
+                if (frame.file != null) {
+                    try (FileChannel in = frame.file) {
+                        write(backup, new ByteBuffer[] {header});
+                        for (long position = 0; position < frame.length; ) {
+                            backup.writingSince = System.nanoTime();
+                            position += in.transferTo(position, Math.min(frame.length - position, FILE_CHUNK), backup.channel);
+                            backup.writingSince = 0;
+                        }
+                    }
+                } else {
+                    write(backup, new ByteBuffer[] {header, frame.data});
+                }
+                if (frame.kind == RECORDS) {
+                    backup.queuedBytes.addAndGet(-frame.length);
+                    if (backup.writerWaiting) LockSupport.unpark(writer);
+                }
+                backup.queuedFrames.decrementAndGet();
+                Frame next = backup.outbox.peek();
+                if (next == null || next.kind == RECORDS) backup.caughtUp = true;
+            }
+        } catch (IOException e) {
+            drop(backup, e.getMessage());
+        } finally {
+            Frame frame;
+            while ((frame = backup.outbox.poll()) != null) closeFile(frame);
+        }
+    }
+
+    private static void write(Backup backup, ByteBuffer[] frame) throws IOException {
+        ByteBuffer last = frame[frame.length - 1];
+        while (last.hasRemaining() || frame[0].hasRemaining()) {
+            backup.writingSince = System.nanoTime();
+            backup.channel.write(frame);
+            backup.writingSince = 0;
+        }
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    private static void closeFile(Frame frame) {
+        if (frame.file == null) return;
+        try {
+            frame.file.close();
+        } catch (IOException e) { }
+    }
+
+    void drop(Backup backup, String reason) {
+        if (!backup.closed.compareAndSet(false, true)) return;
+        live.remove(backup);
+        try {
+            backup.channel.close(); // ends a write the sender is stuck in
+        } catch (IOException e) { }
+        Thread sender = backup.sender;
+        if (sender != null) LockSupport.unpark(sender);
+        if (!closing) ServerLog.warn("Backup {} dropped: {}", backup.address, reason);
+        Thread w = writer;
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    // After the writer has stopped. Backups get what is still queued for them
+    // (within the stall timeout), then see the stream end and take over.
+    void close() {
+        closing = true;
+        try {
+            listener.close();
+        } catch (IOException e) { }
+        long deadline = System.nanoTime() + STALL_TIMEOUT_NANOS;
+        for (Backup backup : live) {
+            while (backup.queuedFrames.get() > 0 && !backup.closed.get() && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            drop(backup, "shutting down");
+        }
+        Backup backup;
+        while ((backup = joining.poll()) != null) drop(backup, "shutting down");
+    }
+}
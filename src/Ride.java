@@ -1,31 +1,145 @@
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+// A ride and its lifecycle. Status and assigned driver change together through
+// compare-and-set on an immutable State, so concurrent ASSIGN/CANCEL/UPDATE
+// calls resolve without locks: exactly one caller wins each transition.
 public class Ride {
-    private static int idCounter = 1;
-
-    private int rideId;
-    private String pickup;
-    private String destination;
-    private ClientHandler customerHandler;
-    private boolean assigned = false;
-    private ClientHandler assignedDriver;
-    private String status = "REQUESTED"; // Possible statuses: REQUESTED, ASSIGNED, START, END, CANCELLED
-    private boolean rated = false; // Flag to track if this ride has been rated.
-    // Offers from drivers: key = driver username, value = fare offer
-    private Map<String, Double> offers = new HashMap<>();
+    // Per-shard sequence behind ride ids. An id is sequence * shardCount + shardIndex,
+    // so ids are unique across a sharded cluster and id % shardCount is the shard
+    // that owns the ride. With one shard the ids are just 1, 2, 3, ...
+    private static final AtomicInteger sequence = new AtomicInteger(1);
+
+    private final int rideId;
+    private final String pickup;
+    private final String destination;
+    private final ClientHandler customerHandler; // null for rides recovered from the log
+    private final String customerName;
+    // Pickup coordinates, or NaN when the customer gave none.
+    private final double pickupLatitude;
+    private final double pickupLongitude;
+    private final AtomicReference<State> state;
+    // UNRATED -> RATED by the first RATE. Once the ride is archived, ARCHIVED:
+    // the archive holds the rated flag from then on.
+    private static final int UNRATED = 0, RATED = 1, ARCHIVED = 2;
+    private final AtomicInteger rated;
+    private final long requestedAtNanos = System.nanoTime();
+    // Offers from drivers: key = lower-cased driver username
+    private final Map<String, Offer> offers = new ConcurrentHashMap<>();
+    // Drivers subscribed to this ride's lifecycle events: everyone sent NEW_RIDE
+    // for it, and everyone who offered on it.
+    private final Set<ClientHandler> subscribers = ConcurrentHashMap.newKeySet();
+
+    // Snapshot of the mutable part of a ride.
+    private static final class State {
+        final RideStatus status;
+        final ClientHandler driver;
+        final String driverName; // kept for recovered rides, whose driver has no handler
+
+        State(RideStatus status, ClientHandler driver, String driverName) {
+            this.status = status;
+            this.driver = driver;
+            this.driverName = driverName;
+        }
+
+        State withStatus(RideStatus next) {
+            return new State(next, driver, driverName);
+        }
+    }
+
+    // A driver's fare offer for this ride.
+    public static final class Offer {
+        final ClientHandler driver;
+        final double price;
+
+        Offer(ClientHandler driver, double price) {
+            this.driver = driver;
+            this.price = price;
+        }
+
+        public ClientHandler getDriver() {
+            return driver;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+    }
 
     public Ride(String pickup, String destination, ClientHandler customerHandler) {
-        this.rideId = idCounter++;
+        this(pickup, destination, customerHandler, Double.NaN, Double.NaN);
+    }
+
+    public Ride(String pickup, String destination, ClientHandler customerHandler,
+                double pickupLatitude, double pickupLongitude) {
+        this(nextId(), pickup, destination, customerHandler, customerHandler.getUserName(),
+                pickupLatitude, pickupLongitude, new State(RideStatus.REQUESTED, null, null), UNRATED);
+    }
+
+    private Ride(int rideId, String pickup, String destination, ClientHandler customerHandler, String customerName,
+                 double pickupLatitude, double pickupLongitude, State state, int rated) {
+        this.rideId = rideId;
         this.pickup = pickup;
         this.destination = destination;
         this.customerHandler = customerHandler;
+        this.customerName = customerName;
+        this.pickupLatitude = pickupLatitude;
+        this.pickupLongitude = pickupLongitude;
+        this.state = new AtomicReference<>(state);
+        this.rated = new AtomicInteger(rated);
+    }
+
+    // A ride rebuilt from the write-ahead log. Nobody is connected to it, so it has
+    // no handlers; new rides get ids after the highest recovered one.
+    static Ride restore(int rideId, String customerName, String pickup, String destination,
+                        double pickupLatitude, double pickupLongitude,
+                        RideStatus status, String driverName, boolean rated) {
+        skipIdsThrough(rideId);
+        return new Ride(rideId, pickup, destination, null, customerName, pickupLatitude, pickupLongitude,
+                new State(status, null, driverName), rated ? RATED : UNRATED);
+    }
+
+    // A finished ride read back from the archive, for lookups by id. Short-lived:
+    // rating goes through to the archive.
+    static Ride archived(int rideId, String customerName, String pickup, String destination,
+                         double pickupLatitude, double pickupLongitude, RideStatus status, String driverName) {
+        return new Ride(rideId, pickup, destination, null, customerName, pickupLatitude, pickupLongitude,
+                new State(status, null, driverName), ARCHIVED);
+    }
+
+    private static int nextId() {
+        return sequence.getAndIncrement() * Server.config.shardCount + Server.config.shardIndex;
+    }
+
+    // New rides get ids after rideId (used when recovering from the log).
+    static void skipIdsThrough(int rideId) {
+        sequence.accumulateAndGet(sequenceOf(rideId) + 1, Math::max);
+    }
+
+    // The per-shard sequence number a ride id was made from.
+    static int sequenceOf(int rideId) {
+        return rideId / Server.config.shardCount;
+    }
+
+    // The shard that owns a ride, in a cluster of shardCount shards.
+    public static int shardOf(int rideId, int shardCount) {
+        return rideId % shardCount;
     }
 
     public int getRideId() {
         return rideId;
     }
 
+    // System.nanoTime() when this ride object was created (the REQUEST, or the restart).
+    public long getRequestedAtNanos() {
+        return requestedAtNanos;
+    }
+
     public String getPickup() {
         return pickup;
     }
@@ -38,75 +152,211 @@ public class Ride {
         return customerHandler;
     }
 
-    public boolean isAssigned() {
-        return assigned;
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    // Where to tell the customer about this ride: the connection that requested
+    // it, or, for a ride recovered from the log, whoever is logged in as that
+    // customer now. Null when they are offline.
+    public ClientHandler currentCustomer() {
+        if (customerHandler != null) return customerHandler;
+        User owner = Server.users.get(customerName);
+        return owner != null ? owner.getHandler() : null;
+    }
+
+    // True if customer requested this ride: same connection, or, for a ride
+    // recovered from the log, the same account.
+    public boolean belongsTo(ClientHandler customer) {
+        if (customerHandler != null) return customerHandler == customer;
+        return customerName.equalsIgnoreCase(customer.getUserName());
+    }
+
+    public boolean hasPickupLocation() {
+        return !Double.isNaN(pickupLatitude);
     }
 
-    public void setAssigned(boolean assigned) {
-        this.assigned = assigned;
+    public double getPickupLatitude() {
+        return pickupLatitude;
+    }
+
+    public double getPickupLongitude() {
+        return pickupLongitude;
+    }
+
+    // Subscribe a driver about to be sent NEW_RIDE. Returns true the first time,
+    // so no driver is told twice.
+    public boolean markNotified(ClientHandler driver) {
+        return subscribers.add(driver);
+    }
+
+    public int getNotifiedCount() {
+        return subscribers.size();
+    }
+
+    // Send a lifecycle event (one shared encoding) to this ride's subscribers
+    // only, so it costs the drivers who know the ride, not the whole fleet. A
+    // ride recovered from the log has no subscribers: its driver, if it has one
+    // and they are online, is told instead.
+    public void publish(Message event) {
+        int sent = 0;
+        for (ClientHandler driver : subscribers) {
+            driver.sendMessage(event);
+            sent++;
+        }
+        String driverName = getAssignedDriverName();
+        if (customerHandler == null && driverName != null) {
+            User driver = Server.users.get(driverName);
+            ClientHandler handler = driver != null ? driver.getHandler() : null;
+            if (handler != null) {
+                handler.sendMessage(event);
+                sent++;
+            }
+        }
+        Server.metrics.eventFanOut.record(sent);
+    }
+
+    public boolean isAssigned() {
+        return state.get().driverName != null;
     }
 
     public ClientHandler getAssignedDriver() {
-        return assignedDriver;
+        return state.get().driver;
+    }
+
+    public String getAssignedDriverName() {
+        return state.get().driverName;
     }
 
-    public String getStatus() {
-        return status;
+    public RideStatus getStatus() {
+        return state.get().status;
     }
 
-    public void updateStatus(String newStatus) {
-        this.status = newStatus.toUpperCase();
+    // Atomically move from one status to another, keeping the driver.
+    // Only RideRepository should call this, so the indexes follow.
+    boolean compareAndSetStatus(RideStatus expected, RideStatus next) {
+        if (!expected.canTransitionTo(next)) return false;
+        while (true) {
+            State current = state.get();
+            if (current.status != expected) return false;
+            if (state.compareAndSet(current, current.withStatus(next))) return true;
+        }
+    }
+
+    // Cancel if not yet started. Returns the status it was cancelled from, or null.
+    RideStatus cancel() {
+        while (true) {
+            State current = state.get();
+            if (!current.status.canTransitionTo(RideStatus.CANCELLED)) return null;
+            if (state.compareAndSet(current, current.withStatus(RideStatus.CANCELLED))) {
+                return current.status;
+            }
+        }
+    }
+
+    // Assign a driver who has made an offer. Returns the driver, or null if the
+    // driver has no offer, is offline, or the ride is no longer REQUESTED.
+    ClientHandler assignDriver(String driverUsername) {
+        Offer offer = offers.get(driverUsername.toLowerCase(Locale.ROOT));
+        if (offer == null) {
+            return null;
+        }
+        return assignTo(offer.driver) ? offer.driver : null;
+    }
+
+    // REQUESTED -> ASSIGNED to the given online driver, offer or not (RideMatcher).
+    boolean assignTo(ClientHandler driver) {
+        if (!Server.drivers.contains(driver)) return false;
+        State current = state.get();
+        if (current.status != RideStatus.REQUESTED) return false;
+        return state.compareAndSet(current, new State(RideStatus.ASSIGNED, driver, driver.getUserName()));
+    }
+
+    // Mark rated once the ride has ended. Only the first caller gets true.
+    public boolean markRated() {
+        if (getStatus() != RideStatus.END) return false;
+        if (rated.compareAndSet(UNRATED, RATED)) return true;
+        return rated.get() == ARCHIVED && Server.rides.getArchive().markRated(rideId);
     }
 
     public boolean isRated() {
-        return rated;
+        int r = rated.get();
+        return r == RATED || (r == ARCHIVED && Server.rides.getArchive().isRated(rideId));
     }
 
-    public void setRated(boolean rated) {
-        this.rated = rated;
+    // Hand the rated flag over to the archive, which must already hold this ride.
+    // Returns whether the ride had been rated; a RATE racing with this either
+    // lands before (and is returned) or after (and goes to the archive).
+    boolean sealForArchive() {
+        return !rated.compareAndSet(UNRATED, ARCHIVED);
     }
 
-    // Add an offer from a driver.
-    public void addOffer(ClientHandler driverHandler, double price) {
-        offers.put(driverHandler.getUser().getUsername(), price);
+    // Add an offer from a driver. Returns false if the ride is no longer open for offers.
+    public boolean addOffer(ClientHandler driverHandler, double price) {
+        if (getStatus() != RideStatus.REQUESTED) return false;
+        String key = driverHandler.getUser().getUsername().toLowerCase(Locale.ROOT);
+        Offer offer = new Offer(driverHandler, price);
+        offers.put(key, offer);
+        // Subscribed before the re-check, so a CANCEL that wins after it still reaches this driver.
+        subscribers.add(driverHandler);
+        // Re-check: if the ride was assigned or cancelled meanwhile, withdraw the offer.
+        if (getStatus() != RideStatus.REQUESTED) {
+            offers.remove(key, offer);
+            return false;
+        }
+        Server.wal.logOffer(rideId, driverHandler.getUserName(), price);
+        return true;
+    }
+
+    public Collection<Offer> getOffers() {
+        return offers.values();
+    }
+
+    // Once assigned or cancelled, let every driver who offered send a new offer.
+    public void releaseOffers() {
+        for (Offer offer : offers.values()) {
+            offer.driver.clearCurrentOffer(rideId);
+        }
     }
 
     // Notify the customer about the offers received.
     public void notifyCustomerOffers() {
-        StringBuilder sb = new StringBuilder("OFFERS:" + rideId);
-        for (Map.Entry<String, Double> entry : offers.entrySet()) {
+        long start = System.nanoTime();
+        // Snapshot the offers; the message is encoded from these arrays.
+        Offer[] current = offers.values().toArray(new Offer[0]);
+        String[] names = new String[current.length];
+        double[] prices = new double[current.length];
+        double[] ratings = new double[current.length];
+        for (int i = 0; i < current.length; i++) {
             // Get driver's rating.
-            User driver = Server.users.stream()
-                    .filter(u -> u.getUsername().equalsIgnoreCase(entry.getKey()))
-                    .findFirst()
-                    .orElse(null);
-            double driverRating = (driver != null) ? driver.getRating() : 0.0;
-            sb.append(":" + entry.getKey() + "=" + entry.getValue() + "=Rating:" + String.format("%.2f", driverRating));
+            User driver = current[i].driver.getUser();
+            names[i] = driver.getUsername();
+            prices[i] = current[i].price;
+            ratings[i] = driver.getRating();
         }
-        customerHandler.sendMessage(sb.toString());
-    }
-    // Assign a driver based on the provided username.
-    public ClientHandler assignDriver(String driverUsername) {
-        if (offers.containsKey(driverUsername)) {
-            for (ClientHandler driverHandler : Server.drivers) {
-                User dUser = driverHandler.getUser();
-                if (dUser != null && dUser.getUsername().equalsIgnoreCase(driverUsername)) {
-                    this.assignedDriver = driverHandler;
-                    this.status = "ASSIGNED";
-                    return driverHandler;
-                }
-            }
+        ClientHandler customer = currentCustomer();
+        if (customer != null) customer.sendMessage(Message.offers(rideId, names, prices, ratings));
+        Server.metrics.offersNotify.recordSince(start);
+    }
+
+    // Tell both sides about a winning assignment and free the other drivers' offers.
+    public void notifyAssigned(ClientHandler driver) {
+        ClientHandler customer = currentCustomer();
+        if (customer != null) customer.sendMessage("RIDE_ASSIGNED:Driver " + driver.getUserName());
+        driver.sendMessage(Message.assigned(rideId));
+        driver.setBusy(true);
+        // The other drivers who offered learn the ride is taken and they may offer again.
+        Message taken = null;
+        for (Offer offer : offers.values()) {
+            if (offer.driver == driver) continue;
+            if (taken == null) taken = Message.rideUpdate(rideId, RideStatus.ASSIGNED);
+            offer.driver.sendMessage(taken);
         }
-        return null;
+        releaseOffers();
     }
 
     // Helper method to retrieve a ride by its ID.
     public static Ride getRideById(int id) {
-        for (Ride ride : Server.rides) {
-            if (ride.getRideId() == id) {
-                return ride;
-            }
-        }
-        return null;
+        return Server.rides.get(id);
     }
 }
@@ -0,0 +1,199 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Finished rides (END or CANCELLED), moved out of the live repository and kept
+// as primitive columns indexed by ride id: 24 bytes a ride plus the UTF-8 of its
+// pickup and destination, instead of a Ride with its atomics, offer map and
+// handler references. Customer and driver names are interned to ints (there are
+// only as many as users); pickups and destinations are free text, so they are
+// stored per ride rather than collected in a table that only grows.
+// Coordinates are stored as floats (well under a metre).
+//
+// One writer (the repository's archiver thread), any number of readers. A
+// ride's meta slot is written last, so a reader that sees it set also sees the
+// ride's other columns.
+public class RideArchive {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // meta: 0 = not archived, otherwise status ordinal + 1, plus RATED_BIT.
+    private static final int STATUS_MASK = 0xFF;
+    private static final int RATED_BIT = 0x100;
+    private static final RideStatus[] STATUSES = RideStatus.values();
+    private static final int PLACES_INITIAL = 64 * 1024;
+
+    private static final class Chunk {
+        final int[] customer = new int[CHUNK_SIZE];
+        final int[] driver = new int[CHUNK_SIZE];
+        // Where the ride's pickup, then its destination, start in places.
+        final int[] placeAt = new int[CHUNK_SIZE];
+        final float[] latitude = new float[CHUNK_SIZE];
+        final float[] longitude = new float[CHUNK_SIZE];
+        final AtomicIntegerArray meta = new AtomicIntegerArray(CHUNK_SIZE);
+        // Each place as a varint of (UTF-8 length + 1, 0 for null) and the bytes.
+        // Appended by the writer and, like the columns, published by meta.
+        byte[] places = new byte[PLACES_INITIAL];
+        int placesUsed; // writer only
+    }
+
+    // Indexed by slot >>> CHUNK_BITS, where a ride's slot is its per-shard sequence
+    // number (Ride.sequenceOf), so a shard's ids pack densely; null for ranges
+    // with nothing archived.
+    private volatile Chunk[] chunks = new Chunk[0];
+    private final StringTable names = new StringTable();
+    private volatile int size;
+
+    // Writer only.
+    void add(int rideId, String customer, String driver, String pickup, String destination,
+             double latitude, double longitude, RideStatus status, boolean rated) {
+        int slot = Ride.sequenceOf(rideId);
+        Chunk chunk = chunkForWrite(slot);
+        int i = slot & CHUNK_MASK;
+        chunk.customer[i] = names.intern(customer);
+        chunk.driver[i] = names.intern(driver);
+        chunk.placeAt[i] = chunk.placesUsed;
+        appendPlace(chunk, pickup);
+        appendPlace(chunk, destination);
+        chunk.latitude[i] = (float) latitude;
+        chunk.longitude[i] = (float) longitude;
+        chunk.meta.set(i, (status.ordinal() + 1) | (rated ? RATED_BIT : 0));
+        size++;
+    }
+
+    // The ride as a handler-less Ride, or null if it is not archived.
+    public Ride get(int rideId) {
+        int slot = Ride.sequenceOf(rideId);
+        Chunk chunk = chunk(slot);
+        int i = slot & CHUNK_MASK;
+        int meta = chunk != null ? chunk.meta.get(i) : 0;
+        if (meta == 0) return null;
+        byte[] places = chunk.places;
+        int at = chunk.placeAt[i];
+        return Ride.archived(rideId, names.get(chunk.customer[i]), place(places, at),
+                place(places, nextPlace(places, at)), chunk.latitude[i], chunk.longitude[i],
+                STATUSES[(meta & STATUS_MASK) - 1], names.get(chunk.driver[i]));
+    }
+
+    public boolean contains(int rideId) {
+        int slot = Ride.sequenceOf(rideId);
+        Chunk chunk = chunk(slot);
+        return chunk != null && chunk.meta.get(slot & CHUNK_MASK) != 0;
+    }
+
+    // Set the rated flag of an ended ride. Only the first caller gets true.
+    boolean markRated(int rideId) {
+        int slot = Ride.sequenceOf(rideId);
+        Chunk chunk = chunk(slot);
+        if (chunk == null) return false;
+        int i = slot & CHUNK_MASK;
+        while (true) {
+            int meta = chunk.meta.get(i);
+            if ((meta & STATUS_MASK) != RideStatus.END.ordinal() + 1 || (meta & RATED_BIT) != 0) return false;
+            if (chunk.meta.compareAndSet(i, meta, meta | RATED_BIT)) return true;
+        }
+    }
+
+    boolean isRated(int rideId) {
+        int slot = Ride.sequenceOf(rideId);
+        Chunk chunk = chunk(slot);
+        return chunk != null && (chunk.meta.get(slot & CHUNK_MASK) & RATED_BIT) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Chunk chunk(int slot) {
+        Chunk[] current = chunks;
+        int index = slot >>> CHUNK_BITS;
+        return index < current.length ? current[index] : null;
+    }
+
+    private Chunk chunkForWrite(int slot) {
+        int index = slot >>> CHUNK_BITS;
+        Chunk[] current = chunks;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+        } else if (current[index] != null) {
+            return current[index];
+        } else {
+            current = current.clone();
+        }
+        Chunk chunk = new Chunk();
+        current[index] = chunk;
+        chunks = current;
+        return chunk;
+    }
+
+    // Writer only.
+    private static void appendPlace(Chunk chunk, String place) {
+        byte[] bytes = place != null ? place.getBytes(StandardCharsets.UTF_8) : null;
+        int header = bytes != null ? bytes.length + 1 : 0;
+        int needed = chunk.placesUsed + 5 + (bytes != null ? bytes.length : 0);
+        if (needed > chunk.places.length) {
+            chunk.places = Arrays.copyOf(chunk.places, Math.max(needed, chunk.places.length * 2));
+        }
+        byte[] places = chunk.places;
+        int at = chunk.placesUsed;
+        while (header >= 0x80) {
+            places[at++] = (byte) (header | 0x80);
+            header >>>= 7;
+        }
+        places[at++] = (byte) header;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, places, at, bytes.length);
+            at += bytes.length;
+        }
+        chunk.placesUsed = at;
+    }
+
+    private static String place(byte[] places, int at) {
+        long header = header(places, at);
+        int length = (int) (header >>> 32) - 1;
+        return length < 0 ? null : new String(places, (int) header, length, StandardCharsets.UTF_8);
+    }
+
+    // Where the place after the one at at starts.
+    private static int nextPlace(byte[] places, int at) {
+        long header = header(places, at);
+        return (int) header + Math.max((int) (header >>> 32) - 1, 0);
+    }
+
+    // The varint at at: its value in the high half, where it ends in the low.
+    private static long header(byte[] places, int at) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = places[at++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return (long) value << 32 | at;
+        }
+    }
+
+    // Interned strings by id; -1 stands for null. Interning is writer-only.
+    private static final class StringTable {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private volatile String[] values = new String[1024];
+        private int count;
+
+        int intern(String s) {
+            if (s == null) return -1;
+            Integer id = ids.get(s);
+            if (id != null) return id;
+            String[] current = values;
+            if (count == current.length) {
+                current = Arrays.copyOf(current, count * 2);
+                values = current;
+            }
+            current[count] = s;
+            ids.put(s, count);
+            return count++;
+        }
+
+        String get(int id) {
+            return id < 0 ? null : values[id];
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.List;
+
+// Decides which drivers hear about a new ride. Rides with pickup coordinates go
+// to the nearest free drivers first; if nobody has offered after a while the
+// search radius and driver count double, and after the last widening every free
+// driver is told. Rides without coordinates go to every free driver at once.
+public class RideDispatcher {
+
+    public static void dispatch(Ride ride) {
+        if (ride.hasPickupLocation()) {
+            dispatchNearby(ride, 0);
+        } else {
+            notifyAllFree(ride);
+        }
+    }
+
+    private static void dispatchNearby(Ride ride, int attempt) {
+        if (ride.getStatus() != RideStatus.REQUESTED || !ride.getOffers().isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ServerConfig config = Server.config;
+        if (attempt > config.maxWidenings) {
+            notifyAllFree(ride);
+            return;
+        }
+        int scale = 1 << attempt;
+        List<ClientHandler> nearby = Server.driverLocations.nearestFree(
+                ride.getPickupLatitude(), ride.getPickupLongitude(),
+                config.nearestDrivers * scale, config.searchRadiusKm * scale);
+        Message message = newRideMessage(ride);
+        int sent = 0;
+        for (ClientHandler driverHandler : nearby) {
+            if (ride.markNotified(driverHandler)) {
+                driverHandler.sendMessage(message);
+                sent++;
+            }
+        }
+        recordWave(start, sent);
+        Server.timer.schedule(() -> dispatchNearby(ride, attempt + 1), config.widenAfterMs);
+    }
+
+    // Send ride request to all free drivers not told yet.
+    private static void notifyAllFree(Ride ride) {
+        long start = System.nanoTime();
+        Message message = newRideMessage(ride);
+        int sent = 0;
+        for (ClientHandler driverHandler : Server.drivers) {
+            if (!driverHandler.isBusy() && ride.markNotified(driverHandler)) {
+                driverHandler.sendMessage(message);
+                sent++;
+            }
+        }
+        recordWave(start, sent);
+        if (ride.getNotifiedCount() == 0) {
+            ClientHandler customer = ride.currentCustomer();
+            if (customer != null) customer.sendMessage("INFO: No drivers are currently available.");
+        }
+    }
+
+    private static void recordWave(long startNanos, int sent) {
+        Server.metrics.dispatch.recordSince(startNanos);
+        Server.metrics.fanOut.record(sent);
+    }
+
+    // Built once per wave and shared by every recipient.
+    private static Message newRideMessage(Ride ride) {
+        return Message.newRide(ride.getRideId(), ride.getPickup(), ride.getDestination());
+    }
+}
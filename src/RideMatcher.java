@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Optional batch matching (--match-interval-ms > 0). Rides requested with pickup
+// coordinates skip the NEW_RIDE / OFFER / ASSIGN round: they queue here, and one
+// thread assigns them to free drivers every interval, for the whole batch at once.
+//
+// A batch copies the free drivers' positions into arrays ordered by grid cell
+// (see DriverLocationIndex), then looks up the nearest few of them for each
+// waiting ride, oldest ride first. That gives candidate pairs and their cost:
+// the pickup distance, discounted for well-rated drivers as in the offer
+// auction. It takes the pairs cheapest first, skipping any whose ride or driver
+// is already matched. That is greedy, not optimal, but it stays close to
+// optimal when drivers are dense. It takes O(pairs log pairs), and pairs are at
+// most --nearest-drivers per ride.
+//
+// Looking up candidates stops at --match-budget-ms. Rides not reached wait for
+// the next batch, ahead of newer ones. A ride with no driver in range for
+// --widen-after-ms goes to the NEW_RIDE round after all, which widens the
+// search up to the whole fleet.
+public class RideMatcher {
+    private final Queue<Ride> incoming = new ConcurrentLinkedQueue<>();
+    // Matcher thread only: rides waiting for a driver, oldest first.
+    private final List<Ride> waiting = new ArrayList<>();
+
+    // Take a new ride if matching is on and the ride can be placed on the map.
+    public boolean submit(Ride ride) {
+        if (Server.config.matchIntervalMs <= 0 || !ride.hasPickupLocation()) return false;
+        incoming.add(ride);
+        return true;
+    }
+
+    public void start(long intervalMs) {
+        Thread matcher = new Thread(() -> {
+            // A batch assigns thousands of rides: it can't wait for the backups on each.
+            WriteAheadLog.neverWaitOnThisThread();
+            long interval = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+            long next = System.nanoTime();
+            while (true) {
+                try {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    next = Math.max(next + interval, System.nanoTime());
+                    matchBatch();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    ServerLog.error("Ride matcher error: {}", e);
+                }
+            }
+        }, "ride-matcher");
+        matcher.setDaemon(true);
+        matcher.start();
+        ServerLog.info("Matching rides every {} ms", intervalMs);
+    }
+
+    // One batch. Returns the number of rides assigned.
+    int matchBatch() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(Server.config.matchBudgetMs);
+        ServerConfig config = Server.config;
+        Ride ride;
+        while ((ride = incoming.poll()) != null) {
+            waiting.add(ride);
+        }
+        waiting.removeIf(r -> r.getStatus() != RideStatus.REQUESTED);
+        if (waiting.isEmpty()) return 0;
+
+        // Candidate pairs as parallel arrays; order[i] packs pair i's cost (a
+        // non-negative float, whose bits sort like the value) over its index.
+        int capacity = Math.max(16, waiting.size() * 4);
+        int[] pairRide = new int[capacity];
+        ClientHandler[] pairDriver = new ClientHandler[capacity];
+        long[] order = new long[capacity];
+        int pairs = 0;
+        int reached = 0;
+        FreeDrivers free = new FreeDrivers();
+        int k = config.nearestDrivers;
+        int[] nearest = new int[k];
+        double[] distances = new double[k];
+        for (; reached < waiting.size() && System.nanoTime() < deadline; reached++) {
+            Ride r = waiting.get(reached);
+            int found = free.nearest(r.getPickupLatitude(), r.getPickupLongitude(), config.searchRadiusKm,
+                    nearest, distances);
+            if (pairs + found > pairRide.length) {
+                pairRide = Arrays.copyOf(pairRide, pairs * 2 + found);
+                pairDriver = Arrays.copyOf(pairDriver, pairs * 2 + found);
+                order = Arrays.copyOf(order, pairs * 2 + found);
+            }
+            for (int j = 0; j < found; j++) {
+                pairRide[pairs] = reached;
+                pairDriver[pairs] = free.drivers[nearest[j]];
+                order[pairs] = ((long) Float.floatToIntBits(free.cost(nearest[j], distances[j])) << 32) | pairs;
+                pairs++;
+            }
+        }
+        Arrays.sort(order, 0, pairs);
+
+        boolean[] done = new boolean[reached];
+        Set<ClientHandler> taken = new HashSet<>();
+        int matched = 0;
+        for (int i = 0; i < pairs; i++) {
+            int pair = (int) order[i];
+            int index = pairRide[pair];
+            ClientHandler driver = pairDriver[pair];
+            if (done[index] || taken.contains(driver)) continue;
+            Ride r = waiting.get(index);
+            if (r.getStatus() != RideStatus.REQUESTED) {
+                done[index] = true; // cancelled meanwhile
+                continue;
+            }
+            taken.add(driver);
+            if (assign(r, driver)) {
+                done[index] = true;
+                matched++;
+            }
+        }
+
+        // Drop what is settled; hand rides nobody is near to the NEW_RIDE round.
+        long widenAfter = TimeUnit.MILLISECONDS.toNanos(config.widenAfterMs);
+        int kept = 0;
+        for (int i = 0; i < waiting.size(); i++) {
+            Ride r = waiting.get(i);
+            if (i < reached && done[i]) continue;
+            if (start - r.getRequestedAtNanos() >= widenAfter && r.getStatus() == RideStatus.REQUESTED) {
+                RideDispatcher.dispatch(r);
+                OfferAuction.start(r);
+                continue;
+            }
+            waiting.set(kept++, r);
+        }
+        waiting.subList(kept, waiting.size()).clear();
+
+        Server.metrics.matchBatch.recordSince(start);
+        Server.metrics.matchPending.record(reached);
+        Server.metrics.matchAssigned.record(matched);
+        return matched;
+    }
+
+    // Claim the driver the way an OFFER does, so a customer's ASSIGN can't book
+    // them for another ride at the same time, then assign. The claim holds until
+    // the driver is told (with sync replication, once the backups have it).
+    private static boolean assign(Ride ride, ClientHandler driver) {
+        int rideId = ride.getRideId();
+        if (!driver.claimForRide(rideId)) return false;
+        boolean assigned = false;
+        try {
+            if (driver.isBusy()) return false; // assigned through an offer just before the claim
+            ride.markNotified(driver); // so a CANCEL reaches them
+            assigned = Server.rides.assignMatched(ride, driver);
+            return assigned;
+        } finally {
+            if (assigned) {
+                Server.wal.afterDurable(() -> {
+                    ride.notifyAssigned(driver);
+                    driver.clearCurrentOffer(rideId);
+                });
+            } else {
+                driver.clearCurrentOffer(rideId);
+            }
+        }
+    }
+
+    // The drivers free at the start of a batch, with their positions as read
+    // then, grouped by grid cell so a cell's drivers sit next to each other.
+    // Searching these flat arrays skips the busy drivers and the concurrent sets
+    // of the live index, so it is several times cheaper per ride.
+    private static final class FreeDrivers {
+        final ClientHandler[] drivers;
+        private final double[] lat;
+        private final double[] lon;
+        private final long[] cell;
+        // Rating scores, looked up once per batch when first needed; NaN until then.
+        private final double[] score;
+        // Index of each non-empty cell's first driver.
+        private final Map<Long, Integer> first = new HashMap<>();
+
+        FreeDrivers() {
+            int n = 0;
+            ClientHandler[] found = new ClientHandler[Math.max(16, Server.drivers.size())];
+            double[] foundLat = new double[found.length], foundLon = new double[found.length];
+            long[] foundCell = new long[found.length];
+            // Count each cell's drivers, then lay the cells out one after another.
+            Map<Long, int[]> counts = new HashMap<>();
+            for (ClientHandler driver : Server.drivers) {
+                if (driver.isBusy() || driver.getCurrentOfferRideId() != -1) continue;
+                double la = driver.getLatitude(), lo = driver.getLongitude();
+                if (Double.isNaN(la) || Double.isNaN(lo)) continue; // no position yet
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, n * 2);
+                    foundLat = Arrays.copyOf(foundLat, n * 2);
+                    foundLon = Arrays.copyOf(foundLon, n * 2);
+                    foundCell = Arrays.copyOf(foundCell, n * 2);
+                }
+                found[n] = driver;
+                foundLat[n] = la;
+                foundLon[n] = lo;
+                foundCell[n] = DriverLocationIndex.cellKey(la, lo);
+                counts.computeIfAbsent(foundCell[n], c -> new int[1])[0]++;
+                n++;
+            }
+            int next = 0;
+            for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+                first.put(entry.getKey(), next);
+                int count = entry.getValue()[0];
+                entry.getValue()[0] = next; // from here on: where the cell's next driver goes
+                next += count;
+            }
+            drivers = new ClientHandler[n];
+            lat = new double[n];
+            lon = new double[n];
+            cell = new long[n];
+            score = new double[n];
+            Arrays.fill(score, Double.NaN);
+            for (int i = 0; i < n; i++) {
+                int at = counts.get(foundCell[i])[0]++;
+                drivers[at] = found[i];
+                lat[at] = foundLat[i];
+                lon[at] = foundLon[i];
+                cell[at] = foundCell[i];
+            }
+        }
+
+        // Fill nearest/distances with up to nearest.length drivers within
+        // radiusKm, closest first, and return how many. Walks rings of cells
+        // outwards like DriverLocationIndex.nearestFree, but compares squared
+        // distances in degrees, with longitude scaled at the pickup's latitude:
+        // the same approximation as distanceKm, without a cos and sqrt per driver.
+        int nearest(double la, double lo, double radiusKm, int[] nearest, double[] distances) {
+            int k = nearest.length;
+            int size = 0;
+            int centerRow = (int) Math.floor(la / DriverLocationIndex.CELL_DEGREES);
+            int centerCol = (int) Math.floor(lo / DriverLocationIndex.CELL_DEGREES);
+            double lonScale = Math.max(0.01, Math.cos(Math.toRadians(la)));
+            double cellDegrees = DriverLocationIndex.CELL_DEGREES * lonScale;
+            double radius = radiusKm / DriverLocationIndex.KM_PER_DEGREE;
+            double radius2 = radius * radius;
+            int maxRing = (int) Math.ceil(radius / cellDegrees);
+            for (int ring = 0; ring <= maxRing; ring++) {
+                for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                    boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                    int step = edgeRow ? 1 : 2 * ring;
+                    for (int col = centerCol - ring; col <= centerCol + ring; col += Math.max(1, step)) {
+                        long key = DriverLocationIndex.key(row, col);
+                        Integer start = first.get(key);
+                        if (start == null) continue;
+                        for (int i = start; i < cell.length && cell[i] == key; i++) {
+                            double x = (lon[i] - lo) * lonScale, y = lat[i] - la;
+                            double d2 = x * x + y * y;
+                            if (d2 > radius2 || (size == k && d2 >= distances[k - 1])) continue;
+                            int at = size < k ? size++ : k - 1;
+                            while (at > 0 && distances[at - 1] > d2) {
+                                nearest[at] = nearest[at - 1];
+                                distances[at] = distances[at - 1];
+                                at--;
+                            }
+                            nearest[at] = i;
+                            distances[at] = d2;
+                        }
+                    }
+                }
+                double reach = ring * cellDegrees;
+                if (size == k && distances[k - 1] <= reach * reach) break;
+            }
+            for (int i = 0; i < size; i++) {
+                distances[i] = Math.sqrt(distances[i]) * DriverLocationIndex.KM_PER_DEGREE;
+            }
+            return size;
+        }
+
+        // Lower is better: the pickup distance, with a 5-star driver's discounted
+        // by --auction-rating-weight like their price in the offer auction.
+        float cost(int driver, double km) {
+            if (Double.isNaN(score[driver])) score[driver] = Server.ratings.score(drivers[driver].getUser());
+            return (float) (km * (1.0 - Server.config.auctionRatingWeight * score[driver] / 5.0));
+        }
+    }
+}
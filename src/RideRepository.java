@@ -0,0 +1,242 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Indexed store for rides: O(1) lookup by ride id, by the customer's or driver's
+// active ride and by status, plus a counter per status. Every state change goes through this class: the
+// ride's own compare-and-set decides the winner, and only the winner moves the
+// ride between indexes.
+//
+// With the archiver running, finished rides leave byId and liveByStatus for the
+// RideArchive, so the live set only holds rides in progress; lookups by id fall
+// back to it, and the counters still count them.
+public class RideRepository {
+    private final Map<Integer, Ride> byId = new ConcurrentHashMap<>();
+    // Active = not END or CANCELLED. A customer or driver has at most one.
+    private final Map<ClientHandler, Ride> activeByCustomer = new ConcurrentHashMap<>();
+    private final Map<ClientHandler, Ride> activeByDriver = new ConcurrentHashMap<>();
+    // Unfinished rides recovered from the log (after a restart or a failover), by
+    // lower-cased username: their users come back with new handlers.
+    private final Map<String, Ride> recoveredByCustomer = new ConcurrentHashMap<>();
+    private final Map<String, Ride> recoveredByDriver = new ConcurrentHashMap<>();
+    // Indexed by RideStatus ordinal. Striped, so transitions on different rides
+    // don't contend on one counter.
+    private final LongAdder[] byStatus = new LongAdder[RideStatus.values().length];
+    // The live rides in each status.
+    private final Map<RideStatus, Set<Ride>> liveByStatus = new EnumMap<>(RideStatus.class);
+    private final RideArchive archive = new RideArchive();
+    // Rides that reached END or CANCELLED and wait for the archiver.
+    private final Queue<Ride> finished = new ConcurrentLinkedQueue<>();
+    private volatile boolean archiving = false;
+
+    public RideRepository() {
+        for (int i = 0; i < byStatus.length; i++) {
+            byStatus[i] = new LongAdder();
+        }
+        for (RideStatus status : RideStatus.values()) {
+            liveByStatus.put(status, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    // Register a newly requested ride. Returns false if the customer already has an active ride.
+    public boolean add(Ride ride) {
+        if (activeByCustomer.putIfAbsent(ride.getCustomerHandler(), ride) != null) {
+            return false;
+        }
+        // Logged before the ride is visible, so its other records always follow it.
+        Server.wal.logRide(ride);
+        byId.put(ride.getRideId(), ride);
+        byStatus[ride.getStatus().ordinal()].increment();
+        liveByStatus.get(ride.getStatus()).add(ride);
+        Server.stats.rideRequested();
+        return true;
+    }
+
+    // Index a ride recovered from the log. It has no handlers, so its customer and
+    // driver find it by name.
+    void restore(Ride ride) {
+        byId.put(ride.getRideId(), ride);
+        byStatus[ride.getStatus().ordinal()].increment();
+        liveByStatus.get(ride.getStatus()).add(ride);
+        recoveredByCustomer.put(key(ride.getCustomerName()), ride);
+        if (ride.getAssignedDriverName() != null) {
+            recoveredByDriver.put(key(ride.getAssignedDriverName()), ride);
+        }
+    }
+
+    // A finished ride recovered from the log goes straight to the archive.
+    void restoreFinished(int rideId, String customer, String driver, String pickup, String destination,
+                         double latitude, double longitude, RideStatus status, boolean rated) {
+        Ride.skipIdsThrough(rideId);
+        archive.add(rideId, customer, driver, pickup, destination, latitude, longitude, status, rated);
+        byStatus[status.ordinal()].increment();
+    }
+
+    // Live ride, or a read-only copy of an archived one.
+    public Ride get(int rideId) {
+        Ride ride = byId.get(rideId);
+        return ride != null ? ride : archive.get(rideId);
+    }
+
+    RideArchive getArchive() {
+        return archive;
+    }
+
+    public Ride getActiveRideForCustomer(ClientHandler customer) {
+        Ride ride = activeByCustomer.get(customer);
+        return ride != null ? ride : recovered(recoveredByCustomer, customer);
+    }
+
+    public Ride getActiveRideForDriver(ClientHandler driver) {
+        Ride ride = activeByDriver.get(driver);
+        return ride != null ? ride : recovered(recoveredByDriver, driver);
+    }
+
+    private static Ride recovered(Map<String, Ride> byName, ClientHandler user) {
+        if (byName.isEmpty()) return null;
+        Ride ride = byName.get(key(user.getUserName()));
+        return ride != null && !ride.getStatus().isTerminal() ? ride : null;
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // REQUESTED -> ASSIGNED to a driver who offered. Returns the driver, or null if this call lost.
+    public ClientHandler assign(Ride ride, String driverUsername) {
+        ClientHandler driver = ride.assignDriver(driverUsername);
+        if (driver != null) {
+            Server.wal.logAssign(ride.getRideId(), driver.getUserName());
+            Server.metrics.timeToAssign.recordSince(ride.getRequestedAtNanos());
+            moved(ride, RideStatus.REQUESTED, RideStatus.ASSIGNED);
+        }
+        return driver;
+    }
+
+    // REQUESTED -> ASSIGNED to a driver the RideMatcher picked. Returns false if this call lost.
+    public boolean assignMatched(Ride ride, ClientHandler driver) {
+        if (!ride.assignTo(driver)) return false;
+        Server.wal.logAssign(ride.getRideId(), driver.getUserName());
+        Server.metrics.timeToAssign.recordSince(ride.getRequestedAtNanos());
+        moved(ride, RideStatus.REQUESTED, RideStatus.ASSIGNED);
+        return true;
+    }
+
+    // Atomic status transition (e.g. ASSIGNED -> START). Returns false if the ride was not in 'from'.
+    public boolean transition(Ride ride, RideStatus from, RideStatus to) {
+        if (!ride.compareAndSetStatus(from, to)) return false;
+        Server.wal.logStatus(ride.getRideId(), to);
+        moved(ride, from, to);
+        return true;
+    }
+
+    // Cancel from REQUESTED or ASSIGNED. Returns false if the ride has started or finished.
+    public boolean cancel(Ride ride) {
+        RideStatus from = ride.cancel();
+        if (from == null) return false;
+        Server.wal.logStatus(ride.getRideId(), RideStatus.CANCELLED);
+        moved(ride, from, RideStatus.CANCELLED);
+        return true;
+    }
+
+    public int size() {
+        return byId.size() + archive.size();
+    }
+
+    // Rides still held as Ride objects.
+    public int liveSize() {
+        return byId.size();
+    }
+
+    public int archivedSize() {
+        return archive.size();
+    }
+
+    // Move finished rides to the archive every intervalMs on a daemon thread.
+    public void startArchiver(long intervalMs) {
+        archiving = true;
+        Thread archiver = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                    archiveFinished();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    ServerLog.error("Ride archiver error: {}", e.getMessage());
+                }
+            }
+        }, "ride-archiver");
+        archiver.setDaemon(true);
+        archiver.start();
+    }
+
+    // Archive first, then unlink: a lookup by id always finds the ride in one of them.
+    // Returns the number of rides moved.
+    public int archiveFinished() {
+        int moved = 0;
+        Ride ride;
+        while ((ride = finished.poll()) != null) {
+            archive.add(ride.getRideId(), ride.getCustomerName(), ride.getAssignedDriverName(),
+                    ride.getPickup(), ride.getDestination(), ride.getPickupLatitude(), ride.getPickupLongitude(),
+                    ride.getStatus(), ride.isRated());
+            if (ride.sealForArchive()) {
+                archive.markRated(ride.getRideId()); // rated after the copy above, before the seal
+            }
+            byId.remove(ride.getRideId(), ride);
+            liveByStatus.get(ride.getStatus()).remove(ride);
+            moved++;
+        }
+        return moved;
+    }
+
+    public long countByStatus(RideStatus status) {
+        return byStatus[status.ordinal()].sum();
+    }
+
+    // The live rides in a status, as a read-only view that follows changes.
+    public Set<Ride> ridesWithStatus(RideStatus status) {
+        return Collections.unmodifiableSet(liveByStatus.get(status));
+    }
+
+    // Index update for a transition that already won its CAS. A later transition
+    // of the same ride may run its update first; the counters still add up once
+    // both have run, and the status sets and active-ride maps re-check the live status.
+    private void moved(Ride ride, RideStatus from, RideStatus to) {
+        byStatus[from.ordinal()].decrement();
+        byStatus[to.ordinal()].increment();
+        liveByStatus.get(from).remove(ride);
+        Set<Ride> now = liveByStatus.get(to);
+        now.add(ride);
+        if (ride.getStatus() != to) {
+            now.remove(ride); // already moved on; that transition's update added it
+        }
+        ClientHandler driver = ride.getAssignedDriver();
+        if (to == RideStatus.ASSIGNED) {
+            activeByDriver.put(driver, ride);
+            if (ride.getStatus().isTerminal()) {
+                activeByDriver.remove(driver, ride);
+            }
+        }
+        if (to.isTerminal()) {
+            if (ride.getCustomerHandler() != null) {
+                activeByCustomer.remove(ride.getCustomerHandler(), ride);
+            } else {
+                recoveredByCustomer.remove(key(ride.getCustomerName()), ride);
+                if (ride.getAssignedDriverName() != null) {
+                    recoveredByDriver.remove(key(ride.getAssignedDriverName()), ride);
+                }
+            }
+            if (driver != null) {
+                activeByDriver.remove(driver, ride);
+            }
+            if (archiving) finished.add(ride);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+// Lifecycle of a ride: REQUESTED -> ASSIGNED -> START -> END,
+// with CANCELLED reachable from REQUESTED or ASSIGNED.
+public enum RideStatus {
+    REQUESTED, ASSIGNED, START, END, CANCELLED;
+
+    public boolean isTerminal() {
+        return this == END || this == CANCELLED;
+    }
+
+    public boolean canTransitionTo(RideStatus next) {
+        switch (this) {
+            case REQUESTED:
+                return next == ASSIGNED || next == CANCELLED;
+            case ASSIGNED:
+                return next == START || next == CANCELLED;
+            case START:
+                return next == END;
+            default:
+                return false;
+        }
+    }
+}
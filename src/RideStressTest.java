@@ -0,0 +1,190 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Stress check for the ride state machine: many threads hammer one ride at a time
+// with OFFERs (through the real command path), ASSIGNs and CANCELs, then the
+// invariants are verified before the next round. Exits non-zero on any violation.
+// Usage: java RideStressTest [rounds=2000] [drivers=32] [assigners=4] [cancellers=2]
+public class RideStressTest {
+
+    // Connection stub that remembers what the handler last sent.
+    static class CapturingConnection implements Connection {
+        volatile String lastMessage;
+
+        @Override
+        public void send(Message msg) {
+            lastMessage = msg.text();
+        }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public String getRemoteAddress() {
+            return "stress";
+        }
+    }
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int driverCount = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int assigners = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int cancellers = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        ClientHandler customer = login("stress-customer", "customer");
+        ClientHandler[] drivers = new ClientHandler[driverCount];
+        CapturingConnection[] driverConnections = new CapturingConnection[driverCount];
+        for (int i = 0; i < driverCount; i++) {
+            driverConnections[i] = new CapturingConnection();
+            drivers[i] = login("stress-driver-" + i, "driver", driverConnections[i]);
+        }
+
+        int assignedRounds = 0, cancelledRounds = 0, assignedThenCancelled = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds && failures.isEmpty(); round++) {
+            customer.handleLine("REQUEST:here:there");
+            Ride ride = Server.rides.getActiveRideForCustomer(customer);
+            if (ride == null) {
+                fail(round, "REQUEST did not create an active ride");
+                break;
+            }
+            int rideId = ride.getRideId();
+
+            AtomicInteger offersSent = new AtomicInteger();
+            AtomicInteger assignWins = new AtomicInteger();
+            AtomicInteger cancelWins = new AtomicInteger();
+            ClientHandler[] winner = new ClientHandler[1];
+            CountDownLatch go = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < driverCount; i++) {
+                ClientHandler driver = drivers[i];
+                CapturingConnection connection = driverConnections[i];
+                threads.add(new Thread(() -> {
+                    await(go);
+                    driver.handleLine("OFFER:" + rideId + ":" + ThreadLocalRandom.current().nextInt(5, 50));
+                    if (("OFFER_SENT for ride " + rideId).equals(connection.lastMessage)) {
+                        offersSent.incrementAndGet();
+                    }
+                }));
+            }
+            for (int i = 0; i < assigners; i++) {
+                threads.add(new Thread(() -> {
+                    await(go);
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (ride.getStatus() == RideStatus.REQUESTED) {
+                        ClientHandler chosen = Server.rides.assign(ride, "stress-driver-" + random.nextInt(driverCount));
+                        if (chosen != null) {
+                            assignWins.incrementAndGet();
+                            winner[0] = chosen;
+                            ride.releaseOffers();
+                        }
+                    }
+                }));
+            }
+            // Cancellers join every other round, so some rides stay assigned.
+            for (int i = 0; i < (round % 2 == 0 ? cancellers : 0); i++) {
+                threads.add(new Thread(() -> {
+                    await(go);
+                    for (int spin = ThreadLocalRandom.current().nextInt(2000); spin > 0; spin--) {
+                        Thread.onSpinWait();
+                    }
+                    if (Server.rides.cancel(ride)) {
+                        cancelWins.incrementAndGet();
+                        ride.releaseOffers();
+                    }
+                }));
+            }
+            for (Thread t : threads) t.start();
+            go.countDown();
+            for (Thread t : threads) t.join();
+
+            // Invariants.
+            RideStatus status = ride.getStatus();
+            if (assignWins.get() > 1) fail(round, assignWins.get() + " ASSIGNs won");
+            if (cancelWins.get() > 1) fail(round, cancelWins.get() + " CANCELs won");
+            if (cancelWins.get() == 0 && status != RideStatus.ASSIGNED) fail(round, "ride left in " + status);
+            if (cancelWins.get() == 1 && status != RideStatus.CANCELLED) fail(round, "cancel won but ride is " + status);
+            if (assignWins.get() == 1 && ride.getAssignedDriver() != winner[0]) fail(round, "assigned driver differs from winner");
+            if (assignWins.get() == 0 && ride.isAssigned()) fail(round, "driver set without a winning ASSIGN");
+            if (ride.getOffers().size() != offersSent.get()) {
+                fail(round, offersSent.get() + " OFFER_SENT but " + ride.getOffers().size() + " offers recorded");
+            }
+            for (ClientHandler driver : drivers) {
+                if (driver.getCurrentOfferRideId() != -1) {
+                    fail(round, driver.getUserName() + " still has pending offer " + driver.getCurrentOfferRideId());
+                }
+            }
+            ClientHandler assigned = ride.getAssignedDriver();
+            if (assigned != null && (Server.rides.getActiveRideForDriver(assigned) == ride) != (status == RideStatus.ASSIGNED)) {
+                fail(round, "driver active-ride index out of step with status " + status);
+            }
+            checkStatusIndex(round);
+
+            if (status == RideStatus.ASSIGNED) {
+                assignedRounds++;
+                Server.rides.transition(ride, RideStatus.ASSIGNED, RideStatus.START);
+                Server.rides.transition(ride, RideStatus.START, RideStatus.END);
+            } else if (assignWins.get() == 1) {
+                assignedThenCancelled++;
+            } else {
+                cancelledRounds++;
+            }
+            if (assigned != null) assigned.setBusy(false);
+            if (Server.rides.getActiveRideForCustomer(customer) != null) {
+                fail(round, "customer still has an active ride after the round");
+            }
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        if (!failures.isEmpty()) {
+            failures.forEach(System.err::println);
+            System.exit(1);
+        }
+        System.out.println("PASS: " + rounds + " rounds in " + elapsedMs + " ms (assigned " + assignedRounds
+                + ", cancelled " + cancelledRounds + ", assigned then cancelled " + assignedThenCancelled + ")");
+    }
+
+    private static void checkStatusIndex(int round) {
+        long total = 0;
+        for (RideStatus s : RideStatus.values()) {
+            total += Server.rides.countByStatus(s);
+            for (Ride ride : Server.rides.ridesWithStatus(s)) {
+                if (ride.getStatus() != s) {
+                    fail(round, "ride " + ride.getRideId() + " listed under " + s + " but is " + ride.getStatus());
+                }
+            }
+        }
+        if (total != Server.rides.size()) {
+            fail(round, "status index holds " + total + " rides, repository holds " + Server.rides.size());
+        }
+    }
+
+    private static ClientHandler login(String username, String type) {
+        return login(username, type, new CapturingConnection());
+    }
+
+    private static ClientHandler login(String username, String type, CapturingConnection connection) {
+        Server.users.register(new User(username, "pw", type));
+        ClientHandler handler = new ClientHandler(connection);
+        handler.handleLine("LOGIN:" + username + ":pw");
+        return handler;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized void fail(int round, String message) {
+        failures.add("Round " + round + ": " + message);
+    }
+}
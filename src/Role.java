@@ -0,0 +1,8 @@
+// The kind of account a User has. Parsed once so hot paths compare enums, not strings.
+public enum Role {
+    CUSTOMER, DRIVER, ADMIN;
+
+    public static Role fromType(String type) {
+        return Role.valueOf(type.toUpperCase());
+    }
+}
@@ -1,38 +1,122 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
 
-    // Shared lists for registered users and ongoing rides
-    public static List<User> users = Collections.synchronizedList(new ArrayList<>());
-    public static List<ClientHandler> drivers = Collections.synchronizedList(new ArrayList<>());
-    public static List<ClientHandler> customers = Collections.synchronizedList(new ArrayList<>());
-    public static List<Ride> rides = Collections.synchronizedList(new ArrayList<>());
+    // Shared collections for registered users and ongoing rides.
+    // Lock-free so handlers never hold a monitor (which would pin a virtual thread).
+    public static UserRegistry users = new UserRegistry();
+    public static Set<ClientHandler> drivers = ConcurrentHashMap.newKeySet();
+    public static Set<ClientHandler> customers = ConcurrentHashMap.newKeySet();
+    // Logged-in sessions by token, for RESUME. Includes offline ones until they expire.
+    public static Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    public static RideRepository rides = new RideRepository();
+    public static DriverLocationIndex driverLocations = new DriverLocationIndex();
+    // Drivers ranked by rating, for the offer auction and the admin TOP command.
+    public static DriverRatings ratings = new DriverRatings();
+    // Batch assignment of rides to drivers; idle unless --match-interval-ms is set.
+    public static RideMatcher matcher = new RideMatcher();
+    // Rate limits and caps checked before each command and connection.
+    public static Admission admission = new Admission();
+    // Counters behind the admin STATS command.
+    public static ServerStats stats = new ServerStats();
+    // Latency histograms and queue depths behind METRICS and --metrics-port.
+    public static Metrics metrics = new Metrics();
+
+    public static ServerConfig config = new ServerConfig();
+    // Shared timer for per-ride deadlines: search widening and auction windows.
+    public static TimingWheel timer = TimingWheel.start(10, 512);
+    // Durable log of state changes; a no-op unless --data-dir is given.
+    public static WriteAheadLog wal = WriteAheadLog.DISABLED;
 
     // Pre-defined admin user is created here.
     static {
         // Admin credentials: username "admin", password "admin123", type "admin"
-        users.add(new User("admin", "admin123", "admin"));
+        users.register(new User("admin", "admin123", "admin"));
     }
 
     public static void main(String[] args) {
-        int port = 12345;
-        System.out.println("Server starting on port " + port);
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        ServerConfig config = ServerConfig.parse(args);
+        Server.config = config;
+        ServerLog.configure(config);
+        try {
+            if (config.backupOf != null) {
+                // A hot standby takes no clients until its primary is gone.
+                new StandbyReplica(config).follow();
+            }
+            if (config.dataDir != null) {
+                WriteAheadLog log = WriteAheadLog.open(Paths.get(config.dataDir), config);
+                wal = log;
+                Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+            }
+            if (config.archiveIntervalMs > 0) {
+                rides.startArchiver(config.archiveIntervalMs);
+            }
+            if (config.matchIntervalMs > 0) {
+                matcher.start(config.matchIntervalMs);
+            }
+            if (config.metricsPort > 0) {
+                metrics.startHttp(config.metricsPort);
+            }
+            ServerLog.info("Server starting on port {} ({} mode)", config.port, config.mode);
+            if (config.shardCount > 1) {
+                ServerLog.info("Shard {} of {}", config.shardIndex, config.shardCount);
+            }
+            if (config.mode == ServerConfig.Mode.NIO) {
+                new NioServer(config).run();
+            } else if (config.mode == ServerConfig.Mode.VIRTUAL) {
+                runVirtual(config);
+            } else {
+                runBlocking(config);
+            }
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // Original thread-per-connection mode.
+    private static void runBlocking(ServerConfig config) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(config.port)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New connection from " + clientSocket.getInetAddress());
+                if (!admit(clientSocket)) continue;
+                ServerLog.info("New connection from {}", clientSocket.getInetAddress());
                 ClientHandler handler = new ClientHandler(clientSocket);
                 Thread t = new Thread(handler);
                 t.start();
             }
-        } catch (IOException e) {
-            System.err.println("Server exception: " + e.getMessage());
-            e.printStackTrace();
         }
     }
+
+    // Same handler code as runBlocking, but each connection gets a virtual thread.
+    private static void runVirtual(ServerConfig config) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(config.port);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                if (!admit(clientSocket)) continue;
+                ServerLog.info("New connection from {}", clientSocket.getInetAddress());
+                executor.submit(new ClientHandler(clientSocket));
+            }
+        }
+    }
+
+    // Past --max-connections: say so and hang up, on the accepting thread. The
+    // reply is one short write, which the socket buffer takes without blocking.
+    private static boolean admit(Socket socket) {
+        if (admission.acceptConnection()) return true;
+        try (socket) {
+            socket.getOutputStream().write(Admission.THROTTLED_LINE);
+        } catch (IOException e) { }
+        ServerLog.warn("Refused connection from {}: {} open", socket.getInetAddress(), config.maxConnections);
+        return false;
+    }
 }
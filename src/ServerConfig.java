@@ -0,0 +1,284 @@
+// Command-line options for Server.
+// Usage: java Server [--port=12345] [--mode=blocking|virtual|nio] [--io-threads=N] [--outbound-queue=1024]
+//                    [--slow-consumer=disconnect|drop|coalesce] [--slow-consumer-ms=10000]
+//                    [--nearest-drivers=10] [--search-radius-km=3] [--widen-after-ms=5000] [--max-widenings=3]
+//                    [--auction-window-ms=0] [--auction-rating-weight=0.2]
+//                    [--match-interval-ms=0] [--match-budget-ms=50]
+//                    [--data-dir=DIR] [--wal-fsync=true] [--wal-segment-mb=64] [--snapshot-interval-s=300]
+//                    [--metrics-port=0] [--archive-interval-ms=1000]
+//                    [--session-ttl-ms=60000] [--session-buffer=256] [--shard-index=0] [--shard-count=1]
+//                    [--replicate-port=0] [--replication=async|sync] [--backup-of=HOST:PORT]
+//                    [--log-level=debug|info|warn|error|off] [--log-commands=false] [--log-file=FILE]
+//                    [--log-file-mb=64] [--log-files=5] [--log-buffer=8192]
+//                    [--conn-rate=0] [--auth-rate=5] [--ride-rate=0] [--rate-burst-s=2]
+//                    [--max-connections=0] [--max-inflight=0]
+public class ServerConfig {
+
+    public enum Mode {
+        BLOCKING, // one platform thread per connection (original behaviour)
+        VIRTUAL,  // one virtual thread per connection, same blocking handler code
+        NIO       // a few selector threads shared by all connections
+    }
+
+    // What happens to a client that reads more slowly than it is sent to.
+    public enum SlowConsumerPolicy {
+        DISCONNECT, // queue everything; disconnect it when --outbound-queue is full
+        DROP,       // past half of that, skip the NEW_RIDEs it would be sent
+        COALESCE    // DROP, and a queued OFFERS or ride update gives way to a newer one
+    }
+
+    public int port = 12345;
+    public Mode mode = Mode.BLOCKING;
+    public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // Messages a client may fall behind by before it is disconnected.
+    public int outboundQueueCapacity = 1024;
+    public SlowConsumerPolicy slowConsumer = SlowConsumerPolicy.DROP;
+    // Disconnect a client that has taken none of its waiting messages for this
+    // long, however few; 0 waits for the queue to fill.
+    public long slowConsumerMs = 10_000;
+
+    // NEW_RIDE fan-out for rides with pickup coordinates.
+    public int nearestDrivers = 10;
+    public double searchRadiusKm = 3.0;
+    public long widenAfterMs = 5000;
+    public int maxWidenings = 3;
+
+    // Offer auction: 0 disables it and leaves assignment to the customer. An empty
+    // window is re-armed up to maxWidenings times.
+    public long auctionWindowMs = 0;
+    public double auctionRatingWeight = 0.2;
+
+    // Batch matching (see RideMatcher): 0 leaves assignment to offers. Each batch
+    // spends at most matchBudgetMs looking for candidates.
+    public long matchIntervalMs = 0;
+    public long matchBudgetMs = 50;
+
+    // Server log (see ServerLog). Every command ("From user: line") is logged at
+    // DEBUG; --log-commands=true is short for --log-level=debug. null logs to
+    // stdout; a file rolls over at logFileMb, keeping logFiles old ones.
+    public ServerLog.Level logLevel = ServerLog.Level.INFO;
+    public String logFile = null;
+    public int logFileMb = 64;
+    public int logFiles = 5;
+    // Lines that may wait for the writer before new ones are dropped.
+    public int logBuffer = 8192;
+
+    // Admission control (see Admission). Rates are commands per second and 0 is
+    // no limit; a client may save up rateBurstS seconds' worth. The caps are
+    // server-wide, 0 for none.
+    public double connectionRate = 0;
+    public double authRate = 5;
+    public double rideRate = 0;
+    public double rateBurstS = 2;
+    public int maxConnections = 0;
+    public int maxInflight = 0;
+
+    // Persistence: null keeps everything in memory only (lost on restart).
+    public String dataDir = null;
+    // Force each group-committed batch to disk; false leaves it to the OS.
+    public boolean walFsync = true;
+    // A log segment is closed and folded into a snapshot when it reaches this
+    // size, or when it is this old.
+    public int walSegmentMb = 64;
+    public long snapshotIntervalS = 300;
+
+    // Serve /metrics over HTTP on this localhost port; 0 leaves it off.
+    public int metricsPort = 0;
+
+    // Move finished rides out of the live set into the compact RideArchive this
+    // often; 0 keeps them as Ride objects.
+    public long archiveIntervalMs = 1000;
+
+    // How long a logged-in session outlives a dropped connection, waiting for
+    // RESUME; 0 ends it with the connection (no tokens are issued). While
+    // offline, up to sessionBufferCapacity messages are kept for it.
+    public long sessionTtlMs = 60_000;
+    public int sessionBufferCapacity = 256;
+
+    // This server's place in a sharded cluster (see ShardRouter). Only ride ids
+    // depend on it: every shard keeps its own users, drivers and rides.
+    public int shardIndex = 0;
+    public int shardCount = 1;
+
+    // Hot standby. A primary with --replicate-port streams its write-ahead log to
+    // backups that connect there (loopback only; needs --data-dir). With sync, a
+    // command's log record is acknowledged by every backup before the command
+    // goes on (in nio mode, holding up the worker's other connections meanwhile);
+    // with async, a failover can lose the last moments. Auction and batch-matcher
+    // assignments, made on the timing wheel and matcher threads, never wait: their
+    // drivers and customers are told once the backups have them. A server with
+    // --backup-of follows that primary and takes over when it goes away.
+    public int replicatePort = 0;
+    public boolean replicationSync = false;
+    public String backupOf = null;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "io-threads":
+                    config.ioThreads = Integer.parseInt(value);
+                    if (config.ioThreads < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 thread)");
+                    }
+                    break;
+                case "outbound-queue":
+                    config.outboundQueueCapacity = Integer.parseInt(value);
+                    if (config.outboundQueueCapacity < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 message)");
+                    }
+                    break;
+                case "slow-consumer":
+                    config.slowConsumer = SlowConsumerPolicy.valueOf(value.toUpperCase());
+                    break;
+                case "slow-consumer-ms":
+                    config.slowConsumerMs = Long.parseLong(value);
+                    break;
+                case "nearest-drivers":
+                    config.nearestDrivers = Integer.parseInt(value);
+                    if (config.nearestDrivers < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 driver)");
+                    }
+                    break;
+                case "search-radius-km":
+                    config.searchRadiusKm = Double.parseDouble(value);
+                    break;
+                case "widen-after-ms":
+                    config.widenAfterMs = Long.parseLong(value);
+                    break;
+                case "max-widenings":
+                    config.maxWidenings = Integer.parseInt(value);
+                    break;
+                case "auction-window-ms":
+                    config.auctionWindowMs = Long.parseLong(value);
+                    if (config.auctionWindowMs < 0) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (0 or more ms)");
+                    }
+                    break;
+                case "auction-rating-weight":
+                    config.auctionRatingWeight = Double.parseDouble(value);
+                    break;
+                case "match-interval-ms":
+                    config.matchIntervalMs = Long.parseLong(value);
+                    break;
+                case "match-budget-ms":
+                    config.matchBudgetMs = Long.parseLong(value);
+                    if (config.matchBudgetMs < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 ms)");
+                    }
+                    break;
+                case "log-level":
+                    config.logLevel = ServerLog.Level.valueOf(value.toUpperCase());
+                    break;
+                case "log-commands":
+                    if (Boolean.parseBoolean(value)) config.logLevel = ServerLog.Level.DEBUG;
+                    break;
+                case "log-file":
+                    config.logFile = value;
+                    break;
+                case "log-file-mb":
+                    config.logFileMb = Integer.parseInt(value);
+                    break;
+                case "log-files":
+                    config.logFiles = Integer.parseInt(value);
+                    if (config.logFiles < 0) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (0 or more files)");
+                    }
+                    break;
+                case "log-buffer":
+                    config.logBuffer = Integer.parseInt(value);
+                    if (config.logBuffer < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 line)");
+                    }
+                    break;
+                case "conn-rate":
+                    config.connectionRate = Double.parseDouble(value);
+                    break;
+                case "auth-rate":
+                    config.authRate = Double.parseDouble(value);
+                    break;
+                case "ride-rate":
+                    config.rideRate = Double.parseDouble(value);
+                    break;
+                case "rate-burst-s":
+                    config.rateBurstS = Double.parseDouble(value);
+                    break;
+                case "max-connections":
+                    config.maxConnections = Integer.parseInt(value);
+                    break;
+                case "max-inflight":
+                    config.maxInflight = Integer.parseInt(value);
+                    break;
+                case "data-dir":
+                    config.dataDir = value;
+                    break;
+                case "wal-fsync":
+                    config.walFsync = Boolean.parseBoolean(value);
+                    break;
+                case "wal-segment-mb":
+                    config.walSegmentMb = Integer.parseInt(value);
+                    if (config.walSegmentMb < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 MB)");
+                    }
+                    break;
+                case "snapshot-interval-s":
+                    config.snapshotIntervalS = Long.parseLong(value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "archive-interval-ms":
+                    config.archiveIntervalMs = Long.parseLong(value);
+                    break;
+                case "session-ttl-ms":
+                    config.sessionTtlMs = Long.parseLong(value);
+                    break;
+                case "session-buffer":
+                    config.sessionBufferCapacity = Integer.parseInt(value);
+                    if (config.sessionBufferCapacity < 1) {
+                        throw new IllegalArgumentException("Invalid option: " + arg + " (at least 1 message)");
+                    }
+                    break;
+                case "shard-index":
+                    config.shardIndex = Integer.parseInt(value);
+                    break;
+                case "shard-count":
+                    config.shardCount = Integer.parseInt(value);
+                    break;
+                case "replicate-port":
+                    config.replicatePort = Integer.parseInt(value);
+                    break;
+                case "replication":
+                    if (!value.equalsIgnoreCase("sync") && !value.equalsIgnoreCase("async")) {
+                        throw new IllegalArgumentException("Invalid option: " + arg);
+                    }
+                    config.replicationSync = value.equalsIgnoreCase("sync");
+                    break;
+                case "backup-of":
+                    config.backupOf = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (config.shardCount < 1 || config.shardIndex < 0 || config.shardIndex >= config.shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + config.shardIndex + " of " + config.shardCount);
+        }
+        if (config.replicatePort > 0 && config.dataDir == null) {
+            throw new IllegalArgumentException("--replicate-port needs --data-dir: backups follow the write-ahead log");
+        }
+        return config;
+    }
+}
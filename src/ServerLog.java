@@ -0,0 +1,260 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled server log. Callers never format or write: a line below --log-level
+// costs one comparison, and an enabled one is a template and up to three
+// arguments copied into a preallocated ring slot. One writer thread formats the
+// slots ("{}" takes the next argument), then writes them in batches to stdout
+// or to --log-file, which rolls over at --log-file-mb into NAME.1 .. NAME.N.
+//
+// Arguments are formatted later, on the writer thread: pass values that won't
+// change, not buffers that are about to be reused. When the ring is full the
+// line is dropped rather than making the caller wait; the writer reports how
+// many were lost.
+public final class ServerLog {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Write out a batch once this much is formatted, even if more lines wait.
+    private static final int BATCH_CHARS = 1 << 16;
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final class Slot {
+        // The sequence number this slot was last published with; -1 before that.
+        volatile long published = -1;
+        long millis;
+        Level level;
+        String template;
+        Object a, b, c;
+    }
+
+    private static volatile ServerLog instance = new ServerLog(Level.INFO, null, 64, 5, 8192);
+
+    static {
+        // Whatever is still in the ring goes out before the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> instance.close(), "server-log-flush"));
+    }
+
+    private final int threshold;
+    private final Slot[] ring;
+    private final int mask;
+    // Next sequence to hand out (producers), and next to format (writer only).
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Path file;
+    private final long fileLimit;
+    private final int filesKept;
+    private final Thread writer;
+    private volatile boolean closing;
+    // Writer only: the last timestamp formatted, reused for lines in the same millisecond.
+    private long stampMillis = -1;
+    private String stamp;
+
+    private ServerLog(Level level, String file, int fileMb, int filesKept, int capacity) {
+        this.threshold = level.ordinal();
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++) ring[i] = new Slot();
+        mask = size - 1;
+        this.file = file != null ? Paths.get(file) : null;
+        this.fileLimit = fileMb * 1024L * 1024L;
+        this.filesKept = filesKept;
+        writer = new Thread(this::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Replace the default logger (INFO to stdout) with the configured one.
+    // Lines already logged go out through the old one first.
+    public static void configure(ServerConfig config) {
+        ServerLog old = instance;
+        instance = new ServerLog(config.logLevel, config.logFile, config.logFileMb, config.logFiles,
+                config.logBuffer);
+        old.close();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= instance.threshold;
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    // Lines lost to a full ring since startup.
+    public static long dropped() {
+        return instance.dropped.get();
+    }
+
+    public static void debug(String template, Object a) { log(Level.DEBUG, template, a, null, null); }
+    public static void debug(String template, Object a, Object b) { log(Level.DEBUG, template, a, b, null); }
+    public static void info(String template) { log(Level.INFO, template, null, null, null); }
+    public static void info(String template, Object a) { log(Level.INFO, template, a, null, null); }
+    public static void info(String template, Object a, Object b) { log(Level.INFO, template, a, b, null); }
+    public static void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, a, b, c); }
+    public static void warn(String template, Object a) { log(Level.WARN, template, a, null, null); }
+    public static void warn(String template, Object a, Object b) { log(Level.WARN, template, a, b, null); }
+    public static void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, a, b, c); }
+    public static void error(String template, Object a) { log(Level.ERROR, template, a, null, null); }
+    public static void error(String template, Object a, Object b) { log(Level.ERROR, template, a, b, null); }
+
+    private static void log(Level level, String template, Object a, Object b, Object c) {
+        ServerLog log = instance;
+        if (level.ordinal() < log.threshold) return;
+        log.append(level, template, a, b, c);
+    }
+
+    private void append(Level level, String template, Object a, Object b, Object c) {
+        long seq;
+        boolean yielded = false;
+        while (true) {
+            seq = claimed.get();
+            if (seq - consumed < ring.length) {
+                if (claimed.compareAndSet(seq, seq + 1)) break;
+            } else if (!yielded) {
+                // Full: give the writer one chance to run (it may share our CPU).
+                Thread.yield();
+                yielded = true;
+            } else {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        Slot slot = ring[(int) seq & mask];
+        slot.millis = System.currentTimeMillis();
+        slot.level = level;
+        slot.template = template;
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.published = seq; // hands the slot to the writer
+    }
+
+    // Wait for the writer to catch up with everything logged so far, then stop it.
+    private void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+        Writer out = null;
+        long written = 0;
+        long reportedDrops = 0;
+        while (true) {
+            long seq = consumed;
+            Slot slot = ring[(int) seq & mask];
+            if (slot.published == seq) {
+                format(slot, batch);
+                slot.template = null;
+                slot.a = slot.b = slot.c = null;
+                consumed = seq + 1; // frees the slot for producers
+                if (batch.length() < BATCH_CHARS) continue;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append(stamp(System.currentTimeMillis())).append(" WARN  ").append(drops - reportedDrops)
+                        .append(" log lines dropped: the log can't keep up\n");
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                try {
+                    if (file == null) {
+                        System.out.print(batch); // one flush per batch, not per line
+                    } else {
+                        if (out == null || written >= fileLimit) {
+                            if (out != null) out.close();
+                            if (written >= fileLimit) rotate();
+                            out = open();
+                            written = Files.size(file);
+                        }
+                        out.append(batch);
+                        out.flush();
+                        written += batch.length();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Log file " + file + " failed: " + e.getMessage() + "; logging to stdout");
+                    System.out.print(batch);
+                }
+                batch.setLength(0);
+                continue;
+            }
+            if (closing && claimed.get() == consumed) break;
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private Writer open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        return new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16);
+    }
+
+    // NAME -> NAME.1 -> NAME.2 ... ; the oldest past --log-files is deleted.
+    private void rotate() throws IOException {
+        Files.deleteIfExists(rolled(filesKept));
+        for (int i = filesKept - 1; i >= 1; i--) {
+            Path from = rolled(i);
+            if (Files.exists(from)) Files.move(from, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (filesKept > 0) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+    }
+
+    private Path rolled(int n) {
+        return file.resolveSibling(file.getFileName() + "." + n);
+    }
+
+    private String stamp(long millis) {
+        if (millis != stampMillis) {
+            stamp = TIME.format(Instant.ofEpochMilli(millis));
+            stampMillis = millis;
+        }
+        return stamp;
+    }
+
+    // "2026-10-17 12:00:00.123 INFO  From alice: REQUEST:Tahrir:Zamalek"
+    private void format(Slot slot, StringBuilder sb) {
+        sb.append(stamp(slot.millis)).append(' ').append(slot.level);
+        for (int pad = slot.level.name().length(); pad < 6; pad++) sb.append(' ');
+        String template = slot.template;
+        int arg = 0;
+        int from = 0;
+        for (int at; (at = template.indexOf("{}", from)) >= 0; from = at + 2) {
+            sb.append(template, from, at);
+            sb.append(arg == 0 ? slot.a : arg == 1 ? slot.b : slot.c);
+            arg++;
+        }
+        sb.append(template, from, template.length()).append('\n');
+    }
+}
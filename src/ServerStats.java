@@ -0,0 +1,60 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Live counters for the admin STATS command. Each is updated where the event
+// happens, so reading them costs the same however much history the server has.
+public class ServerStats {
+    private static final int RATE_WINDOW_S = 60;
+
+    private final long startNanos = System.nanoTime();
+    // Open connections, logged in or not.
+    private final LongAdder connections = new LongAdder();
+    // Ride requests per second. Slot i holds [epoch second << 32 | count] for the
+    // seconds that map to i, so a stale slot is recognised and restarted by CAS.
+    private final AtomicLongArray rideSlots = new AtomicLongArray(RATE_WINDOW_S);
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    public long activeConnections() {
+        return connections.sum();
+    }
+
+    public void rideRequested() {
+        long now = nowSeconds();
+        int slot = (int) (now % RATE_WINDOW_S);
+        while (true) {
+            long current = rideSlots.get(slot);
+            long next = (current >>> 32) == now ? current + 1 : (now << 32) | 1;
+            if (rideSlots.compareAndSet(slot, current, next)) return;
+        }
+    }
+
+    // Average over the last full seconds of the window (fewer right after startup).
+    public double ridesPerSecond() {
+        long now = nowSeconds();
+        long seconds = Math.min(RATE_WINDOW_S - 1, Math.max(1, (System.nanoTime() - startNanos) / 1_000_000_000L));
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW_S; i++) {
+            long slot = rideSlots.get(i);
+            long age = now - (slot >>> 32);
+            if (age >= 1 && age <= seconds) {
+                total += slot & 0xFFFFFFFFL;
+            }
+        }
+        return total / (double) seconds;
+    }
+
+    public long uptimeSeconds() {
+        return (System.nanoTime() - startNanos) / 1_000_000_000L;
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
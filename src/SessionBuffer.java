@@ -0,0 +1,92 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Stands in for the connection of a session whose client dropped: messages for
+// it are kept (the newest capacity of them) until the client comes back with
+// RESUME or the session expires. Exactly one of the two claims the buffer.
+//
+// After resumeTo, a send that raced with the switch still reaches the new
+// connection: it is queued, then forwarded by whoever drains next.
+public class SessionBuffer implements Connection {
+    private static final Connection EXPIRED = new Connection() {
+        public void send(Message msg) { }
+        public void close() { }
+        public String getRemoteAddress() { return "expired"; }
+    };
+
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final int capacity;
+    // null while offline; then the resumed connection, or EXPIRED.
+    private final AtomicReference<Connection> forwardTo = new AtomicReference<>();
+    private volatile TimingWheel.Timeout expiry;
+
+    public SessionBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void setExpiry(TimingWheel.Timeout expiry) {
+        this.expiry = expiry;
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (forwardTo.get() == EXPIRED) return;
+        queue.add(msg);
+        if (size.incrementAndGet() > capacity && queue.poll() != null) {
+            // Keep the newest: a ride's latest status matters more than its history.
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+        Connection target = forwardTo.get();
+        if (target != null) drainTo(target);
+    }
+
+    // Claim the session for a new connection: send it greeting, then replay what
+    // was buffered, oldest first. Returns false if the session has expired or
+    // another connection claimed it first.
+    boolean resumeTo(Connection connection, Message greeting) {
+        if (!forwardTo.compareAndSet(null, connection)) return false;
+        TimingWheel.Timeout timeout = expiry;
+        if (timeout != null) timeout.cancel();
+        connection.send(greeting);
+        int lost = dropped.get();
+        if (lost > 0) {
+            connection.send(Message.of("INFO: " + lost + " messages were dropped while you were offline."));
+        }
+        drainTo(connection);
+        return true;
+    }
+
+    // Claim the session for expiry. Returns false if it was resumed first.
+    boolean expire() {
+        if (!forwardTo.compareAndSet(null, EXPIRED)) return false;
+        queue.clear();
+        return true;
+    }
+
+    boolean isExpired() {
+        return forwardTo.get() == EXPIRED;
+    }
+
+    private void drainTo(Connection connection) {
+        Message msg;
+        while ((msg = queue.poll()) != null) {
+            size.decrementAndGet();
+            connection.send(msg);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close: the client is already gone.
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "offline";
+    }
+}
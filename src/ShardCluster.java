@@ -0,0 +1,67 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Starts a sharded deployment on one machine, for development and load tests:
+// N Server JVMs on consecutive ports and a ShardRouter in this JVM in front of them.
+// Usage: java ShardCluster [--shards=3] [--port=12345] [--base-port=12400] [--driver-reach=2] [server options]
+// Other options (--mode=nio, --data-dir=DIR, ...) are passed to every shard; a
+// data dir gets a subdirectory per shard. Shard i logs to shard-i.log.
+public class ShardCluster {
+    public static void main(String[] args) throws Exception {
+        int shardCount = 3;
+        int port = 12345;
+        int basePort = 12400;
+        int driverReach = 2;
+        String dataDir = null;
+        List<String> serverArgs = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (key) {
+                case "--shards":
+                    shardCount = Integer.parseInt(value);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--base-port":
+                    basePort = Integer.parseInt(value);
+                    break;
+                case "--driver-reach":
+                    driverReach = Integer.parseInt(value);
+                    break;
+                case "--data-dir":
+                    dataDir = value;
+                    break;
+                case "--shard-index":
+                case "--shard-count":
+                    throw new IllegalArgumentException(key + " is set per shard by the cluster");
+                default:
+                    serverArgs.add(arg);
+            }
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        InetSocketAddress[] shards = new InetSocketAddress[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "Server", "--port=" + (basePort + i), "--shard-index=" + i, "--shard-count=" + shardCount));
+            if (dataDir != null) command.add("--data-dir=" + Paths.get(dataDir, "shard-" + i));
+            command.addAll(serverArgs);
+            File log = new File("shard-" + i + ".log");
+            processes.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start());
+            shards[i] = new InetSocketAddress("127.0.0.1", basePort + i);
+            ServerLog.info("Shard {} on port {}, log {}", i, basePort + i, log);
+        }
+        for (int i = 0; i < shardCount; i++) {
+            PortProbe.await(shards[i], processes.get(i), 30_000);
+        }
+        new ShardRouter(shards, driverReach).serve(port);
+    }
+}
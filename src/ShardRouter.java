@@ -0,0 +1,514 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Front end of a sharded deployment. Clients connect here and speak the text
+// protocol as if to a single Server; the router forwards each command to the
+// shard that owns its data, over one connection per client and shard.
+// Usage: java ShardRouter --shards=host:port,host:port,... [--port=12345] [--driver-reach=2]
+// Shard i of N must run with --shard-index=i --shard-count=N; ShardCluster starts
+// such a cluster on one machine.
+//
+// - Every user exists on every shard. REGISTER goes to the name's owner shard
+//   first, and is copied to the others only once the owner accepts it, so a
+//   name can't be taken twice.
+// - A user's home shard is picked by consistent hash of the username. A
+//   customer's rides live there (REQUEST, VIEW, CANCEL).
+// - A driver is also logged in on the next driver-reach - 1 shards of the ring,
+//   its neighbouring regions, so it sees their NEW_RIDEs. LOCATION goes to all of them.
+// - Commands that name a ride (OFFER, ASSIGN, UPDATE, RATE) go to the ride's
+//   shard, rideId % N. If the client is not logged in there yet, for example
+//   a driver offering on a ride from outside its reach, the router logs it in first.
+// - A driver on a ride, or with an offer pending, can't offer on another
+//   shard's rides until that ride ends or the offer is settled: no shard alone
+//   could stop it from being assigned twice.
+// - Admin commands go to every shard, and each reply is tagged with its shard.
+// Binary-protocol clients and RESUME are not supported through the router.
+public class ShardRouter {
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private final InetSocketAddress[] shards;
+    private final ConsistentHashRing ring;
+    private final int driverReach;
+
+    public ShardRouter(InetSocketAddress[] shards, int driverReach) {
+        this.shards = shards;
+        this.ring = new ConsistentHashRing(shards.length, 128);
+        this.driverReach = Math.max(1, driverReach);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 12345;
+        int driverReach = 2;
+        InetSocketAddress[] shards = null;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(2, eq)) {
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "driver-reach":
+                    driverReach = Integer.parseInt(value);
+                    break;
+                case "shards":
+                    String[] addresses = value.split(",");
+                    shards = new InetSocketAddress[addresses.length];
+                    for (int i = 0; i < addresses.length; i++) {
+                        int colon = addresses[i].lastIndexOf(':');
+                        shards[i] = new InetSocketAddress(addresses[i].substring(0, colon),
+                                Integer.parseInt(addresses[i].substring(colon + 1)));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (shards == null) {
+            throw new IllegalArgumentException("--shards=host:port,... is required");
+        }
+        new ShardRouter(shards, driverReach).serve(port);
+    }
+
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            ServerLog.info("Shard router on port {} in front of {} shards", port, shards.length);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread.ofVirtual().start(new RoutedClient(socket));
+            }
+        }
+    }
+
+    private static Command commandOf(String line) {
+        int colon = line.indexOf(':');
+        String name = (colon < 0 ? line : line.substring(0, colon)).trim().toUpperCase(Locale.ROOT);
+        try {
+            return Command.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Field i of a colon-separated line, or null.
+    private static String field(String line, int i) {
+        String[] parts = line.split(":", i + 2);
+        return parts.length > i ? parts[i].trim() : null;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int intField(String line, int i) {
+        String value = field(line, i);
+        return value != null ? parseInt(value) : -1;
+    }
+
+    // A driver's offer, from when the router forwards it until the shard turns it
+    // down or the ride is assigned or cancelled. Confirmed once OFFER_SENT is back.
+    private static final class PendingOffer {
+        final int ride;
+        final int shard;
+        final boolean confirmed;
+
+        PendingOffer(int ride, int shard, boolean confirmed) {
+            this.ride = ride;
+            this.shard = shard;
+            this.confirmed = confirmed;
+        }
+    }
+
+    // One connection from the router to a shard, on behalf of one client.
+    private static final class Link {
+        final int shard;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private final ReentrantLock writeLock = new ReentrantLock(); // not synchronized: callers are virtual threads
+
+        Link(int shard, InetSocketAddress address) throws IOException {
+            this.shard = shard;
+            socket = new Socket();
+            socket.connect(address, CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    // A client connection: reads its commands on this (virtual) thread and routes
+    // them; one relay thread per shard link copies the shard's replies back.
+    private final class RoutedClient implements Runnable {
+        private final Socket socket;
+        private Writer out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // Indexed by shard; null where the client is not logged in.
+        private final AtomicReferenceArray<Link> links = new AtomicReferenceArray<>(shards.length);
+        // Before login: where anything but REGISTER and LOGIN goes, for the shard's reply.
+        private Link lobby;
+        private String username, password, type;
+        private int home = -1;
+        // A driver's ride from ASSIGNED until it ends or is cancelled, as seen in
+        // the shards' replies; -1 when free.
+        private volatile int activeRide = -1;
+        private volatile int activeShard = -1;
+        private volatile boolean activeStarted;
+        // Null when the driver has no offer out.
+        private final AtomicReference<PendingOffer> pendingOffer = new AtomicReference<>();
+
+        RoutedClient(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isBlank()) continue;
+                    if (username == null) {
+                        handleAuth(line);
+                    } else {
+                        route(line);
+                    }
+                }
+            } catch (IOException e) {
+                // Client went away.
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void handleAuth(String line) throws IOException {
+            Command command = commandOf(line);
+            if (command == Command.REGISTER && field(line, 1) != null) {
+                register(line, field(line, 1));
+            } else if (command == Command.LOGIN && field(line, 2) != null) {
+                login(line, field(line, 1), field(line, 2));
+            } else {
+                // Malformed or unknown: let a shard give its usual answer.
+                if (lobby == null) {
+                    lobby = new Link(0, shards[0]);
+                    startRelay(lobby);
+                }
+                lobby.send(line);
+            }
+        }
+
+        private void register(String line, String name) throws IOException {
+            int owner = ring.shardFor(name);
+            Link link = new Link(owner, shards[owner]);
+            try {
+                link.send(line);
+                String reply = link.readLine();
+                if (reply != null && reply.startsWith("REGISTERED:")) {
+                    String info = link.readLine();
+                    for (int shard = 0; shard < shards.length; shard++) {
+                        if (shard != owner) replicate(shard, line);
+                    }
+                    reply(reply);
+                    if (info != null) reply(info);
+                } else if (reply != null) {
+                    reply(reply);
+                }
+            } finally {
+                link.close();
+            }
+        }
+
+        private void replicate(int shard, String line) {
+            try {
+                Link link = new Link(shard, shards[shard]);
+                try {
+                    link.send(line);
+                    link.readLine();
+                } finally {
+                    link.close();
+                }
+            } catch (IOException e) {
+                ServerLog.warn("Could not copy registration to shard {}: {}", shard, e.getMessage());
+            }
+        }
+
+        private void login(String line, String name, String pwd) throws IOException {
+            int shard = ring.shardFor(name);
+            Link link = new Link(shard, shards[shard]);
+            link.send(line);
+            String reply = link.readLine();
+            if (reply == null || !reply.startsWith("LOGGEDIN:")) {
+                link.close();
+                reply(reply != null ? reply : "ERROR: Shard " + shard + " is unavailable.");
+                return;
+            }
+            username = name;
+            password = pwd;
+            type = field(reply, 2);
+            home = shard;
+            links.set(shard, link);
+            startRelay(link);
+            reply(reply);
+            if (lobby != null) {
+                lobby.close();
+                lobby = null;
+            }
+            if ("driver".equals(type)) {
+                for (int neighbour : ring.shardsFor(name, driverReach)) {
+                    if (neighbour != home) attach(neighbour);
+                }
+            } else if ("admin".equals(type)) {
+                for (int other = 0; other < shards.length; other++) {
+                    if (other != home) attach(other);
+                }
+            }
+        }
+
+        // Log the client in on one more shard. Null if that fails.
+        private Link attach(int shard) {
+            Link link = links.get(shard);
+            if (link != null) return link;
+            try {
+                link = new Link(shard, shards[shard]);
+                link.send("LOGIN:" + username + ":" + password);
+                String reply = link.readLine();
+                if (reply == null || !reply.startsWith("LOGGEDIN:")) {
+                    link.close();
+                    ServerLog.warn("Login of {} on shard {} failed: {}", username, shard, reply);
+                    return null;
+                }
+            } catch (IOException e) {
+                ServerLog.warn("Shard {} unavailable for {}: {}", shard, username, e.getMessage());
+                return null;
+            }
+            links.set(shard, link);
+            startRelay(link);
+            return link;
+        }
+
+        private void route(String line) {
+            Command command = commandOf(line);
+            if (command == null) {
+                forward(home, line);
+                return;
+            }
+            switch (command) {
+                case OFFER: {
+                    int shard = rideShard(line);
+                    int current = activeRide;
+                    PendingOffer pending = pendingOffer.get();
+                    if (current != -1 && shard != activeShard) {
+                        reply("ERROR: You are on ride " + current + "; finish it before offering on another.");
+                    } else if (pending != null && pending.shard != shard) {
+                        reply("ERROR: You have already sent an offer for ride " + pending.ride + ". Cannot send another offer.");
+                    } else if (pending != null) {
+                        forward(shard, line); // that shard has the offer, and answers for it
+                    } else {
+                        pending = new PendingOffer(intField(line, 1), shard, false);
+                        pendingOffer.set(pending);
+                        if (!forward(shard, line)) pendingOffer.compareAndSet(pending, null);
+                    }
+                    break;
+                }
+                case ASSIGN:
+                case UPDATE:
+                case RATE:
+                    forward(rideShard(line), line);
+                    break;
+                case LOCATION:
+                    for (int shard = 0; shard < shards.length; shard++) {
+                        if (links.get(shard) != null) forward(shard, line);
+                    }
+                    break;
+                case STATS:
+                case METRICS:
+                case TOP:
+                    if ("admin".equals(type)) {
+                        for (int shard = 0; shard < shards.length; shard++) forward(shard, line);
+                    } else {
+                        forward(home, line); // the shard refuses it
+                    }
+                    break;
+                case DISCONNECT:
+                    // The home shard only knows about its own rides.
+                    if (activeRide != -1 && activeStarted && activeShard != home) {
+                        reply("ERROR: You are in an ongoing ride, cannot disconnect.");
+                    } else {
+                        forward(home, line);
+                    }
+                    break;
+                default:
+                    forward(home, line);
+            }
+        }
+
+        // The shard that owns the ride named in field 1; home if there is none.
+        private int rideShard(String line) {
+            int rideId = intField(line, 1);
+            return rideId >= 0 ? Ride.shardOf(rideId, shards.length) : home;
+        }
+
+        // False if the shard can't be reached; the client has been told.
+        private boolean forward(int shard, String line) {
+            Link link = attach(shard);
+            if (link == null) {
+                reply("ERROR: Shard " + shard + " is unavailable.");
+                return false;
+            }
+            try {
+                link.send(line);
+                return true;
+            } catch (IOException e) {
+                link.close(); // its relay thread notices and cleans up
+                reply("ERROR: Shard " + shard + " is unavailable.");
+                return false;
+            }
+        }
+
+        private void startRelay(Link link) {
+            Thread.ofVirtual().start(() -> {
+                try {
+                    String line;
+                    while ((line = link.readLine()) != null) {
+                        deliver(link.shard, line);
+                    }
+                } catch (IOException e) {
+                    // Shard closed the connection.
+                } finally {
+                    link.close();
+                    // Offers on a shard we lost can't be accepted through us.
+                    PendingOffer pending = pendingOffer.get();
+                    if (pending != null && pending.shard == link.shard) pendingOffer.compareAndSet(pending, null);
+                    // Losing the home shard (DISCONNECT, or the shard died) ends the client's session.
+                    if (links.compareAndSet(link.shard, link, null) && link.shard == home) {
+                        closeClient();
+                    }
+                }
+            });
+        }
+
+        // A line from a shard, on its way to the client.
+        private void deliver(int shard, String line) {
+            if (line.startsWith("SESSION:")) return; // tokens are per shard; RESUME is not routed
+            trackOffer(shard, line);
+            if (line.startsWith("ASSIGNED:")) {
+                activeStarted = false;
+                activeShard = shard;
+                activeRide = intField(line, 1);
+            } else if (line.startsWith("STATUS_UPDATED:") || line.startsWith("UPDATE:")) {
+                if (intField(line, 1) == activeRide && shard == activeShard) {
+                    String status = field(line, 2);
+                    if ("START".equals(status)) {
+                        activeStarted = true;
+                    } else if ("END".equals(status) || "CANCELLED".equals(status)) {
+                        activeRide = -1;
+                    }
+                }
+            } else if ("admin".equals(type) && (line.startsWith("STATS:") || line.startsWith("METRICS:")
+                    || line.startsWith("TOP:"))) {
+                int colon = line.indexOf(':');
+                line = line.substring(0, colon + 1) + "Shard " + shard + " | " + line.substring(colon + 1);
+            }
+            reply(line);
+        }
+
+        // Follow the driver's pending offer through the shard's replies. A shard
+        // answers a connection's commands in order, so an ERROR before OFFER_SENT
+        // is the offer's (or an earlier command's, which only clears it early).
+        private void trackOffer(int shard, String line) {
+            PendingOffer pending = pendingOffer.get();
+            if (pending == null || pending.shard != shard) return;
+            if (line.startsWith("OFFER_SENT for ride ")) {
+                if (!pending.confirmed && parseInt(line.substring("OFFER_SENT for ride ".length())) == pending.ride) {
+                    pendingOffer.compareAndSet(pending, new PendingOffer(pending.ride, shard, true));
+                }
+            } else if (line.startsWith("ERROR: You have already sent an offer for ride ")) {
+                // The shard still holds an earlier offer; that is the one to wait for.
+                int ride = parseInt(line.substring("ERROR: You have already sent an offer for ride ".length()).split("\\.")[0]);
+                pendingOffer.compareAndSet(pending, new PendingOffer(ride, shard, true));
+            } else if (line.startsWith("ERROR:")) {
+                if (!pending.confirmed) pendingOffer.compareAndSet(pending, null);
+            } else if (line.startsWith("ASSIGNED:") || line.startsWith("UPDATE:")) {
+                // Ours, someone else's (UPDATE:ride:ASSIGNED) or cancelled: settled.
+                if (intField(line, 1) == pending.ride) pendingOffer.compareAndSet(pending, null);
+            }
+        }
+
+        private void reply(String line) {
+            writeLock.lock();
+            try {
+                out.write(line);
+                out.write('\n');
+                out.flush();
+            } catch (IOException e) {
+                // Client went away; its reader cleans up.
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void closeClient() {
+            try {
+                socket.close();
+            } catch (IOException e) { }
+        }
+
+        // Client gone: log out of the other shards; the home shard keeps the
+        // session (until its TTL) unless the client said DISCONNECT.
+        private void closeAll() {
+            closeClient();
+            if (lobby != null) lobby.close();
+            for (int shard = 0; shard < shards.length; shard++) {
+                Link link = links.getAndSet(shard, null);
+                if (link == null) continue;
+                if (shard != home) {
+                    try {
+                        link.send("DISCONNECT");
+                    } catch (IOException e) { }
+                }
+                link.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+// Blocking transport: the handler's thread reads commands from the socket, and a
+// per-connection writer thread drains the outbound queue, coalescing whatever
+// piled up into one write. Senders only enqueue, so a handler never blocks on
+// another client's socket. The writer is a virtual thread in VIRTUAL mode.
+// The first byte from the client picks the text or binary protocol.
+public class SocketConnection implements Connection {
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private final OutboundQueue outbound = new OutboundQueue(Server.config.outboundQueueCapacity);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+    private Thread writer; // set by open, before the connection is handed out
+    private volatile boolean closing = false;
+    private volatile InboundFramer framer;
+    private volatile ClientHandler handler;
+
+    private SocketConnection(Socket socket) {
+        this.socket = socket;
+        try {
+            in  = socket.getInputStream();
+            out = socket.getOutputStream();
+        } catch(IOException e) {
+            ServerLog.warn("SocketConnection error: {}", e.getMessage());
+        }
+    }
+
+    // The writer thread starts once the connection is built, so it never sees a half-built one.
+    public static SocketConnection open(Socket socket) {
+        SocketConnection connection = new SocketConnection(socket);
+        Thread.Builder builder = Server.config.mode == ServerConfig.Mode.VIRTUAL
+                ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        connection.writer = builder.name("writer-" + socket.getPort()).start(connection::writeLoop);
+        return connection;
+    }
+
+    // Read and dispatch commands on the calling thread until end of stream or the
+    // handler stops running.
+    public void readLoop(ClientHandler handler) throws IOException {
+        this.handler = handler;
+        framer = new InboundFramer(handler);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            if (!framer.feed(buf, 0, n)) return;
+        }
+    }
+
+    @Override
+    public void send(Message msg) {
+        if (closing) return;
+        if (!outbound.offer(msg)) {
+            ClientHandler h = handler;
+            ServerLog.warn("Slow client {} at {} ({}); disconnecting.", h != null ? h.getUserName() : "unknown",
+                    getRemoteAddress(), outbound.describe());
+            Server.metrics.slowConsumerDisconnects.increment();
+            abort();
+            return;
+        }
+        LockSupport.unpark(writer);
+    }
+
+    @Override
+    public void close() {
+        // The writer closes the socket after flushing what is queued (e.g. "DISCONNECTING").
+        closing = true;
+        LockSupport.unpark(writer);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public OutboundQueue outbound() {
+        return outbound;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                if (outbound.isEmpty()) {
+                    if (closing) break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                writeBuffer.clear();
+                writeBuffer = outbound.drainTo(writeBuffer, framer != null && framer.isBinary());
+                out.write(writeBuffer.array(), 0, writeBuffer.position());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Peer went away; the reader side notices and cleans up.
+        } finally {
+            abort();
+        }
+    }
+
+    private void abort() {
+        closing = true;
+        outbound.clear();
+        try {
+            socket.close();
+        } catch(IOException e) { }
+    }
+}
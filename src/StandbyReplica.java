@@ -0,0 +1,141 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+// Backup side of replication (--backup-of=host:port), a hot standby. It applies
+// the primary's log stream (see Replicator) to a LogState as it arrives, and
+// takes no clients. When the stream ends, because the primary stopped or died,
+// it installs that state the way a restart would and the server carries on as
+// the primary. Clients reconnect to it, log in, and find their rides.
+//
+// There is no fencing: a closed connection is taken to mean a dead primary,
+// which holds for a primary and backups on one host. With async acks, records
+// the primary had not sent yet are lost.
+public class StandbyReplica {
+    private static final long RECONNECT_MS = 500;
+    // Acknowledge at least this often under a steady stream, not only when it pauses.
+    private static final long ACK_EVERY_RECORDS = 4096;
+
+    private final ServerConfig config;
+    private final String host;
+    private final int port;
+    private LogState state = new LogState();
+    // Live records applied, as acknowledged to the primary.
+    private long applied;
+
+    public StandbyReplica(ServerConfig config) {
+        this.config = config;
+        int colon = config.backupOf.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid option: --backup-of=" + config.backupOf);
+        }
+        host = config.backupOf.substring(0, colon);
+        port = Integer.parseInt(config.backupOf.substring(colon + 1));
+    }
+
+    // Follow the primary until it goes away, then install what it sent. Returns
+    // when this server is ready to take over.
+    public void follow() throws IOException {
+        if (config.dataDir != null) {
+            Path dir = Paths.get(config.dataDir);
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+                if (files.findAny().isPresent()) {
+                    throw new IllegalArgumentException("--backup-of needs an empty --data-dir: all state comes from the primary");
+                }
+            }
+        }
+        try (Socket socket = connect()) {
+            ServerLog.info("Following primary {}:{}", host, port);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            long ackedThrough = 0;
+            while (true) {
+                byte kind = in.readByte();
+                int records = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                switch (kind) {
+                    case Replicator.SNAPSHOT:
+                        state = bytes.length > 0 ? LogState.readSnapshot(buf, "snapshot from primary") : new LogState();
+                        break;
+                    case Replicator.CATCH_UP:
+                    case Replicator.RECORDS:
+                        state.applyRecords(buf);
+                        if (buf.hasRemaining()) {
+                            // Not a crash artefact: the bytes came over TCP. Taking over
+                            // with a gap in the log would be worse than not taking over.
+                            throw new IllegalStateException("Corrupt record in replication stream");
+                        }
+                        if (kind == Replicator.RECORDS) applied += records;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown replication frame " + kind);
+                }
+                // One ack per burst: once everything received so far is applied.
+                if (applied > ackedThrough && (in.available() == 0 || applied - ackedThrough >= ACK_EVERY_RECORDS)) {
+                    out.writeLong(applied);
+                    out.flush();
+                    ackedThrough = applied;
+                }
+            }
+        } catch (EOFException e) {
+            ServerLog.info("Primary closed the replication stream");
+        } catch (IOException e) {
+            ServerLog.info("Lost the primary: {}", e.getMessage());
+        }
+        promote();
+    }
+
+    private Socket connect() {
+        boolean announced = false;
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 2000);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) { }
+                if (!announced) {
+                    ServerLog.info("Waiting for primary {}:{}...", host, port);
+                    announced = true;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void promote() throws IOException {
+        long start = System.nanoTime();
+        if (config.dataDir != null) {
+            // Hand the state over as the first snapshot: Server then opens the log
+            // on it exactly as after a restart.
+            Path dir = Paths.get(config.dataDir);
+            Path tmp = dir.resolve("snapshot.tmp");
+            state.writeSnapshot(tmp);
+            Files.move(tmp, WriteAheadLog.snapshotFile(dir, 0), StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            state.materialize();
+        }
+        ServerLog.info("{}", String.format("Promoted to primary: %d users and %d rides, %d records after catch-up, in %d ms",
+                state.users.size(), state.rides.size(), applied, (System.nanoTime() - start) / 1_000_000));
+    }
+}
@@ -0,0 +1,123 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// CommandArgs over the colon-separated tokens of one text-protocol line, read in
+// place: reset() only records token boundaries into reusable arrays, numbers are
+// parsed straight from the bytes, and only string() allocates.
+public class TextArgs implements CommandArgs {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private byte[] buf;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int count;
+
+    // Tokenize buf[off, off + len) on ':'. Matches String.split(":", -1) when
+    // keepTrailingEmpty is set, and String.split(":") (trailing empty tokens
+    // dropped) otherwise.
+    public TextArgs reset(byte[] buf, int off, int len, boolean keepTrailingEmpty) {
+        this.buf = buf;
+        count = 0;
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            if (buf[i] == ':') {
+                add(start, i);
+                start = i + 1;
+            }
+        }
+        add(start, end);
+        if (!keepTrailingEmpty && count > 1) {
+            while (count > 0 && starts[count - 1] == ends[count - 1]) count--;
+        }
+        return this;
+    }
+
+    private void add(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public String string(int i) {
+        check(i);
+        return new String(buf, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+    }
+
+    // The command token, resolved without building a String.
+    public Command command() {
+        return count == 0 ? null : Command.lookup(buf, starts[0], ends[0] - starts[0]);
+    }
+
+    // Same accepted syntax as Integer.parseInt.
+    @Override
+    public int intArg(int i) {
+        check(i);
+        int pos = starts[i], end = ends[i];
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos++] == '-';
+        }
+        if (pos == end) throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+        long value = 0;
+        for (; pos < end; pos++) {
+            int digit = buf[pos] - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+        }
+        if (negative) value = -value;
+        if (value > Integer.MAX_VALUE) throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+        return (int) value;
+    }
+
+    // Plain decimals with up to 15 significant digits (prices, coordinates) are
+    // parsed in place; the quotient of two exactly representable doubles is
+    // correctly rounded, so the result equals Double.parseDouble. Anything else
+    // (exponents, NaN, long mantissas) falls back to Double.parseDouble.
+    @Override
+    public double doubleArg(int i) {
+        check(i);
+        int pos = starts[i], end = ends[i];
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos++] == '-';
+        }
+        long mantissa = 0;
+        int significant = 0, fractionDigits = 0;
+        boolean dot = false, sawDigit = false;
+        for (; pos < end; pos++) {
+            byte b = buf[pos];
+            if (b == '.' && !dot) {
+                dot = true;
+            } else if (b >= '0' && b <= '9' && significant < 15 && fractionDigits < POWERS_OF_TEN.length - 1) {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) significant++;
+                if (dot) fractionDigits++;
+            } else {
+                return Double.parseDouble(string(i));
+            }
+        }
+        if (!sawDigit) throw new NumberFormatException("For input string: \"" + string(i) + "\"");
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= count) throw new IndexOutOfBoundsException("token " + i);
+    }
+}
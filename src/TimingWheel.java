@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timing wheel: one daemon thread advances a ring of buckets every tick
+// and runs the timeouts whose deadline has come. Scheduling and cancelling are
+// O(1) from any thread, so per-ride timers (auction windows, search widening)
+// cost a small object each rather than a sleeping thread.
+// Tasks run on the wheel thread and must not block.
+public class TimingWheel implements Runnable {
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private volatile boolean cancelled = false;
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] buckets;
+    private final int mask;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0; // only touched by the wheel thread
+
+    @SuppressWarnings("unchecked")
+    private TimingWheel(long tickMs, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two");
+        }
+        this.tickNanos = tickMs * 1_000_000L;
+        this.buckets = (List<Timeout>[]) new List<?>[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.mask = wheelSize - 1;
+    }
+
+    // A wheel with its thread already running.
+    public static TimingWheel start(long tickMs, int wheelSize) {
+        TimingWheel wheel = new TimingWheel(tickMs, wheelSize);
+        Thread t = new Thread(wheel, "timing-wheel");
+        t.setDaemon(true);
+        t.start();
+        return wheel;
+    }
+
+    // Run task after roughly delayMs (rounded up to the next tick).
+    public Timeout schedule(Runnable task, long delayMs) {
+        long elapsed = System.nanoTime() - startNanos + delayMs * 1_000_000L;
+        long deadlineTick = (elapsed + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, deadlineTick);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        // Tasks must not block, so their log appends don't wait for backups.
+        WriteAheadLog.neverWaitOnThisThread();
+        while (true) {
+            waitForNextTick();
+            currentTick++;
+            Timeout timeout;
+            while ((timeout = incoming.poll()) != null) {
+                // Anything already due fires on this tick.
+                long tick = Math.max(timeout.deadlineTick, currentTick);
+                buckets[(int) (tick & mask)].add(timeout);
+            }
+            expire(buckets[(int) (currentTick & mask)]);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int i = 0;
+        while (i < bucket.size()) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.cancelled || timeout.deadlineTick <= currentTick) {
+                // Swap-remove; order within a tick does not matter.
+                bucket.set(i, bucket.get(bucket.size() - 1));
+                bucket.remove(bucket.size() - 1);
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        ServerLog.error("Timer task failed: {}", e);
+                    }
+                }
+            } else {
+                i++; // a later lap of the wheel
+            }
+        }
+    }
+
+    private void waitForNextTick() {
+        long deadline = startNanos + (currentTick + 1) * tickNanos;
+        long sleepNanos;
+        while ((sleepNanos = deadline - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(sleepNanos / 1_000_000L, (int) (sleepNanos % 1_000_000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
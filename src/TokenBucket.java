@@ -0,0 +1,28 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket for rate limits. Kept as a single "theoretical arrival
+// time" (the GCRA form of a token bucket): the moment the bucket would be full
+// again. Taking a token moves it one interval later; a take that would put it
+// more than the burst ahead of now is refused. One CAS, no timer, no refill
+// thread, and nothing to do for a bucket nobody uses.
+//
+// The rate is passed on each take rather than stored, so buckets can be created
+// before the config is read, and cost one AtomicLong each.
+public final class TokenBucket {
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    // Take one token at perSecond, letting up to burstSeconds' worth be saved up
+    // (at least one). Always true for a rate of 0 or less: no limit.
+    public boolean tryTake(double perSecond, double burstSeconds) {
+        if (perSecond <= 0) return true;
+        long interval = (long) (1e9 / perSecond);
+        long tolerance = Math.max(interval, (long) (burstSeconds * 1e9));
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now < 0 ? now : full) + interval;
+            if (next - now > tolerance) return false;
+            if (fullAt.compareAndSet(full, next)) return true;
+        }
+    }
+}
@@ -1,49 +1,80 @@
+import java.util.concurrent.atomic.AtomicReference;
+
 public class User {
     private String username;
     private String password;
     private String type; // "customer", "driver", or "admin"
-    private double rating = 0;
-    private int ratingCount = 0;
-
-
+    private Role role;
+    // Drivers only; null for other users.
+    private final RatingAggregate ratings;
+    // The connection this user last logged in on, while it is open.
+    private final AtomicReference<ClientHandler> handler = new AtomicReference<>();
+    // --ride-rate, shared by all the user's connections (see Admission).
+    private final TokenBucket rideLimit = new TokenBucket();
 
     public User(String username, String password, String type) {
         this.username = username;
         this.password = password;
         this.type = type.toLowerCase();
+        this.role = Role.fromType(type);
+        this.ratings = role == Role.DRIVER ? new RatingAggregate() : null;
     }
 
     public String getUsername() {
         return username;
     }
 
+    String getPassword() {
+        return password;
+    }
+
     public String getType() {
         return type;
     }
 
+    public Role getRole() {
+        return role;
+    }
+
     public boolean checkPassword(String pwd) {
         return this.password.equals(pwd);
     }
 
-    // For driver rating: update the accumulated rating.
-    public void addRating(int newRating) {
-        rating = ((rating * ratingCount) + newRating) / (++ratingCount);
+    public RatingAggregate getRatings() {
+        return ratings;
     }
 
+    // Overall mean of the driver's ratings; 0 when unrated or not a driver.
     public double getRating() {
-        return rating;
+        return ratings != null ? ratings.mean() : 0;
+    }
+
+    TokenBucket rideLimit() {
+        return rideLimit;
+    }
+
+    // Null when the user is offline.
+    public ClientHandler getHandler() {
+        return handler.get();
+    }
+
+    void loggedIn(ClientHandler h) {
+        handler.set(h);
+    }
+
+    // Only clears it if no newer login has replaced h.
+    void loggedOut(ClientHandler h) {
+        handler.compareAndSet(h, null);
     }
 
     // Check if a username already exists in the system.
     public static boolean userExists(String username) {
-        return Server.users.stream().anyMatch(u -> u.getUsername().equalsIgnoreCase(username));
+        return Server.users.exists(username);
     }
 
     // Authenticate user credentials based on username, password, and type.
     public static User authenticate(String username, String password) {
-        return Server.users.stream()
-                .filter(u -> u.getUsername().equalsIgnoreCase(username) &&
-                        u.checkPassword(password))
-                .findFirst().orElse(null);
+        User user = Server.users.get(username);
+        return (user != null && user.checkPassword(password)) ? user : null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registered users keyed by case-insensitive username, with a per-role index.
+// Lookups are O(1) and registration is an atomic register-if-absent.
+public class UserRegistry {
+    private final Map<String, User> byName = new ConcurrentHashMap<>();
+    private final Map<Role, Set<User>> byRole = new EnumMap<>(Role.class);
+
+    public UserRegistry() {
+        for (Role role : Role.values()) {
+            byRole.put(role, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    // Adds the user unless the name is taken. Returns false if it already exists.
+    public boolean register(User user) {
+        if (byName.putIfAbsent(normalize(user.getUsername()), user) != null) {
+            return false;
+        }
+        byRole.get(user.getRole()).add(user);
+        return true;
+    }
+
+    public User get(String username) {
+        return byName.get(normalize(username));
+    }
+
+    public boolean exists(String username) {
+        return byName.containsKey(normalize(username));
+    }
+
+    public Set<User> getByRole(Role role) {
+        return byRole.get(role);
+    }
+
+    public int countByRole(Role role) {
+        return byRole.get(role).size();
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    private static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,547 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+// Durable record of registrations, rides, offers, transitions and ratings.
+//
+// Commands only encode a record and enqueue it; one writer thread drains the
+// queue, writes everything pending in a single write and forces it to disk once
+// per batch (group commit), so no command waits for an fsync.
+//
+// The log is split into segments (wal-<seq>.log). When a segment gets big or
+// old it is closed, and a background thread folds the closed segments into the
+// previous snapshot (snapshot-<seq>.snap covers every segment up to seq) and
+// deletes them. Snapshots are built from the log, not from live objects, so they
+// are exact without pausing commands. Recovery loads the newest snapshot and
+// replays only the segments after it.
+//
+// With --replicate-port, the writer also sends each batch to the backups (see
+// Replicator) right after writing it.
+//
+// Record: [i32 payload length][i32 CRC32C of payload][payload = u8 type + fields].
+public class WriteAheadLog {
+    static final byte USER = 1;     // str username, str password, str type
+    static final byte RIDE = 2;     // i32 rideId, str customer, str pickup, str destination, f64 lat, f64 lon
+    static final byte OFFER = 3;    // i32 rideId, str driver, f64 price
+    static final byte ASSIGN = 4;   // i32 rideId, str driver
+    static final byte STATUS = 5;   // i32 rideId, u8 status
+    static final byte RATING = 7;   // i32 rideId, str driver, u8 behaviour, u8 car, u8 ride, str comment
+
+    static final int HEADER = 8;
+    static final int MAX_COMMENT_BYTES = 4096;
+
+    // Used when no --data-dir is given: every append is a no-op.
+    public static final WriteAheadLog DISABLED = new WriteAheadLog();
+
+    private final boolean enabled;
+    private final Path dir;
+    private final boolean fsync;
+    private final long segmentBytes;
+    private final long snapshotIntervalNanos;
+
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong appended = new AtomicLong();
+    private volatile long written = 0;
+    private volatile boolean closing = false;
+    private volatile boolean rotateRequested = false;
+    private volatile long rotations = 0;
+    private Thread writer;
+    private final ExecutorService compactor;
+    // Null unless --replicate-port is set.
+    private final Replicator replicator;
+
+    // A record on its way to the log. With sync replication the thread that
+    // appended it waits until it is written and every backup has it, unless it
+    // is a thread that must not block: then what it does next waits instead, in
+    // then (see afterDurable).
+    private static final class Pending {
+        final byte[] bytes;
+        final Thread waiter;
+        final boolean deferred;
+        volatile boolean done;
+        final AtomicReference<Runnable> then = new AtomicReference<>();
+
+        Pending(byte[] bytes, Thread waiter, boolean deferred) {
+            this.bytes = bytes;
+            this.waiter = waiter;
+            this.deferred = deferred;
+        }
+    }
+
+    // Stands in Pending.then once the record is done, for callers that come later.
+    private static final Runnable RAN = () -> { };
+    private static final ThreadLocal<Boolean> NEVER_WAITS = ThreadLocal.withInitial(() -> false);
+    // The last record a never-waiting thread appended with sync replication.
+    private static final ThreadLocal<Pending> LAST_DEFERRED = new ThreadLocal<>();
+
+    // Writer-thread state.
+    private FileChannel segment;
+    private long segmentSeq;
+    private long segmentSize;
+    private long segmentOpenedNanos;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(1 << 20);
+    private final List<Pending> waiters = new ArrayList<>();
+
+    private WriteAheadLog() {
+        enabled = false;
+        dir = null;
+        fsync = false;
+        segmentBytes = 0;
+        snapshotIntervalNanos = 0;
+        compactor = null;
+        replicator = null;
+    }
+
+    private WriteAheadLog(Path dir, ServerConfig config) throws IOException {
+        this.enabled = true;
+        this.dir = dir;
+        this.fsync = config.walFsync;
+        this.segmentBytes = config.walSegmentMb * 1024L * 1024L;
+        this.snapshotIntervalNanos = config.snapshotIntervalS * 1_000_000_000L;
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.replicator = config.replicatePort > 0 ? new Replicator(config.replicatePort, config.replicationSync) : null;
+    }
+
+    // Recover Server.users and Server.rides from dir, then start logging into a new
+    // segment. Must run before any client is accepted.
+    public static WriteAheadLog open(Path dir, ServerConfig config) throws IOException {
+        Files.createDirectories(dir);
+        WriteAheadLog wal = new WriteAheadLog(dir, config);
+        long start = System.nanoTime();
+        long snapshotSeq = latestSnapshotSeq(dir);
+        LogState state = snapshotSeq >= 0 ? LogState.readSnapshot(snapshotFile(dir, snapshotSeq)) : new LogState();
+        long lastSeq = snapshotSeq;
+        int segments = 0;
+        for (long seq : segmentSeqs(dir)) {
+            if (seq <= snapshotSeq) continue;
+            state.replay(segmentFile(dir, seq));
+            lastSeq = seq;
+            segments++;
+        }
+        state.materialize();
+        ServerLog.info("{}", String.format("Recovered %d users and %d rides from %s in %d ms (snapshot %s, %d log segments)",
+                state.users.size(), state.rides.size(), dir, (System.nanoTime() - start) / 1_000_000,
+                snapshotSeq >= 0 ? Long.toString(snapshotSeq) : "none", segments));
+
+        wal.openSegment(lastSeq + 1);
+        if (segments > 0) {
+            // The replayed segments are already folded in memory: write them out as
+            // the new snapshot so the next restart skips them.
+            long upTo = lastSeq;
+            wal.compactor.execute(() -> wal.writeSnapshot(state, upTo));
+        }
+        wal.writer = new Thread(wal::writeLoop, "wal-writer");
+        wal.writer.setDaemon(true);
+        if (wal.replicator != null) wal.replicator.setWriter(wal.writer);
+        wal.writer.start();
+        return wal;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Null unless this server replicates its log.
+    public Replicator replicator() {
+        return replicator;
+    }
+
+    public void logUser(User user) {
+        if (!enabled) return;
+        byte[] name = utf8(user.getUsername());
+        byte[] password = utf8(user.getPassword());
+        byte[] type = utf8(user.getType());
+        ByteBuffer rec = record(USER, 2 + name.length + 2 + password.length + 2 + type.length);
+        putString(rec, name);
+        putString(rec, password);
+        putString(rec, type);
+        append(rec);
+    }
+
+    public void logRide(Ride ride) {
+        if (!enabled) return;
+        byte[] customer = utf8(ride.getCustomerName());
+        byte[] pickup = utf8(ride.getPickup());
+        byte[] destination = utf8(ride.getDestination());
+        ByteBuffer rec = record(RIDE, 4 + 2 + customer.length + 2 + pickup.length + 2 + destination.length + 16);
+        rec.putInt(ride.getRideId());
+        putString(rec, customer);
+        putString(rec, pickup);
+        putString(rec, destination);
+        rec.putDouble(ride.getPickupLatitude()).putDouble(ride.getPickupLongitude());
+        append(rec);
+    }
+
+    public void logOffer(int rideId, String driver, double price) {
+        if (!enabled) return;
+        byte[] name = utf8(driver);
+        ByteBuffer rec = record(OFFER, 4 + 2 + name.length + 8);
+        rec.putInt(rideId);
+        putString(rec, name);
+        rec.putDouble(price);
+        append(rec);
+    }
+
+    public void logAssign(int rideId, String driver) {
+        if (!enabled) return;
+        byte[] name = utf8(driver);
+        ByteBuffer rec = record(ASSIGN, 4 + 2 + name.length);
+        rec.putInt(rideId);
+        putString(rec, name);
+        append(rec);
+    }
+
+    public void logStatus(int rideId, RideStatus status) {
+        if (!enabled) return;
+        ByteBuffer rec = record(STATUS, 4 + 1);
+        rec.putInt(rideId).put((byte) status.ordinal());
+        append(rec);
+    }
+
+    public void logRating(int rideId, String driver, int behaviour, int car, int ride, String comment) {
+        if (!enabled) return;
+        byte[] name = utf8(driver);
+        byte[] text = utf8(comment);
+        if (text.length > MAX_COMMENT_BYTES) text = Arrays.copyOf(text, MAX_COMMENT_BYTES); // may cut a character
+        ByteBuffer rec = record(RATING, 4 + 2 + name.length + 3 + 2 + text.length);
+        rec.putInt(rideId);
+        putString(rec, name);
+        rec.put((byte) behaviour).put((byte) car).put((byte) ride);
+        putString(rec, text);
+        append(rec);
+    }
+
+    // Records appended but not yet written.
+    public long pending() {
+        return enabled ? appended.get() - written : 0;
+    }
+
+    // Block until everything appended so far is written (and forced, with fsync on).
+    // For shutdown and tools; commands never call this.
+    public void sync() {
+        long target = appended.get();
+        while (enabled && written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    // Flush what is queued and stop the writer. Appends after this are dropped.
+    public void close() {
+        if (!enabled || closing) return;
+        sync();
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.shutdown();
+        if (replicator != null) replicator.close();
+    }
+
+    // Close the current segment and wait until it is compacted into a snapshot. For tools.
+    public void snapshotNow() throws Exception {
+        sync();
+        long target = rotations + 1;
+        rotateRequested = true;
+        while (rotations < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        compactor.submit(() -> { }).get(); // the compaction queued by the rotation
+    }
+
+    private static ByteBuffer record(byte type, int fieldBytes) {
+        ByteBuffer rec = ByteBuffer.allocate(HEADER + 1 + fieldBytes);
+        rec.position(HEADER);
+        rec.put(type);
+        return rec;
+    }
+
+    private void append(ByteBuffer rec) {
+        byte[] bytes = rec.array();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, HEADER, bytes.length - HEADER);
+        rec.putInt(0, bytes.length - HEADER).putInt(4, (int) crc.getValue());
+        if (closing) return;
+        boolean sync = replicator != null && replicator.isSync();
+        boolean waits = sync && !NEVER_WAITS.get();
+        Pending pending = new Pending(bytes, waits ? Thread.currentThread() : null, sync && !waits);
+        queue.add(pending);
+        if (pending.deferred) LAST_DEFERRED.set(pending);
+        appended.incrementAndGet();
+        LockSupport.unpark(writer);
+        while (pending.waiter != null && !pending.done) {
+            LockSupport.park(this);
+        }
+    }
+
+    // For the threads whose tasks must not block (the timing wheel, the ride
+    // matcher): their appends never wait for the backups, even with sync
+    // replication. They say what to do once it's safe with afterDurable.
+    public static void neverWaitOnThisThread() {
+        NEVER_WAITS.set(true);
+    }
+
+    // Run action once what this thread has logged is safe: right away, unless
+    // this is a never-waiting thread with sync replication and the backups don't
+    // have all of it yet. Then the log writer runs it when they do, so keep it
+    // short (sending a client a message is fine).
+    public void afterDurable(Runnable action) {
+        Pending last = LAST_DEFERRED.get();
+        if (last == null) {
+            action.run();
+            return;
+        }
+        while (true) {
+            Runnable before = last.then.get();
+            if (before == RAN) {
+                LAST_DEFERRED.remove();
+                action.run();
+                return;
+            }
+            Runnable both = before == null ? action : () -> {
+                before.run();
+                action.run();
+            };
+            if (last.then.compareAndSet(before, both)) return;
+        }
+    }
+
+    private static void runDeferred(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            // Not the writer's failure: it goes on logging.
+            ServerLog.error("Deferred after a log write failed: {}", e);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                if (replicator != null && replicator.hasJoining()) {
+                    admitBackups();
+                }
+                Pending rec = queue.poll();
+                if (rec == null) {
+                    if (rotateRequested) {
+                        rotateRequested = false;
+                        rotate();
+                        continue;
+                    }
+                    if (closing) break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                long count = 0;
+                int batched = 0;
+                batch.clear();
+                do {
+                    if (rec.waiter != null || rec.deferred) waiters.add(rec);
+                    byte[] bytes = rec.bytes;
+                    if (bytes.length > batch.remaining()) {
+                        writeBatch(batched);
+                        batched = 0;
+                        if (bytes.length > batch.capacity()) {
+                            emit(ByteBuffer.wrap(bytes), 1);
+                            count++;
+                            continue;
+                        }
+                    }
+                    batch.put(bytes);
+                    batched++;
+                    count++;
+                    // Capped, so that under a steady stream a batch still ends and its
+                    // appenders and backups hear about it.
+                } while (batch.position() < batch.capacity() / 2 && (rec = queue.poll()) != null);
+                long commitStart = System.nanoTime();
+                writeBatch(batched);
+                if (fsync) segment.force(false);
+                Server.metrics.walBatch.record(count);
+                Server.metrics.walCommit.recordSince(commitStart);
+                if (replicator != null) replicator.awaitAcks();
+                written += count;
+                for (Pending waiter : waiters) {
+                    waiter.done = true;
+                    if (waiter.waiter != null) LockSupport.unpark(waiter.waiter);
+                    Runnable then = waiter.deferred ? waiter.then.getAndSet(RAN) : null;
+                    if (then != null) runDeferred(then);
+                }
+                waiters.clear();
+                if (segmentSize >= segmentBytes || System.nanoTime() - segmentOpenedNanos >= snapshotIntervalNanos) {
+                    rotate();
+                }
+            }
+            segment.force(false);
+            segment.close();
+        } catch (IOException e) {
+            // Without the log the server would silently stop being durable. Straight
+            // to stderr: halt skips the shutdown hook that flushes ServerLog.
+            System.err.println("Write-ahead log failed: " + e.getMessage() + "; shutting down.");
+            Runtime.getRuntime().halt(2);
+        }
+    }
+
+    private void writeBatch(int records) throws IOException {
+        batch.flip();
+        emit(batch, records);
+        batch.clear();
+    }
+
+    // Write records to the segment, and send the same bytes to the backups.
+    private void emit(ByteBuffer records, int count) throws IOException {
+        ByteBuffer shipped = replicator != null && count > 0 ? records.duplicate() : null;
+        writeFully(records);
+        if (shipped != null) replicator.ship(shipped, count);
+    }
+
+    // Writer thread: start new backups off with the files on disk. Nothing is
+    // written between opening them and the backup joining the live stream, so
+    // each gets every record exactly once.
+    private void admitBackups() {
+        Replicator.Backup backup;
+        while ((backup = replicator.nextJoining()) != null) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    long snapshotSeq = latestSnapshotSeq(dir);
+                    List<Path> segments = new ArrayList<>();
+                    for (long seq : segmentSeqs(dir)) {
+                        if (seq > snapshotSeq) segments.add(segmentFile(dir, seq));
+                    }
+                    replicator.admit(backup, snapshotSeq >= 0 ? snapshotFile(dir, snapshotSeq) : null, segments);
+                    break;
+                } catch (NoSuchFileException e) {
+                    // Compacted into a newer snapshot while we read: start over from that.
+                    if (attempt == 3) {
+                        replicator.drop(backup, "log files keep changing: " + e.getMessage());
+                        break;
+                    }
+                } catch (IOException e) {
+                    replicator.drop(backup, e.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            segmentSize += segment.write(buf);
+        }
+    }
+
+    private void openSegment(long seq) throws IOException {
+        segment = FileChannel.open(segmentFile(dir, seq),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSeq = seq;
+        segmentSize = segment.size();
+        segmentOpenedNanos = System.nanoTime();
+    }
+
+    // Writer thread: start a new segment and fold the closed ones into a snapshot.
+    private void rotate() throws IOException {
+        segment.force(false);
+        segment.close();
+        long closed = segmentSeq;
+        openSegment(closed + 1);
+        compactor.execute(() -> compact(closed));
+        rotations++;
+    }
+
+    // Compactor thread: previous snapshot + closed segments -> snapshot-<upTo>.
+    private void compact(long upTo) {
+        try {
+            long snapshotSeq = latestSnapshotSeq(dir);
+            if (snapshotSeq >= upTo) return;
+            LogState state = snapshotSeq >= 0 ? LogState.readSnapshot(snapshotFile(dir, snapshotSeq)) : new LogState();
+            for (long seq : segmentSeqs(dir)) {
+                if (seq > snapshotSeq && seq <= upTo) {
+                    state.replay(segmentFile(dir, seq));
+                }
+            }
+            writeSnapshot(state, upTo);
+        } catch (IOException | RuntimeException e) {
+            ServerLog.error("Snapshot failed: {}; log segments kept.", e.getMessage());
+        }
+    }
+
+    // Write the snapshot atomically, then drop what it replaces.
+    private void writeSnapshot(LogState state, long upTo) {
+        try {
+            Path tmp = dir.resolve("snapshot.tmp");
+            state.writeSnapshot(tmp);
+            Files.move(tmp, snapshotFile(dir, upTo), StandardCopyOption.ATOMIC_MOVE);
+            for (long seq : segmentSeqs(dir)) {
+                if (seq <= upTo) Files.deleteIfExists(segmentFile(dir, seq));
+            }
+            for (long seq : listSeqs(dir, "snapshot-", ".snap")) {
+                if (seq < upTo) Files.deleteIfExists(snapshotFile(dir, seq));
+            }
+        } catch (IOException e) {
+            ServerLog.error("Snapshot failed: {}; log segments kept.", e.getMessage());
+        }
+    }
+
+    static Path segmentFile(Path dir, long seq) {
+        return dir.resolve(String.format("wal-%016d.log", seq));
+    }
+
+    static Path snapshotFile(Path dir, long seq) {
+        return dir.resolve(String.format("snapshot-%016d.snap", seq));
+    }
+
+    private static long latestSnapshotSeq(Path dir) throws IOException {
+        List<Long> seqs = listSeqs(dir, "snapshot-", ".snap");
+        return seqs.isEmpty() ? -1 : seqs.get(seqs.size() - 1);
+    }
+
+    private static List<Long> segmentSeqs(Path dir) throws IOException {
+        return listSeqs(dir, "wal-", ".log");
+    }
+
+    private static List<Long> listSeqs(Path dir, String prefix, String suffix) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                seqs.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+            }
+        }
+        seqs.sort(null);
+        return seqs;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buf, byte[] utf8) {
+        buf.putShort((short) utf8.length);
+        buf.put(utf8);
+    }
+}